@@ -0,0 +1,159 @@
+package com.findwise.hydra;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+
+import com.google.gson.JsonParseException;
+
+/**
+ * Converts documents to and from BSON, the binary alternative to JSON on the
+ * wire between stages and core.
+ * 
+ * Strings are written as they are, rather than escaped, and dates and binary
+ * data keep their types. Values of other types than those BSON supports are
+ * written the way they would be after a round trip through JSON.
+ */
+public final class BsonUtils {
+	public static final String CONTENT_TYPE = "application/bson";
+	
+	/**
+	 * BSON cannot hold a list at the top level, so lists of documents are
+	 * written as a single document holding the list under this key.
+	 */
+	public static final String LIST_KEY = "list";
+
+	private BsonUtils() {
+	}
+
+	public static byte[] toBson(Map<String, ?> map) {
+		return new BasicBSONEncoder().encode(toBsonObject(map));
+	}
+
+	/**
+	 * @return a single document holding the maps under {@link #LIST_KEY}
+	 */
+	public static byte[] toBson(List<? extends Map<String, ?>> maps) {
+		BasicBSONList list = new BasicBSONList();
+		for (Map<String, ?> map : maps) {
+			list.add(toBsonObject(map));
+		}
+		return new BasicBSONEncoder().encode(new BasicBSONObject(LIST_KEY, list));
+	}
+
+	public static Map<String, Object> fromBson(byte[] bson) throws JsonException {
+		try {
+			return toMap(new BasicBSONDecoder().readObject(bson));
+		} catch (RuntimeException e) {
+			throw new JsonException(new JsonParseException(e));
+		}
+	}
+
+	public static Map<String, Object> fromBson(InputStream bson) throws JsonException, IOException {
+		try {
+			return toMap(new BasicBSONDecoder().readObject(bson));
+		} catch (RuntimeException e) {
+			throw new JsonException(new JsonParseException(e));
+		}
+	}
+
+	/**
+	 * Reads a list written by {@link #toBson(List)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Map<String, Object>> listFromBson(InputStream bson) throws JsonException, IOException {
+		Object list = fromBson(bson).get(LIST_KEY);
+		if (!(list instanceof List)) {
+			throw new JsonException(new JsonParseException("Expected a list of documents under the key " + LIST_KEY));
+		}
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
+		for (Object o : (List<?>) list) {
+			if (!(o instanceof Map)) {
+				throw new JsonException(new JsonParseException("Expected a document, got " + o));
+			}
+			maps.add((Map<String, Object>) o);
+		}
+		return maps;
+	}
+
+	private static BSONObject toBsonObject(Map<?, ?> map) {
+		BasicBSONObject o = new BasicBSONObject();
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			o.put(String.valueOf(e.getKey()), toBsonValue(e.getValue()));
+		}
+		return o;
+	}
+
+	private static Object toBsonValue(Object o) {
+		if (o == null || o instanceof String || o instanceof Boolean
+				|| o instanceof Integer || o instanceof Long
+				|| o instanceof Double || o instanceof Date
+				|| o instanceof byte[] || o instanceof ObjectId) {
+			return o;
+		}
+		if (o instanceof Byte || o instanceof Short) {
+			return ((Number) o).intValue();
+		}
+		if (o instanceof Number) {
+			return ((Number) o).doubleValue();
+		}
+		if (o instanceof Character || o instanceof Enum) {
+			return o.toString();
+		}
+		if (o instanceof Map) {
+			return toBsonObject((Map<?, ?>) o);
+		}
+		if (o instanceof Iterable) {
+			BasicBSONList list = new BasicBSONList();
+			for (Object x : (Iterable<?>) o) {
+				list.add(toBsonValue(x));
+			}
+			return list;
+		}
+		if (o instanceof Object[]) {
+			BasicBSONList list = new BasicBSONList();
+			for (Object x : (Object[]) o) {
+				list.add(toBsonValue(x));
+			}
+			return list;
+		}
+		try {
+			return toBsonValue(SerializationUtils.toObject(SerializationUtils.toJson(o)));
+		} catch (JsonException e) {
+			return o.toString();
+		}
+	}
+
+	private static Map<String, Object> toMap(BSONObject o) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (String key : o.keySet()) {
+			map.put(key, fromBsonValue(o.get(key)));
+		}
+		return map;
+	}
+
+	private static Object fromBsonValue(Object o) {
+		if (o instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object x : (List<?>) o) {
+				list.add(fromBsonValue(x));
+			}
+			return list;
+		}
+		if (o instanceof BSONObject) {
+			return toMap((BSONObject) o);
+		}
+		return o;
+	}
+}
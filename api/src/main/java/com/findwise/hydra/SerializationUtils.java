@@ -3,6 +3,7 @@ package com.findwise.hydra;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.text.ParseException;
@@ -26,6 +27,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
+import com.google.gson.stream.JsonReader;
 
 /**
  * Convenience methods for handling serialization and deserialization of 
@@ -35,12 +37,38 @@ import com.google.gson.JsonSerializationContext;
  */
 public final class SerializationUtils {
 	
+	private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+	
+	/**
+	 * Length of a date in DATE_FORMAT, e.g. 2012-11-30T01:54:50+0100
+	 */
+	private static final int DATE_LENGTH = 24;
+	
+	/**
+	 * SimpleDateFormat is not thread safe, so every thread gets its own.
+	 */
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(DATE_FORMAT);
+		}
+	};
+	
 	private static SimpleDateFormat getDateFormat() {
-		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		return dateFormat.get();
 	}
 	
 	private static Gson gson = getGson();
 	
+	private static final Gson deserializer = getDeserializer();
+	
+	private static Gson getDeserializer() {
+		GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.serializeNulls();
+		gsonBuilder.registerTypeAdapter(Object.class, new NaturalGsonDeserializer());
+		return gsonBuilder.create();
+	}
+	
 	private static Gson getGson() {
 		GsonBuilder gsonBuilder = new GsonBuilder();
 		gsonBuilder.registerTypeAdapter(InputStream.class,
@@ -110,12 +138,141 @@ public final class SerializationUtils {
 		}
 	}
 	
+	/**
+	 * Streaming version of {@link #fromJson(String)}, deserializing directly
+	 * from the reader without first reading the whole message into a String.
+	 * Values get the same types as they would through fromJson(String).
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> fromJson(Reader json) throws JsonException {
+		try {
+			JsonReader reader = new JsonReader(json);
+			reader.setLenient(true);
+			Object o = readValue(reader);
+			if(o instanceof Map) {
+				return (Map<String, Object>) o;
+			}
+			else {
+				HashMap<String, Object> x = new HashMap<String, Object>();
+				x.put("", o);
+				return x;
+			}
+		}
+		catch(IOException e) {
+			throw new JsonException(new JsonParseException(e));
+		}
+		catch(RuntimeException e) {
+			throw new JsonException(new JsonParseException(e));
+		}
+	}
+	
+	private static Object readValue(JsonReader reader) throws IOException {
+		switch(reader.peek()) {
+		case BEGIN_OBJECT:
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			reader.beginObject();
+			while(reader.hasNext()) {
+				String key = reader.nextName();
+				map.put(key, readValue(reader));
+			}
+			reader.endObject();
+			return map;
+		case BEGIN_ARRAY:
+			List<Object> list = new ArrayList<Object>();
+			reader.beginArray();
+			while(reader.hasNext()) {
+				list.add(readValue(reader));
+			}
+			reader.endArray();
+			return list;
+		case STRING:
+			return toStringOrDate(reader.nextString());
+		case NUMBER:
+			return toNumber(new BigDecimal(reader.nextString()));
+		case BOOLEAN:
+			return reader.nextBoolean();
+		case NULL:
+			reader.nextNull();
+			return null;
+		default:
+			throw new IOException("Unexpected "+reader.peek()+" in JSON");
+		}
+	}
+	
+	private static Object toStringOrDate(String s) {
+		if(!isDateShaped(s)) {
+			return s;
+		}
+		try {
+			return getDateFormat().parse(s);
+		} catch(ParseException e) {
+			return s;
+		}
+	}
+	
+	/**
+	 * Cheap check for whether the string has the shape of a date serialized
+	 * by this class, so that only those are given to the date parser.
+	 */
+	private static boolean isDateShaped(String s) {
+		if(s.length() != DATE_LENGTH) {
+			return false;
+		}
+		for(int i = 0; i < DATE_LENGTH; i++) {
+			char c = s.charAt(i);
+			switch(i) {
+			case 4:
+			case 7:
+				if(c != '-') {
+					return false;
+				}
+				break;
+			case 10:
+				if(c != 'T') {
+					return false;
+				}
+				break;
+			case 13:
+			case 16:
+				if(c != ':') {
+					return false;
+				}
+				break;
+			case 19:
+				if(c != '+' && c != '-') {
+					return false;
+				}
+				break;
+			default:
+				if(c < '0' || c > '9') {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gives integers as Integer or Long, depending on their size, and
+	 * everything else as Double.
+	 */
+	private static Object toNumber(BigDecimal bigDec) {
+		try {
+			bigDec.toBigIntegerExact();
+			
+			try {
+				return bigDec.intValueExact();
+			} catch (ArithmeticException e) {
+				return bigDec.longValue();
+			}
+		} 
+		catch (ArithmeticException e) {
+		}
+		return bigDec.doubleValue();
+	}
+	
 	public static Object toObject(String json) throws JsonException {
-		GsonBuilder gsonBuilder = new GsonBuilder();
-		gsonBuilder.serializeNulls();
-		gsonBuilder.registerTypeAdapter(Object.class, new NaturalGsonDeserializer());
-		Gson gson = gsonBuilder.create();
-		return gson.fromJson(json, Object.class);
+		return deserializer.fromJson(json, Object.class);
 	}
 	
 	/**
@@ -178,26 +335,9 @@ public final class SerializationUtils {
 			if (json.isBoolean()) {
 				return json.getAsBoolean();
 			} else if (json.isString()) {
-				try {
-					return getDateFormat().parse(json.getAsString());
-				} catch(ParseException e) {
-					return json.getAsString();
-				}
+				return toStringOrDate(json.getAsString());
 			} else {
-				BigDecimal bigDec = json.getAsBigDecimal();
-				
-				try {
-					bigDec.toBigIntegerExact();
-					
-					try {
-						return bigDec.intValueExact();
-					} catch (ArithmeticException e) {
-						return bigDec.longValue();
-					}
-				} 
-				catch (ArithmeticException e) {
-				}
-				return bigDec.doubleValue();
+				return toNumber(json.getAsBigDecimal());
 			}
 		}
 
@@ -1,6 +1,7 @@
 package com.findwise.hydra.local;
 
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -8,6 +9,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
 
+import com.findwise.hydra.BsonUtils;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.DocumentID;
 import com.findwise.hydra.InternalLogger;
@@ -42,6 +44,16 @@ public class LocalDocument implements Document<Local> {
 		markSynced();
 	}
 	
+	/**
+	 * Creates a document from an already deserialized map, such as one
+	 * element of a JSON array of documents.
+	 */
+	public LocalDocument(Map<String, Object> map) {
+		this();
+		fromMap(map);
+		markSynced();
+	}
+	
 	@Override
 	public Action getAction() {
 		return (Action) documentMap.get(ACTION_KEY);
@@ -164,29 +176,10 @@ public class LocalDocument implements Document<Local> {
 		touchedMetadata.add(ERROR_METADATA_KEY);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public final void fromJson(String json) throws JsonException {
 		try {
-			Map<String, Object> m = SerializationUtils.fromJson(json);
-			if(m.containsKey(ID_KEY)) {
-				documentMap.put(ID_KEY, m.get(ID_KEY));
-			}
-			if(m.containsKey(ACTION_KEY) && m.get(ACTION_KEY)!=null) {
-				documentMap.put(ACTION_KEY, Action.valueOf((String)m.get(ACTION_KEY)));
-			}
-			if(m.containsKey(METADATA_KEY)) {
-				Map<String, Object> metadata = (Map<String, Object>) m.get(METADATA_KEY);
-				for(Map.Entry<String, Object> e : metadata.entrySet()) {
-					putMetadataField(e.getKey(), metadata.get(e.getKey()));
-				}
-			}
-			if(m.containsKey(CONTENTS_KEY)) {
-				Map<String, Object> content = (Map<String, Object>) m.get(CONTENTS_KEY);
-				for(Map.Entry<String, Object> e : content.entrySet()) {
-					putContentField(e.getKey(), content.get(e.getKey()));
-				}
-			}
+			fromMap(SerializationUtils.fromJson(json));
 		} 
 		catch(JsonParseException e) {
 			InternalLogger.error("Caught JsonParseException, throwing JsonException");
@@ -194,6 +187,39 @@ public class LocalDocument implements Document<Local> {
 		}
 	}
 	
+	/**
+	 * Streaming version of {@link #fromJson(String)}.
+	 */
+	public final void fromJson(Reader json) throws JsonException {
+		fromMap(SerializationUtils.fromJson(json));
+	}
+	
+	/**
+	 * Reads the fields of an already deserialized document into this 
+	 * document, marking them as modified.
+	 */
+	@SuppressWarnings("unchecked")
+	public final void fromMap(Map<String, Object> m) {
+		if(m.containsKey(ID_KEY)) {
+			documentMap.put(ID_KEY, m.get(ID_KEY));
+		}
+		if(m.containsKey(ACTION_KEY) && m.get(ACTION_KEY)!=null) {
+			documentMap.put(ACTION_KEY, Action.valueOf((String)m.get(ACTION_KEY)));
+		}
+		if(m.containsKey(METADATA_KEY)) {
+			Map<String, Object> metadata = (Map<String, Object>) m.get(METADATA_KEY);
+			for(Map.Entry<String, Object> e : metadata.entrySet()) {
+				putMetadataField(e.getKey(), metadata.get(e.getKey()));
+			}
+		}
+		if(m.containsKey(CONTENTS_KEY)) {
+			Map<String, Object> content = (Map<String, Object>) m.get(CONTENTS_KEY);
+			for(Map.Entry<String, Object> e : content.entrySet()) {
+				putContentField(e.getKey(), content.get(e.getKey()));
+			}
+		}
+	}
+	
 	private String removePeriodFromKey(String key) {
 		if(key.contains(".")) {
 			InternalLogger.warn("The fieldname " + key + " contains a period, mongodb does not allow keys to contain a period (.). It has been replaced with a dash (-)");
@@ -224,6 +250,10 @@ public class LocalDocument implements Document<Local> {
 		return SerializationUtils.toJson(documentMap);
 	}
 	
+	public byte[] toBson() {
+		return BsonUtils.toBson(documentMap);
+	}
+	
 	protected Map<String, Object> getDocumentMap() {
 		return documentMap;
 	}
@@ -304,13 +334,24 @@ public class LocalDocument implements Document<Local> {
 		return fieldsToJson(touchedContent, touchedMetadata);
 	}
 	
+	/**
+	 * BSON version of {@link #modifiedFieldsToJson()}.
+	 */
+	public byte[] modifiedFieldsToBson() {
+		return BsonUtils.toBson(fieldsToMap(touchedContent, touchedMetadata));
+	}
+	
+	private String fieldsToJson(Iterable<String> contentFields, Iterable<String> metadataFields) {
+		return SerializationUtils.toJson(fieldsToMap(contentFields, metadataFields));
+	}
+	
 	/**
 	 * Must be nullsafe, for all parameters and other operations. 
 	 * @param contentFields
 	 * @param metadataFields
 	 * @return
 	 */
-	private String fieldsToJson(Iterable<String> contentFields, Iterable<String> metadataFields) {
+	private Map<String, Object> fieldsToMap(Iterable<String> contentFields, Iterable<String> metadataFields) {
 		HashMap<String, Object> map = new HashMap<String, Object>();
 		if(getID() != null) {
 			map.put(ID_KEY, getID().getID());
@@ -334,7 +375,7 @@ public class LocalDocument implements Document<Local> {
 		if(touchedAction) {
 			map.put(ACTION_KEY, getAction());
 		}
-		return SerializationUtils.toJson(map);
+		return map;
 	}
 	
 	public Map<String, Object> toMap() {
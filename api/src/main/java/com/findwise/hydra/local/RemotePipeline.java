@@ -2,19 +2,25 @@ package com.findwise.hydra.local;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.util.EntityUtils;
 
+import com.findwise.hydra.BsonUtils;
 import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.DocumentID;
 import com.findwise.hydra.InternalLogger;
@@ -25,6 +31,7 @@ import com.findwise.tools.HttpConnection;
 
 public class RemotePipeline {
 	public static final String GET_DOCUMENT_URL = "getDocument";
+	public static final String GET_DOCUMENTS_URL = "getDocuments";
 	public static final String WRITE_DOCUMENT_URL = "writeDocument";
 	public static final String RELEASE_DOCUMENT_URL = "releaseDocument";
 	public static final String PROCESSED_DOCUMENT_URL = "processedDocument";
@@ -32,36 +39,65 @@ public class RemotePipeline {
 	public static final String DISCARDED_DOCUMENT_URL = "discardedDocument";
 	public static final String GET_PROPERTIES_URL = "getProperties";
 	public static final String FAILED_DOCUMENT_URL = "failedDocument";
+	public static final String PROCESSED_DOCUMENTS_URL = "processedDocuments";
+	public static final String PENDING_DOCUMENTS_URL = "pendingDocuments";
+	public static final String DISCARDED_DOCUMENTS_URL = "discardedDocuments";
+	public static final String FAILED_DOCUMENTS_URL = "failedDocuments";
 	public static final String FILE_URL = "documentFile";
+	public static final String FILE_STREAM_URL = "documentFileStream";
+	public static final String STAGE_METRICS_URL = "stageMetrics";
 	
 	public static final String STAGE_PARAM = "stage";
 	public static final String NORELEASE_PARAM = "norelease";
+	public static final String UNFETCH_PARAM = "unfetch";
 	public static final String PARTIAL_PARAM = "partial";
 	public static final String DOCID_PARAM = "docid";
 	public static final String FILENAME_PARAM = "filename";
+	public static final String COUNT_PARAM = "count";
+	public static final String WAIT_PARAM = "wait";
+	public static final String MIMETYPE_PARAM = "mimetype";
+	public static final String ENCODING_PARAM = "encoding";
+	
+	public static final String FILE_ENCODING_HEADER = "X-Hydra-Encoding";
+	public static final String FILE_SAVED_BY_HEADER = "X-Hydra-Saved-By";
 	
 	public static final int DEFAULT_PORT = 12001;
 	public static final String DEFAULT_HOST = "127.0.0.1";
 	
 	private boolean performanceLogging = false;
 	
+	private long longPollTimeout = 0;
+	
+	private boolean binaryWireFormat = false;
+	
 	private HttpConnection core;
 	
 	private boolean keepLock;
 	
 	private String getUrl;
+	private String getManyUrl;
 	private String writeUrl;
 	private String releaseUrl;
 	private String processedUrl;
 	private String failedUrl;
 	private String pendingUrl;
 	private String discardedUrl;
+	private String processedManyUrl;
+	private String failedManyUrl;
+	private String pendingManyUrl;
+	private String discardedManyUrl;
 	private String propertyUrl;
 	private String fileUrl;
+	private String fileStreamUrl;
+	private String metricsUrl;
 	
 	private String stageName;
 	
 	private LocalDocument currentDocument;
+	
+	private LinkedList<LocalDocument> prefetched = new LinkedList<LocalDocument>();
+	
+	private StageMetrics metrics = new StageMetrics();
 
 	/**
 	 * Calls RemotePipeline(String, int, String) with default values for 
@@ -76,14 +112,21 @@ public class RemotePipeline {
 	public RemotePipeline(String hostName, int port, String stageName) {
 		this.stageName = stageName;
 		getUrl = "/"+GET_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
+		getManyUrl = "/"+GET_DOCUMENTS_URL+"?"+STAGE_PARAM+"="+stageName;
 		writeUrl = "/"+WRITE_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
 		releaseUrl = "/"+RELEASE_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
 		processedUrl = "/"+PROCESSED_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
 		failedUrl = "/"+FAILED_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
 		pendingUrl = "/"+PENDING_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
 		discardedUrl = "/"+DISCARDED_DOCUMENT_URL+"?"+STAGE_PARAM+"="+stageName;
+		processedManyUrl = "/"+PROCESSED_DOCUMENTS_URL+"?"+STAGE_PARAM+"="+stageName;
+		failedManyUrl = "/"+FAILED_DOCUMENTS_URL+"?"+STAGE_PARAM+"="+stageName;
+		pendingManyUrl = "/"+PENDING_DOCUMENTS_URL+"?"+STAGE_PARAM+"="+stageName;
+		discardedManyUrl = "/"+DISCARDED_DOCUMENTS_URL+"?"+STAGE_PARAM+"="+stageName;
 		propertyUrl = "/"+GET_PROPERTIES_URL+"?"+STAGE_PARAM+"="+stageName;
 		fileUrl = "/"+FILE_URL+"?"+STAGE_PARAM+"="+stageName;
+		fileStreamUrl = "/"+FILE_STREAM_URL+"?"+STAGE_PARAM+"="+stageName;
+		metricsUrl = "/"+STAGE_METRICS_URL+"?"+STAGE_PARAM+"="+stageName;
 		
 		keepLock = false;
 		
@@ -99,16 +142,23 @@ public class RemotePipeline {
 	public LocalDocument getDocument(LocalQuery query) throws IOException {
 		HttpResponse response;
 		long start = System.currentTimeMillis();
-			response = core.post(getUrl, query.toJson());
+		response = core.post(getUrl+getWaitParam(), query.toJson(), getAccept());
 
 		long startSerialize = System.currentTimeMillis();
+		metrics.time(GET_DOCUMENT_URL, startSerialize - start);
 		long startJson = 0L;
 		LocalDocument ld = null;
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-			String s = EntityUtils.toString(response.getEntity());
 			try {
-				startJson = System.currentTimeMillis();
-				ld = new LocalDocument(s);
+				if(isBson(response)) {
+					byte[] bson = EntityUtils.toByteArray(response.getEntity());
+					startJson = System.currentTimeMillis();
+					ld = new LocalDocument(BsonUtils.fromBson(bson));
+				} else {
+					String s = EntityUtils.toString(response.getEntity());
+					startJson = System.currentTimeMillis();
+					ld = new LocalDocument(s);
+				}
 			} catch (JsonException e) {
 				throw new IOException(e);
 			}
@@ -128,6 +178,92 @@ public class RemotePipeline {
 		return ld;
 	}
 	
+	/**
+	 * Fetches up to <code>n</code> documents matching the query in a single
+	 * request. Every returned document is tagged with the name of this stage,
+	 * just as if it had been fetched by getDocument(LocalQuery).
+	 * 
+	 * None of the returned documents will become the current document, so 
+	 * they need to be persisted using save(LocalDocument) or one of the mark
+	 * methods.
+	 * 
+	 * @return a list of documents, empty if no document matched the query
+	 */
+	public List<LocalDocument> getDocuments(LocalQuery query, int n) throws IOException {
+		long start = System.currentTimeMillis();
+		HttpResponse response = core.post(getManyUrl+"&"+COUNT_PARAM+"="+n+getWaitParam(), query.toJson(), getAccept());
+
+		long startSerialize = System.currentTimeMillis();
+		metrics.time(GET_DOCUMENTS_URL, startSerialize - start);
+		long startJson = startSerialize;
+		List<LocalDocument> list = new ArrayList<LocalDocument>();
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK && isBson(response)) {
+			byte[] bson = EntityUtils.toByteArray(response.getEntity());
+			startJson = System.currentTimeMillis();
+			try {
+				for(Map<String, Object> map : BsonUtils.listFromBson(new ByteArrayInputStream(bson))) {
+					list.add(new LocalDocument(map));
+				}
+			} catch (JsonException e) {
+				throw new IOException(e);
+			}
+			InternalLogger.debug("Received "+list.size()+" documents");
+		} else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+			String s = EntityUtils.toString(response.getEntity());
+			startJson = System.currentTimeMillis();
+			Object o;
+			try {
+				o = SerializationUtils.toObject(s);
+			} catch (JsonException e) {
+				throw new IOException(e);
+			}
+			if(!(o instanceof List)) {
+				throw new IOException("Expected a list of documents, got: "+s);
+			}
+			for(Object x : (List<?>) o) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> map = (Map<String, Object>) x;
+				list.add(new LocalDocument(map));
+			}
+			InternalLogger.debug("Received "+list.size()+" documents");
+		} else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+			InternalLogger.debug("No document found matching query");
+			EntityUtils.consume(response.getEntity());
+		} else {
+			logUnexpected(response);
+		}
+		if(isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			Logger.info(String.format("type=performance event=query_batch stage_name=%s count=%d start=%d fetch=%d entitystring=%d serialize=%d end=%d total=%d", stageName, list.size(), start, startSerialize - start, startJson - startSerialize, end - startJson, end, end - start));
+		}
+		return list;
+	}
+	
+	/**
+	 * Works like getDocument(LocalQuery), but fetches up to 
+	 * <code>batchSize</code> documents per request to the core, handing them
+	 * out one at a time on subsequent calls. The returned document becomes the 
+	 * current document.
+	 * 
+	 * Documents in the local batch have already been tagged as fetched by
+	 * this stage, so the same query should be used for every call. Call 
+	 * releasePrefetchedDocuments() when no more documents are to be read, 
+	 * or the documents left in the batch stay fetched by this stage.
+	 */
+	public LocalDocument getDocument(LocalQuery query, int batchSize) throws IOException {
+		if(batchSize <= 1 && prefetched.isEmpty()) {
+			return getDocument(query);
+		}
+		if(prefetched.isEmpty()) {
+			prefetched.addAll(getDocuments(query, batchSize));
+		}
+		LocalDocument ld = prefetched.poll();
+		if(ld != null) {
+			currentDocument = ld;
+		}
+		return ld;
+	}
+	
 	/**
 	 * Releases the most recently read document back to the pipeline
 	 * 
@@ -140,8 +276,33 @@ public class RemotePipeline {
 			InternalLogger.debug("There is no document to release...");
 			return false;
 		}
-		HttpResponse response = core.post(releaseUrl, currentDocument.contentFieldsToJson(null));
+		LocalDocument d = currentDocument;
 		currentDocument = null;
+		return release(releaseUrl, d);
+	}
+	
+	/**
+	 * Releases the documents fetched by getDocument(LocalQuery, int) that 
+	 * have not yet been handed out. Unlike releaseLastDocument(), they are 
+	 * not marked as touched by this stage, but can be fetched again.
+	 * 
+	 * @return the number of documents released
+	 */
+	public int releasePrefetchedDocuments() throws IOException {
+		int released = 0;
+		LocalDocument d;
+		while((d = prefetched.poll()) != null) {
+			if(release(releaseUrl+"&"+UNFETCH_PARAM+"=1", d)) {
+				released++;
+			}
+		}
+		return released;
+	}
+	
+	private boolean release(String url, LocalDocument d) throws IOException {
+		long start = System.currentTimeMillis();
+		HttpResponse response = core.post(url, d.contentFieldsToJson(null));
+		metrics.time(RELEASE_DOCUMENT_URL, System.currentTimeMillis() - start);
 		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 			return true;
@@ -152,7 +313,8 @@ public class RemotePipeline {
 		return false;
 	}
 	
-	private static void logUnexpected(HttpResponse response) throws IOException {
+	private void logUnexpected(HttpResponse response) throws IOException {
+		metrics.count(StageMetrics.UNEXPECTED_RESPONSES);
 		InternalLogger.error("Node gave an unexpected response: "+response.getStatusLine());
 		InternalLogger.error("Message: "+EntityUtils.toString(response.getEntity()));
 	}
@@ -207,16 +369,20 @@ public class RemotePipeline {
 	
 	private boolean save(LocalDocument d, boolean partialUpdate) throws IOException, JsonException {
 		boolean hasId = d.getID()!=null;
-		String s;
 		long start = System.currentTimeMillis();
-		if(partialUpdate) {
-			s = d.modifiedFieldsToJson();
+		long startPost;
+		HttpResponse response;
+		if(binaryWireFormat) {
+			byte[] bson = partialUpdate ? d.modifiedFieldsToBson() : d.toBson();
+			startPost = System.currentTimeMillis();
+			response = core.post(getWriteUrl(partialUpdate), bson, BsonUtils.CONTENT_TYPE, null);
 		}
 		else {
-			s = d.toJson();
+			String s = partialUpdate ? d.modifiedFieldsToJson() : d.toJson();
+			startPost = System.currentTimeMillis();
+			response = core.post(getWriteUrl(partialUpdate), s);
 		}
-		long startPost = System.currentTimeMillis();
-		HttpResponse response = core.post(getWriteUrl(partialUpdate), s);
+		metrics.time(WRITE_DOCUMENT_URL, System.currentTimeMillis() - startPost);
 		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
 			if(!hasId) {
 				LocalDocument updated = new LocalDocument(EntityUtils.toString(response.getEntity()));
@@ -237,8 +403,26 @@ public class RemotePipeline {
 		return false;
 	}
 	
+	/**
+	 * Posts the modified fields of the document, as BSON if the binary wire
+	 * format is used.
+	 */
+	private HttpResponse postModified(String url, String metricsName, LocalDocument d) throws IOException {
+		long start = System.currentTimeMillis();
+		HttpResponse response;
+		if(binaryWireFormat) {
+			response = core.post(url, d.modifiedFieldsToBson(), BsonUtils.CONTENT_TYPE, null);
+		} else {
+			response = core.post(url, d.modifiedFieldsToJson());
+		}
+		metrics.time(metricsName, System.currentTimeMillis() - start);
+		return response;
+	}
+	
 	public boolean markPending(LocalDocument d) throws IOException {
+		long start = System.currentTimeMillis();
 		HttpResponse response = core.post(pendingUrl, d.contentFieldsToJson(null));
+		metrics.time(PENDING_DOCUMENT_URL, System.currentTimeMillis() - start);
 		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 		
@@ -251,7 +435,7 @@ public class RemotePipeline {
 	}
 	
 	public boolean markFailed(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(failedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = postModified(failedUrl, FAILED_DOCUMENT_URL, d);
 		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 		
@@ -269,7 +453,7 @@ public class RemotePipeline {
 	}
 	
 	public boolean markProcessed(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(processedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = postModified(processedUrl, PROCESSED_DOCUMENT_URL, d);
 		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 		
@@ -282,7 +466,7 @@ public class RemotePipeline {
 	}
 	
 	public boolean markDiscarded(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(discardedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = postModified(discardedUrl, DISCARDED_DOCUMENT_URL, d);
 		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 		
@@ -294,6 +478,87 @@ public class RemotePipeline {
 		return false;
 	}
 	
+	/**
+	 * Marks all of the documents as pending in a single request.
+	 * 
+	 * @return true if every document was marked
+	 */
+	public boolean markPending(List<LocalDocument> docs) throws IOException {
+		StringBuilder sb = new StringBuilder("[");
+		for(LocalDocument d : docs) {
+			if(sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append(d.contentFieldsToJson(null));
+		}
+		sb.append(']');
+		return markMany(pendingManyUrl, PENDING_DOCUMENTS_URL, sb.toString(), docs.size());
+	}
+	
+	/**
+	 * Marks all of the documents as failed in a single request. Any errors 
+	 * should already have been added to the documents.
+	 * 
+	 * @return true if every document was marked
+	 */
+	public boolean markFailed(List<LocalDocument> docs) throws IOException {
+		return markMany(failedManyUrl, FAILED_DOCUMENTS_URL, modifiedFieldsToJson(docs), docs.size());
+	}
+	
+	/**
+	 * Marks all of the documents as processed in a single request.
+	 * 
+	 * @return true if every document was marked
+	 */
+	public boolean markProcessed(List<LocalDocument> docs) throws IOException {
+		return markMany(processedManyUrl, PROCESSED_DOCUMENTS_URL, modifiedFieldsToJson(docs), docs.size());
+	}
+	
+	/**
+	 * Marks all of the documents as discarded in a single request.
+	 * 
+	 * @return true if every document was marked
+	 */
+	public boolean markDiscarded(List<LocalDocument> docs) throws IOException {
+		return markMany(discardedManyUrl, DISCARDED_DOCUMENTS_URL, modifiedFieldsToJson(docs), docs.size());
+	}
+	
+	private static String modifiedFieldsToJson(List<LocalDocument> docs) {
+		StringBuilder sb = new StringBuilder("[");
+		for(LocalDocument d : docs) {
+			if(sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append(d.modifiedFieldsToJson());
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+	
+	private boolean markMany(String url, String metricsName, String json, int expected) throws IOException {
+		long start = System.currentTimeMillis();
+		HttpResponse response = core.post(url, json);
+		metrics.time(metricsName, System.currentTimeMillis() - start);
+		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
+			String s = EntityUtils.toString(response.getEntity());
+			int marked;
+			try {
+				marked = Integer.parseInt(s.trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Unexpected response from core: "+s);
+			}
+			if(marked != expected) {
+				InternalLogger.warn("Only "+marked+" out of "+expected+" documents were marked");
+				return false;
+			}
+			return true;
+		}
+		
+		logUnexpected(response);
+		
+		return false;
+	}
+	
 	private String getWriteUrl(boolean partialUpdate) {
 		String s = writeUrl;
 		if(keepLock) {
@@ -333,44 +598,45 @@ public class RemotePipeline {
 		}
 	}
 	
-	private String getFileUrl(DocumentFile<Local> df) throws UnsupportedEncodingException {
-		return getFileUrl(df.getFileName(), df.getDocumentId());
+	private String getFileUrl(String fileName, DocumentID<Local> docid) throws UnsupportedEncodingException {
+		return getFileUrl(fileUrl, fileName, docid);
 	}
 	
-	private String getFileUrl(String fileName, DocumentID<Local> docid) throws UnsupportedEncodingException {
-		return fileUrl+"&"+RemotePipeline.FILENAME_PARAM+"="+fileName+"&"+RemotePipeline.DOCID_PARAM+"="+URLEncoder.encode(docid.toJSON(), "UTF-8");
+	private String getFileUrl(String url, String fileName, DocumentID<Local> docid) throws UnsupportedEncodingException {
+		return url+"&"+RemotePipeline.FILENAME_PARAM+"="+fileName+"&"+RemotePipeline.DOCID_PARAM+"="+URLEncoder.encode(docid.toJSON(), "UTF-8");
 	}
 	
+	/**
+	 * Fetches a file attached to a document. The stream of the returned file
+	 * reads the file straight from the core, so it has to be read to its end
+	 * or closed to hand the connection back to the pool.
+	 * 
+	 * @return the file, or null if there is no such file
+	 */
 	public DocumentFile<Local> getFile(String fileName, DocumentID<Local> docid) throws IOException {
-		HttpResponse response = core.get(getFileUrl(fileName, docid));
+		HttpResponse response = core.get(getFileUrl(fileStreamUrl, fileName, docid));
 		
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-			Object o;
-			try {
-				o = SerializationUtils.toObject(EntityUtils.toString(response.getEntity()));
-			} catch (JsonException e) {
-				throw new IOException(e);
-			}
-			if(!(o instanceof Map)) {
-				return null;
+			HttpEntity entity = response.getEntity();
+			Date d = null;
+			Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+			if(lastModified != null) {
+				try {
+					d = DateUtils.parseDate(lastModified.getValue());
+				} catch (DateParseException e) {
+					InternalLogger.warn("Unable to parse the upload date of "+fileName+": "+lastModified.getValue());
+				}
 			}
+			Header savedByStage = response.getFirstHeader(FILE_SAVED_BY_HEADER);
 			
-			@SuppressWarnings("unchecked")
-			Map<String, Object> map = (Map<String, Object>) o;
-			Date d = (Date) map.get("uploadDate");
-			String encoding = (String) map.get("encoding");
-			String mimetype = (String) map.get("mimetype");
-			String savedByStage = (String) map.get("savedByStage");
-			InputStream is;
-			if(encoding == null) {
-				is = new ByteArrayInputStream(Base64.decodeBase64(((String)map.get("stream")).getBytes("UTF-8")));
-			} else {
-				is = new ByteArrayInputStream(Base64.decodeBase64(((String)map.get("stream")).getBytes(encoding)));
+			DocumentFile<Local> df = new DocumentFile<Local>(docid, fileName, entity.getContent(), savedByStage != null ? savedByStage.getValue() : null, d);
+			Header encoding = response.getFirstHeader(FILE_ENCODING_HEADER);
+			if(encoding != null) {
+				df.setEncoding(encoding.getValue());
+			}
+			if(entity.getContentType() != null) {
+				df.setMimetype(entity.getContentType().getValue());
 			}
-
-			DocumentFile<Local> df = new DocumentFile<Local>(docid, fileName, is, savedByStage, d);
-			df.setEncoding(encoding);
-			df.setMimetype(mimetype);
 			
 			return df;
 		} 
@@ -380,8 +646,19 @@ public class RemotePipeline {
 		}
 	}
 	
+	/**
+	 * Streams the file to the core, attaching it to its document. The stream
+	 * of the file is read to its end and closed.
+	 */
 	public boolean saveFile(DocumentFile<Local> df) throws IOException {
-		HttpResponse response = core.post(getFileUrl(df),  SerializationUtils.toJson(df));
+		StringBuilder url = new StringBuilder(getFileUrl(fileStreamUrl, df.getFileName(), df.getDocumentId()));
+		if(df.getMimetype() != null) {
+			url.append('&').append(MIMETYPE_PARAM).append('=').append(URLEncoder.encode(df.getMimetype(), "UTF-8"));
+		}
+		if(df.getEncoding() != null) {
+			url.append('&').append(ENCODING_PARAM).append('=').append(URLEncoder.encode(df.getEncoding(), "UTF-8"));
+		}
+		HttpResponse response = core.post(url.toString(), df.getStream());
 		int code = response.getStatusLine().getStatusCode();
 		if (code == HttpStatus.SC_OK || code == HttpStatus.SC_NO_CONTENT) {
 			EntityUtils.consume(response.getEntity());
@@ -431,4 +708,92 @@ public class RemotePipeline {
 	public boolean isPerformanceLogging() {
 		return performanceLogging;
 	}
+	
+	private String getAccept() {
+		return binaryWireFormat ? BsonUtils.CONTENT_TYPE : null;
+	}
+	
+	private static boolean isBson(HttpResponse response) {
+		Header contentType = response.getEntity().getContentType();
+		return contentType != null && contentType.getValue().startsWith(BsonUtils.CONTENT_TYPE);
+	}
+	
+	private String getWaitParam() {
+		if(longPollTimeout > 0) {
+			return "&"+WAIT_PARAM+"="+longPollTimeout;
+		}
+		return "";
+	}
+	
+	/**
+	 * If set to a positive number of milliseconds, the core will wait for up
+	 * to that long for a matching document to become available before 
+	 * answering getDocument(..) and getDocuments(..) requests that would 
+	 * otherwise find no document.
+	 */
+	public void setLongPollTimeout(long longPollTimeout) {
+		this.longPollTimeout = longPollTimeout;
+	}
+	
+	public long getLongPollTimeout() {
+		return longPollTimeout;
+	}
+	
+	/**
+	 * If set, documents are fetched from and written to the core as BSON
+	 * rather than JSON, which is cheaper to produce and parse for documents
+	 * holding large strings or binary content. Queries, releases and the 
+	 * bulk mark methods are always sent as JSON.
+	 */
+	public void setBinaryWireFormat(boolean binaryWireFormat) {
+		this.binaryWireFormat = binaryWireFormat;
+	}
+	
+	public boolean isBinaryWireFormat() {
+		return binaryWireFormat;
+	}
+	
+	/**
+	 * @return the metrics of this stage. Requests to the core are timed by the
+	 * name of the url they were made to.
+	 */
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sends everything recorded in the metrics since the last push to the 
+	 * core, where it is added to the metrics of every other instance of this
+	 * stage. What was recorded is not sent again, even if the push fails.
+	 * 
+	 * @return true if the core accepted the metrics
+	 */
+	public boolean pushMetrics() throws IOException {
+		HttpResponse response = core.post(metricsUrl, SerializationUtils.toJson(metrics.drain()));
+		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_OK) {
+			EntityUtils.consume(response.getEntity());
+			return true;
+		}
+		
+		logUnexpected(response);
+		
+		return false;
+	}
+	
+	/**
+	 * Sets the number of requests that may be made to the core at once. 
+	 * Raise this when the RemotePipeline is shared by threads working on 
+	 * several documents concurrently.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		core.setMaxConnections(maxConnections);
+	}
+	
+	/**
+	 * @return the connection pool used for all requests to the core, which
+	 * also exposes the pool usage.
+	 */
+	public HttpConnection getHttpConnection() {
+		return core;
+	}
 }
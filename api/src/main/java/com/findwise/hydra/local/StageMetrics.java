@@ -0,0 +1,175 @@
+package com.findwise.hydra.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.findwise.tools.Histogram;
+
+/**
+ * Collects timings and counts of what a stage spends its time on, so that
+ * they can be pushed to the core and compared across stages.
+ *
+ * Timers and counters are created on first use. {@link #drain()} returns
+ * what has been recorded since it was last called, in a form that can be
+ * sent as JSON and merged into another instance with {@link #add(Map)}.
+ */
+public class StageMetrics {
+	public static final String FETCH = "fetch";
+	public static final String PROCESS = "process";
+	public static final String PERSIST = "persist";
+
+	public static final String DOCUMENTS = "documents";
+	public static final String EMPTY_POLLS = "empty_polls";
+	public static final String PROCESS_FAILED = "process_failed";
+	public static final String PERSIST_FAILED = "persist_failed";
+	public static final String UNEXPECTED_RESPONSES = "unexpected_responses";
+
+	static final String TIMERS_KEY = "timers";
+	static final String COUNTERS_KEY = "counters";
+	static final String BUCKETS_KEY = "buckets";
+	static final String SUM_KEY = "sum";
+
+	private ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+	private ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private Map<String, long[]> drainedBuckets = new HashMap<String, long[]>();
+	private Map<String, Long> drainedSums = new HashMap<String, Long>();
+	private Map<String, Long> drainedCounters = new HashMap<String, Long>();
+
+	public void time(String timer, long millis) {
+		getTimer(timer).record(millis);
+	}
+
+	public void count(String counter) {
+		count(counter, 1);
+	}
+
+	public void count(String counter, long n) {
+		getCounterValue(counter).addAndGet(n);
+	}
+
+	public Histogram getTimer(String timer) {
+		Histogram h = timers.get(timer);
+		if (h == null) {
+			Histogram created = new Histogram();
+			h = timers.putIfAbsent(timer, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
+
+	public long getCounter(String counter) {
+		AtomicLong value = counters.get(counter);
+		return value == null ? 0 : value.get();
+	}
+
+	public Map<String, Histogram> getTimers() {
+		return new HashMap<String, Histogram>(timers);
+	}
+
+	public Map<String, Long> getCounters() {
+		Map<String, Long> map = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			map.put(e.getKey(), e.getValue().get());
+		}
+		return map;
+	}
+
+	private AtomicLong getCounterValue(String counter) {
+		AtomicLong value = counters.get(counter);
+		if (value == null) {
+			AtomicLong created = new AtomicLong();
+			value = counters.putIfAbsent(counter, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @return everything recorded since the last call, as maps and lists of
+	 *         numbers only. Timers and counters that have not changed are left
+	 *         out.
+	 */
+	public synchronized Map<String, Object> drain() {
+		Map<String, Object> timerMap = new HashMap<String, Object>();
+		for (Map.Entry<String, Histogram> e : timers.entrySet()) {
+			long sum = e.getValue().getSum();
+			long[] buckets = e.getValue().getBucketCounts();
+			long[] previous = drainedBuckets.get(e.getKey());
+			long previousSum = drainedSums.containsKey(e.getKey()) ? drainedSums.get(e.getKey()) : 0;
+			List<Long> delta = new ArrayList<Long>();
+			boolean changed = false;
+			for (int i = 0; i < buckets.length; i++) {
+				long d = buckets[i] - (previous == null ? 0 : previous[i]);
+				changed |= d != 0;
+				delta.add(d);
+			}
+			drainedBuckets.put(e.getKey(), buckets);
+			drainedSums.put(e.getKey(), sum);
+			if (changed) {
+				Map<String, Object> timer = new HashMap<String, Object>();
+				timer.put(BUCKETS_KEY, delta);
+				timer.put(SUM_KEY, sum - previousSum);
+				timerMap.put(e.getKey(), timer);
+			}
+		}
+
+		Map<String, Object> counterMap = new HashMap<String, Object>();
+		for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			long value = e.getValue().get();
+			long previous = drainedCounters.containsKey(e.getKey()) ? drainedCounters.get(e.getKey()) : 0;
+			drainedCounters.put(e.getKey(), value);
+			if (value != previous) {
+				counterMap.put(e.getKey(), value - previous);
+			}
+		}
+
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(TIMERS_KEY, timerMap);
+		map.put(COUNTERS_KEY, counterMap);
+		return map;
+	}
+
+	/**
+	 * Adds what another instance returned from {@link #drain()}, possibly
+	 * after a round trip through JSON, to this one.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the map is not something returned by drain()
+	 */
+	public void add(Map<String, Object> drained) {
+		try {
+			Map<?, ?> timerMap = (Map<?, ?>) drained.get(TIMERS_KEY);
+			if (timerMap != null) {
+				for (Map.Entry<?, ?> e : timerMap.entrySet()) {
+					Map<?, ?> timer = (Map<?, ?>) e.getValue();
+					List<?> list = (List<?>) timer.get(BUCKETS_KEY);
+					long[] buckets = new long[list.size()];
+					for (int i = 0; i < buckets.length; i++) {
+						buckets[i] = ((Number) list.get(i)).longValue();
+					}
+					getTimer((String) e.getKey()).add(buckets, ((Number) timer.get(SUM_KEY)).longValue());
+				}
+			}
+			Map<?, ?> counterMap = (Map<?, ?>) drained.get(COUNTERS_KEY);
+			if (counterMap != null) {
+				for (Map.Entry<?, ?> e : counterMap.entrySet()) {
+					count((String) e.getKey(), ((Number) e.getValue()).longValue());
+				}
+			}
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("Not a set of stage metrics: " + drained, e);
+		} catch (NullPointerException e) {
+			throw new IllegalArgumentException("Not a set of stage metrics: " + drained, e);
+		}
+	}
+}
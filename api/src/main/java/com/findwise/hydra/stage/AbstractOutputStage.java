@@ -60,4 +60,9 @@ public abstract class AbstractOutputStage extends AbstractProcessStage {
 		 */
 		return true;
 	}
+
+	@Override
+	protected boolean persist(LocalDocument doc) {
+		return true;
+	}
 }
@@ -2,6 +2,15 @@ package com.findwise.hydra.stage;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.ParseException;
 
@@ -9,6 +18,7 @@ import com.findwise.hydra.JsonException;
 import com.findwise.hydra.Logger;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.local.StageMetrics;
 
 /**
  * 
@@ -24,8 +34,42 @@ public abstract class AbstractProcessStage extends AbstractStage {
 	@Parameter(description="If set, indicates that the document being processed should be FAILED if a ProcessException is thrown by the stage. If not set, the error will only be persisted and the document written back to Hydra.")
 	private boolean failDocumentOnProcessException = false;
 	
+	@Parameter(description="Number of documents to fetch from Hydra per request. The documents are processed one at a time, in the order they were fetched. Documents of a batch that were not yet processed when the stage stops are released, so that they can be fetched again. Defaults to 1.")
+	private int fetchBatchSize = 1;
+	
+	@Parameter(description="If larger than 0, the next documents are fetched by a separate thread while the current document is processed, and documents are persisted in the background in the order they were processed. This is the maximum number of documents fetched but not yet persisted. Defaults to 0, fetching, processing and persisting one document at a time.")
+	private int pipelineDepth = 0;
+	
+	@Parameter(description="If larger than 0, documents are processed concurrently by this many threads, all sharing this stage instance and its connections to Hydra. The process method must then be thread safe. Unlike numberOfThreads, this does not create more instances of the stage. Defaults to 0, processing one document at a time.")
+	private int processingThreads = 0;
+	
+	@Parameter(description="Milliseconds to wait before polling Hydra again, the first time no document was available. Every consecutive empty poll doubles the wait, up to maxHoldInterval. Defaults to "+DEFAULT_MIN_HOLD_INTERVAL+".")
+	private int minHoldInterval = DEFAULT_MIN_HOLD_INTERVAL;
+	
+	@Parameter(description="The longest time, in milliseconds, to wait before polling Hydra again when no document was available. Defaults to "+DEFAULT_HOLD_INTERVAL+".")
+	private int maxHoldInterval = DEFAULT_HOLD_INTERVAL;
+	
+	@Parameter(description="If larger than 0, Hydra is asked to hold on to requests for documents for up to this many milliseconds, answering as soon as a matching document becomes available. The core waits for at most a minute. Defaults to 0, answering right away.")
+	private int longPollTimeout = 0;
+	
+	@Parameter(description="Milliseconds between pushes of the time spent fetching, processing and persisting documents to Hydra, which keeps the totals for every stage. 0 disables pushing. Defaults to "+DEFAULT_METRICS_INTERVAL+".")
+	private int metricsInterval = DEFAULT_METRICS_INTERVAL;
+	
 	public static final int NUM_RESERVED_ARGUMENTS = 3;
-	private long holdInterval = DEFAULT_HOLD_INTERVAL;
+	
+	public static final int DEFAULT_METRICS_INTERVAL = 10000;
+	
+	private StageMetrics metrics;
+
+	/**
+	 * Also takes the metrics that fetch, process and persist are timed in
+	 * from the RemotePipeline.
+	 */
+	@Override
+	public void setRemotePipeline(RemotePipeline rp) {
+		super.setRemotePipeline(rp);
+		metrics = rp.getMetrics();
+	}
 
 	/**
 	 * Fetches a document to be processed from the RemotePipeline
@@ -37,9 +81,27 @@ public abstract class AbstractProcessStage extends AbstractStage {
 	 */
 	protected LocalDocument fetch() throws ParseException, IOException,
 			JsonException {
+		if(fetchBatchSize > 1) {
+			return getRemotePipeline().getDocument(getQuery(), fetchBatchSize);
+		}
 		return getRemotePipeline().getDocument(getQuery());
 	}
 
+	/**
+	 * Leaves room for the fetching thread and for persisting in the 
+	 * background, besides the connections used while processing.
+	 */
+	@Override
+	protected int getDefaultMaxConnections() {
+		if(processingThreads > 0) {
+			return processingThreads + 2;
+		}
+		if(pipelineDepth > 0) {
+			return 4;
+		}
+		return super.getDefaultMaxConnections();
+	}
+
 	/**
 	 * Saves the modified document to the RemotePipeline.
 	 * 
@@ -51,10 +113,24 @@ public abstract class AbstractProcessStage extends AbstractStage {
 		return getRemotePipeline().saveCurrentDocument();
 	}
 
+	/**
+	 * Saves the modified document to the RemotePipeline. Used instead of 
+	 * persist() when documents are pipelined, since the current document of
+	 * the RemotePipeline will then already have moved on to a later document.
+	 * 
+	 * @throws IOException
+	 * @throws JsonException
+	 */
+	protected boolean persist(LocalDocument doc) throws IOException, JsonException {
+		Logger.debug("Saving document "+doc.getID()+" to RemotePipeline..");
+		return getRemotePipeline().save(doc);
+	}
+
 	/**
 	 * Handles errors when processing LocalDocuments. The standard
 	 * implementation releases the document back to the RemotePipeline and
-	 * writes a log message.
+	 * writes a log message. When documents are pipelined or processed by 
+	 * several threads, the document is saved through persist(LocalDocument).
 	 * 
 	 * @param e
 	 *            The thrown error.
@@ -64,6 +140,9 @@ public abstract class AbstractProcessStage extends AbstractStage {
 	protected boolean persistError(LocalDocument d, Exception e) throws IOException, JsonException {
 		Logger.error("Trying to release document due to error in processing", e);
 		d.addError(getStageName(), e);
+		if(processingThreads > 0 || pipelineDepth > 0) {
+			return persist(d);
+		}
 		return getRemotePipeline().saveCurrentDocument();
 	}
 	
@@ -91,30 +170,83 @@ public abstract class AbstractProcessStage extends AbstractStage {
 	 * stopStage() method.
 	 * 
 	 * The run() method operates by trying to fetch documents through fetch(),
-	 * processing by process() and then persisting by persist().
+	 * processing by process() and then persisting by persist(). Whenever no
+	 * document is available, it waits with an exponential backoff between
+	 * minHoldInterval and maxHoldInterval before fetching again.
+	 * 
+	 * If pipelineDepth is set, fetching and persisting instead happen in the
+	 * background, overlapping with process(), and documents are persisted
+	 * through persist(LocalDocument).
 	 * 
+	 * If processingThreads is set, this thread only fetches documents, which
+	 * are processed and persisted through persist(LocalDocument) by a pool of
+	 * that many threads.
+	 * 
+	 * The time spent fetching, processing and persisting is recorded in the
+	 * metrics of the RemotePipeline, which are pushed to Hydra every 
+	 * metricsInterval milliseconds and when the stage stops.
+	 * 
+	 * When the stage stops, documents fetched in a batch of fetchBatchSize
+	 * but never handed out for processing are released, so that they can be
+	 * fetched again.
 	 */
 	public void run() {
 		
 		setContinueRunning(true);
+		getRemotePipeline().setLongPollTimeout(longPollTimeout);
+
+		Timer metricsPusher = startMetricsPusher();
+		try {
+			if(processingThreads > 0) {
+				runConcurrent();
+			} else if(pipelineDepth > 0) {
+				runPipelined();
+			} else {
+				runSequential();
+			}
+		} finally {
+			releasePrefetched();
+			if(metricsPusher != null) {
+				metricsPusher.cancel();
+				pushMetrics();
+			}
+		}
+	}
 
+	private void releasePrefetched() {
+		try {
+			int released = getRemotePipeline().releasePrefetchedDocuments();
+			if(released > 0) {
+				Logger.debug("Released " + released + " fetched but unprocessed documents");
+			}
+		} catch (IOException e) {
+			Logger.warn("Unable to release fetched but unprocessed documents", e);
+		}
+	}
+
+	/**
+	 * Fetches, processes and persists one document at a time.
+	 */
+	private void runSequential() {
+		Backoff backoff = new Backoff(minHoldInterval, maxHoldInterval);
 		while (isContinueRunning()) {
 			try {
-				LocalDocument doc = fetch();
+				long fetchStart = System.currentTimeMillis();
+				LocalDocument doc = timedFetch();
 				if (doc == null) {
-					Thread.sleep(holdInterval);
+					idle(backoff, fetchStart);
 
 				} else {
+					backoff.reset();
 					try {
 						Logger.debug("Got new doc " + doc.getID()
 								+ " to process.");
-						process(doc);
-						if(!persist()) {
-							LocalDocument ld = new LocalDocument(doc.toJson());
-							IOException e = new IOException("Unable to save changes to core");
-							if(!getRemotePipeline().markFailed(ld, e)) {
-								Logger.error("Unable to persist an error to the database", e);
-							}
+						timedProcess(doc);
+						long persistStart = System.currentTimeMillis();
+						boolean persisted = persist();
+						timePersist(persistStart, persisted);
+						if(!persisted) {
+							persistFailed(doc);
 						}
 					} catch (ProcessException e) {
 						if(failDocumentOnProcessException) {
@@ -127,10 +259,294 @@ public abstract class AbstractProcessStage extends AbstractStage {
 				}
 
 			} catch (Exception e) {
-				Logger.error("Caught exception while running", e);
-				Runtime.getRuntime().removeShutdownHook(getShutDownHook());
-				System.exit(1);
+				exit(e);
+			}
+		}
+	}
+
+	/**
+	 * Fetches documents for a fixed pool of processingThreads workers,
+	 * never fetching more documents than there are idle workers. When the
+	 * stage is stopped, the documents already handed to workers are
+	 * processed before returning.
+	 */
+	private void runConcurrent() {
+		Semaphore inFlight = new Semaphore(processingThreads);
+		ExecutorService workers = Executors.newFixedThreadPool(processingThreads, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r, AbstractProcessStage.this.getName() + "-worker-" + (count++));
+			}
+		});
+
+		Backoff backoff = new Backoff(minHoldInterval, maxHoldInterval);
+		try {
+			while (isContinueRunning()) {
+				inFlight.acquire();
+				long fetchStart = System.currentTimeMillis();
+				LocalDocument doc = timedFetch();
+				if (doc == null) {
+					inFlight.release();
+					idle(backoff, fetchStart);
+				} else {
+					backoff.reset();
+					workers.execute(new Worker(doc, inFlight));
+				}
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			exit(e);
+		}
+	}
+
+	/**
+	 * Processes documents while a Fetcher keeps up to pipelineDepth documents
+	 * fetched ahead, and a single background thread persists them in the
+	 * order they were processed. When the stage is stopped, documents that
+	 * have already been fetched are processed before returning.
+	 */
+	private void runPipelined() {
+		BlockingQueue<LocalDocument> fetched = new ArrayBlockingQueue<LocalDocument>(pipelineDepth);
+		Semaphore inFlight = new Semaphore(pipelineDepth);
+		ExecutorService persister = Executors.newSingleThreadExecutor();
+		Fetcher fetcher = new Fetcher(fetched, inFlight);
+		fetcher.start();
+
+		try {
+			while (isContinueRunning()) {
+				LocalDocument doc = fetched.poll(maxHoldInterval, TimeUnit.MILLISECONDS);
+				if(doc != null) {
+					processPipelined(doc, persister, inFlight);
+				}
+			}
+			fetcher.interrupt();
+			fetcher.join();
+			
+			LocalDocument doc;
+			while((doc = fetched.poll()) != null) {
+				processPipelined(doc, persister, inFlight);
+			}
+			persister.shutdown();
+			persister.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			exit(e);
+		}
+	}
+
+	private void processPipelined(LocalDocument doc, ExecutorService persister, Semaphore inFlight) {
+		Logger.debug("Got new doc " + doc.getID() + " to process.");
+		try {
+			timedProcess(doc);
+			persister.execute(new Acknowledgement(doc, null, inFlight));
+		} catch (ProcessException e) {
+			persister.execute(new Acknowledgement(doc, e, inFlight));
+		}
+	}
+
+	/**
+	 * @return the metrics of the RemotePipeline, which fetch, process and
+	 * persist are timed in
+	 */
+	protected StageMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Fetches a document, recording how long it took and whether one was
+	 * found in the metrics of the RemotePipeline.
+	 */
+	private LocalDocument timedFetch() throws ParseException, IOException, JsonException {
+		long start = System.currentTimeMillis();
+		LocalDocument doc = fetch();
+		StageMetrics metrics = getMetrics();
+		metrics.time(StageMetrics.FETCH, System.currentTimeMillis() - start);
+		if(doc == null) {
+			metrics.count(StageMetrics.EMPTY_POLLS);
+		}
+		return doc;
+	}
+
+	private void timedProcess(LocalDocument doc) throws ProcessException {
+		long start = System.currentTimeMillis();
+		StageMetrics metrics = getMetrics();
+		try {
+			process(doc);
+		} catch (ProcessException e) {
+			metrics.count(StageMetrics.PROCESS_FAILED);
+			throw e;
+		} finally {
+			metrics.time(StageMetrics.PROCESS, System.currentTimeMillis() - start);
+			metrics.count(StageMetrics.DOCUMENTS);
+		}
+	}
+
+	private void timePersist(long start, boolean persisted) {
+		StageMetrics metrics = getMetrics();
+		metrics.time(StageMetrics.PERSIST, System.currentTimeMillis() - start);
+		if(!persisted) {
+			metrics.count(StageMetrics.PERSIST_FAILED);
+		}
+	}
+
+	/**
+	 * Starts pushing the metrics of the RemotePipeline to Hydra every
+	 * metricsInterval milliseconds, unless disabled.
+	 * 
+	 * @return the timer pushing the metrics, or null if disabled
+	 */
+	private Timer startMetricsPusher() {
+		if(metricsInterval <= 0) {
+			return null;
+		}
+		Timer timer = new Timer(getName() + "-metrics", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				pushMetrics();
+			}
+		}, metricsInterval, metricsInterval);
+		return timer;
+	}
+
+	private void pushMetrics() {
+		try {
+			getRemotePipeline().pushMetrics();
+		} catch (IOException e) {
+			Logger.warn("Unable to push metrics to Hydra", e);
+		}
+	}
+
+	/**
+	 * Waits before the next fetch, unless the core already held on to the 
+	 * fetch request waiting for a document.
+	 */
+	private void idle(Backoff backoff, long fetchStart) throws InterruptedException {
+		if(longPollTimeout > 0 && System.currentTimeMillis() - fetchStart >= longPollTimeout / 2) {
+			return;
+		}
+		backoff.sleep();
+	}
+
+	private void persistFailed(LocalDocument doc) throws IOException, JsonException {
+		LocalDocument ld = new LocalDocument(doc.toJson());
+		IOException e = new IOException("Unable to save changes to core");
+		if(!getRemotePipeline().markFailed(ld, e)) {
+			Logger.error("Unable to persist an error to the database", e);
+		}
+	}
+
+	private void exit(Exception e) {
+		Logger.error("Caught exception while running", e);
+		Runtime.getRuntime().removeShutdownHook(getShutDownHook());
+		System.exit(1);
+	}
+
+	/**
+	 * Fetches documents into the queue for as long as the stage is running,
+	 * never holding more than the permits of <code>inFlight</code> allow.
+	 * A permit is returned once a document has been acknowledged by the
+	 * core.
+	 */
+	private class Fetcher extends Thread {
+		private BlockingQueue<LocalDocument> fetched;
+		private Semaphore inFlight;
+
+		public Fetcher(BlockingQueue<LocalDocument> fetched, Semaphore inFlight) {
+			super(AbstractProcessStage.this.getName() + "-fetcher");
+			this.fetched = fetched;
+			this.inFlight = inFlight;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Backoff backoff = new Backoff(minHoldInterval, maxHoldInterval);
+			try {
+				while (isContinueRunning() && !isInterrupted()) {
+					inFlight.acquire();
+					long fetchStart = System.currentTimeMillis();
+					LocalDocument doc = timedFetch();
+					if (doc == null) {
+						inFlight.release();
+						idle(backoff, fetchStart);
+					} else {
+						backoff.reset();
+						/* Never blocks, the queue can hold every permit */
+						fetched.offer(doc);
+					}
+				}
+			} catch (InterruptedException e) {
+				Logger.debug("Fetcher interrupted, no longer fetching documents");
+			} catch (Exception e) {
+				exit(e);
+			}
+		}
+	}
+
+	/**
+	 * Processes and persists a single document on a worker thread.
+	 */
+	private class Worker implements Runnable {
+		private LocalDocument doc;
+		private Semaphore inFlight;
+
+		public Worker(LocalDocument doc, Semaphore inFlight) {
+			this.doc = doc;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		public void run() {
+			Logger.debug("Got new doc " + doc.getID() + " to process.");
+			ProcessException error = null;
+			try {
+				timedProcess(doc);
+			} catch (ProcessException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				exit(e);
+			}
+			new Acknowledgement(doc, error, inFlight).run();
+		}
+	}
+
+	/**
+	 * Persists a processed document, or the error that processing it caused.
+	 */
+	private class Acknowledgement implements Runnable {
+		private LocalDocument doc;
+		private ProcessException error;
+		private Semaphore inFlight;
+
+		public Acknowledgement(LocalDocument doc, ProcessException error, Semaphore inFlight) {
+			this.doc = doc;
+			this.error = error;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(error == null) {
+					long persistStart = System.currentTimeMillis();
+					boolean persisted = persist(doc);
+					timePersist(persistStart, persisted);
+					if(!persisted) {
+						persistFailed(doc);
+					}
+				} else if(failDocumentOnProcessException) {
+					getRemotePipeline().markFailed(doc, error);
+				} else {
+					persistError(doc, error);
+				}
+			} catch (Exception e) {
+				exit(e);
+			} finally {
+				inFlight.release();
 			}
 		}
 	}
-}
+}
\ No newline at end of file
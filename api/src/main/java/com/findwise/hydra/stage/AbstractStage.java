@@ -14,6 +14,7 @@ import com.findwise.hydra.Logger;
 import com.findwise.hydra.SerializationUtils;
 import com.findwise.hydra.local.LocalQuery;
 import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.tools.HttpConnection;
 
 /**
  * 
@@ -37,6 +38,24 @@ public abstract class AbstractStage extends Thread {
 	@Parameter(description="Number of instances (threads) to start of this stage within a single JVM. Defaults to 1.")
 	private int numberOfThreads = 1;
 	
+	@Parameter(description="Maximum number of connections each instance of this stage may have open to Hydra at once. Defaults to what one instance of the stage can use concurrently, which is 2 unless the stage says otherwise. Each instance has a pool of its own.")
+	private int maxConnections = 0;
+	
+	@Parameter(description="Milliseconds to wait for a connection to Hydra to be established. Defaults to 0, waiting indefinitely.")
+	private int connectTimeout = 0;
+	
+	@Parameter(description="Milliseconds to wait for data from Hydra before failing a request. Should be longer than any long poll timeout. Defaults to 0, waiting indefinitely.")
+	private int socketTimeout = 0;
+	
+	@Parameter(description="If set, connections to Hydra are checked for staleness before they are reused. Defaults to true.")
+	private boolean staleConnectionCheck = true;
+	
+	@Parameter(description="If set, requests to Hydra wait for a 100-continue before sending their content, which costs an extra round trip per request. Defaults to false.")
+	private boolean expectContinue = false;
+	
+	@Parameter(description="If set, documents are sent to and from Hydra as BSON rather than JSON. Defaults to false.")
+	private boolean binaryWireFormat = false;
+	
 	public LocalQuery getQuery() {
 		return query;
 	}
@@ -47,6 +66,7 @@ public abstract class AbstractStage extends Thread {
 	public static final int CMDLINE_PERFORMANCE_LOG_PARAM = 3;
 	
 	public static final int DEFAULT_HOLD_INTERVAL = 2000;
+	public static final int DEFAULT_MIN_HOLD_INTERVAL = 50;
 	private RemotePipeline remotePipeline = null;
 	private Thread shutDownHook;
 	
@@ -182,9 +202,45 @@ public abstract class AbstractStage extends Thread {
 	public void setUp(RemotePipeline rp, Map<String, Object> properties) throws IllegalArgumentException, IllegalAccessException, IOException {
 		setRemotePipeline(rp);
 		setParameters(properties);
+		configureConnection(rp.getHttpConnection());
+		rp.setBinaryWireFormat(binaryWireFormat);
 		this.createAndApplyShutDownHook();
 	}
 	
+	private void configureConnection(HttpConnection connection) {
+		connection.setMaxConnections(getMaxConnections());
+		connection.setConnectTimeout(connectTimeout);
+		connection.setSocketTimeout(socketTimeout);
+		connection.setStaleConnectionCheck(staleConnectionCheck);
+		connection.setExpectContinue(expectContinue);
+	}
+	
+	/**
+	 * @return the number of connections to Hydra this stage instance may
+	 * use, which is the maxConnections parameter if set, or 
+	 * getDefaultMaxConnections() otherwise.
+	 */
+	public int getMaxConnections() {
+		if(maxConnections > 0) {
+			return maxConnections;
+		}
+		return getDefaultMaxConnections();
+	}
+	
+	/**
+	 * Override this if the stage makes concurrent requests to Hydra. Every
+	 * instance of the stage (see numberOfThreads) has its own 
+	 * RemotePipeline and pool, so this is the number of connections one 
+	 * instance needs, by default one for the request in progress and one 
+	 * spare.
+	 * 
+	 * @return the number of connections to Hydra this stage instance can use
+	 * at once.
+	 */
+	protected int getDefaultMaxConnections() {
+		return 2;
+	}
+	
 	public static List<AbstractStage> getInstances(String[] args) {
 		List<AbstractStage> list = new ArrayList<AbstractStage>();
 		
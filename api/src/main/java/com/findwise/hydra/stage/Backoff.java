@@ -0,0 +1,59 @@
+package com.findwise.hydra.stage;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, used by stages to wait between polls for
+ * documents. Every consecutive wait doubles the interval, up to a maximum,
+ * and the actual time waited is randomized to somewhere between half and
+ * all of the interval so that stages started at the same time spread their
+ * polls out.
+ * 
+ * A Backoff is not thread safe.
+ */
+public class Backoff {
+	private final long minInterval;
+	private final long maxInterval;
+	private final Random random = new Random();
+	
+	private long interval;
+	
+	public Backoff(long minInterval, long maxInterval) {
+		this.minInterval = Math.max(1, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		reset();
+	}
+	
+	/**
+	 * @return the number of milliseconds to wait before the next poll
+	 */
+	public long next() {
+		long half = interval / 2;
+		long wait = interval - half + (long) (random.nextDouble() * (half + 1));
+		interval = Math.min(maxInterval, interval * 2);
+		return Math.min(wait, maxInterval);
+	}
+	
+	/**
+	 * Waits for the number of milliseconds returned by next().
+	 */
+	public void sleep() throws InterruptedException {
+		Thread.sleep(next());
+	}
+	
+	/**
+	 * Starts over from the minimum interval. Call this whenever a poll
+	 * was successful.
+	 */
+	public void reset() {
+		interval = minInterval;
+	}
+	
+	public long getMinInterval() {
+		return minInterval;
+	}
+	
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+}
@@ -0,0 +1,127 @@
+package com.findwise.tools;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in milliseconds, counting values into
+ * a fixed set of buckets. Recording a value costs a short scan of the bucket
+ * bounds and two atomic increments, so it can be done on every request.
+ *
+ * Percentiles are estimated from the buckets, so they are only as precise
+ * as the bucket bounds.
+ */
+public class Histogram {
+	/**
+	 * Upper bounds, in milliseconds, of the buckets used unless others are
+	 * given. Values above the last bound are counted in an overflow bucket.
+	 */
+	public static final long[] DEFAULT_BOUNDS = { 1, 2, 5, 10, 20, 50, 100,
+			200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+	private final long[] bounds;
+	private final AtomicLongArray buckets;
+	private final AtomicLong sum = new AtomicLong();
+
+	public Histogram() {
+		this(DEFAULT_BOUNDS);
+	}
+
+	/**
+	 * @param bounds the inclusive upper bounds of the buckets, in increasing
+	 * order
+	 */
+	public Histogram(long[] bounds) {
+		this.bounds = Arrays.copyOf(bounds, bounds.length);
+		buckets = new AtomicLongArray(bounds.length + 1);
+	}
+
+	public void record(long millis) {
+		int i = 0;
+		while (i < bounds.length && millis > bounds[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		sum.addAndGet(millis);
+	}
+
+	/**
+	 * @return the upper bounds of the buckets, not including the overflow
+	 * bucket
+	 */
+	public long[] getBounds() {
+		return Arrays.copyOf(bounds, bounds.length);
+	}
+
+	/**
+	 * @return the number of values in each bucket, the last one being the
+	 * overflow bucket
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[buckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the sum of all recorded values
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding the given percentile, or
+	 * the highest bound if it falls in the overflow bucket. 0 if nothing has
+	 * been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return bounds[i];
+			}
+		}
+		return bounds[bounds.length - 1];
+	}
+
+	/**
+	 * Adds the counts of another histogram with the same bounds to this one.
+	 */
+	public void add(long[] bucketCounts, long sum) {
+		if (bucketCounts.length != buckets.length()) {
+			throw new IllegalArgumentException("Expected " + buckets.length() + " buckets, got " + bucketCounts.length);
+		}
+		for (int i = 0; i < bucketCounts.length; i++) {
+			buckets.addAndGet(i, bucketCounts[i]);
+		}
+		this.sum.addAndGet(sum);
+	}
+}
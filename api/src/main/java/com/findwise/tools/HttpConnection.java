@@ -2,63 +2,227 @@ package com.findwise.tools;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 
 import com.findwise.hydra.InternalLogger;
+import com.findwise.hydra.Logger.Level;
 
+/**
+ * A pool of keep-alive connections to a single host.
+ * 
+ * By default at most {@link #DEFAULT_MAX_CONNECTIONS} connections are
+ * opened, connects and reads never time out, connections are checked for
+ * staleness before being reused and requests are sent without waiting for
+ * a 100-continue from the host. Requests turned away by a busy host with
+ * 503 Service Unavailable and a Retry-After header are retried up to 
+ * {@link #DEFAULT_MAX_UNAVAILABLE_RETRIES} times.
+ */
 public class HttpConnection {
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+	public static final int DEFAULT_MAX_UNAVAILABLE_RETRIES = 10;
+	
 	private HttpParams params;
 	private HttpHost host;
 	private DefaultHttpClient client;
+	private PoolingClientConnectionManager cm;
+	
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong failedRequests = new AtomicLong();
+	private AtomicLong unavailable = new AtomicLong();
+	
+	private int maxUnavailableRetries = DEFAULT_MAX_UNAVAILABLE_RETRIES;
 	
 	public HttpConnection(String hostName, int port) {
 		host = new HttpHost(hostName, port);
 		
-        PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
-        cm.setMaxTotal(10);
+        cm = new PoolingClientConnectionManager();
+        setMaxConnections(DEFAULT_MAX_CONNECTIONS);
 		params = new SyncBasicHttpParams();
 		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
 		HttpProtocolParams.setContentCharset(params, "UTF-8");
 		HttpProtocolParams.setUserAgent(params, "HttpComponents/1.1");
-		HttpProtocolParams.setUseExpectContinue(params, true);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
 		
         client = new DefaultHttpClient(cm, params);
 	}
 	
+	/**
+	 * Sets the number of connections that may be open to the host at once.
+	 * Requests made while all connections are in use wait for one to be
+	 * released.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		cm.setMaxTotal(maxConnections);
+		cm.setDefaultMaxPerRoute(maxConnections);
+	}
+	
+	public int getMaxConnections() {
+		return cm.getDefaultMaxPerRoute();
+	}
+	
+	/**
+	 * @param timeout
+	 *            milliseconds to wait for a connection to be established, 0
+	 *            to wait indefinitely
+	 */
+	public void setConnectTimeout(int timeout) {
+		HttpConnectionParams.setConnectionTimeout(params, timeout);
+	}
+	
+	public int getConnectTimeout() {
+		return HttpConnectionParams.getConnectionTimeout(params);
+	}
+	
+	/**
+	 * @param timeout
+	 *            milliseconds to wait for data from the host, 0 to wait
+	 *            indefinitely. Keep this longer than any long poll timeout.
+	 */
+	public void setSocketTimeout(int timeout) {
+		HttpConnectionParams.setSoTimeout(params, timeout);
+	}
+	
+	public int getSocketTimeout() {
+		return HttpConnectionParams.getSoTimeout(params);
+	}
+	
+	/**
+	 * Checking connections for staleness costs up to a few milliseconds per
+	 * request, but avoids failing requests on connections the host has
+	 * closed.
+	 */
+	public void setStaleConnectionCheck(boolean check) {
+		HttpConnectionParams.setStaleCheckingEnabled(params, check);
+	}
+	
+	public boolean isStaleConnectionCheck() {
+		return HttpConnectionParams.isStaleCheckingEnabled(params);
+	}
+	
+	/**
+	 * With expect-continue, every POST waits for the host to accept the
+	 * request headers before sending the body, which costs a round trip.
+	 */
+	public void setExpectContinue(boolean expectContinue) {
+		HttpProtocolParams.setUseExpectContinue(params, expectContinue);
+	}
+	
+	public boolean isExpectContinue() {
+		return HttpProtocolParams.useExpectContinue(params);
+	}
+	
+	/**
+	 * @return the number of connections currently in use
+	 */
+	public int getLeasedConnections() {
+		return cm.getTotalStats().getLeased();
+	}
+	
+	/**
+	 * @return the number of open connections currently idle in the pool
+	 */
+	public int getAvailableConnections() {
+		return cm.getTotalStats().getAvailable();
+	}
+	
+	/**
+	 * @return the number of requests currently waiting for a connection
+	 */
+	public int getPendingConnections() {
+		return cm.getTotalStats().getPending();
+	}
+	
+	/**
+	 * @return the number of requests made, including failed ones
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+	
+	/**
+	 * @return the number of requests that failed with an exception
+	 */
+	public long getFailedRequestCount() {
+		return failedRequests.get();
+	}
+	
+	@Override
+	public String toString() {
+		PoolStats stats = cm.getTotalStats();
+		return "HttpConnection[host=" + host + ", leased=" + stats.getLeased()
+				+ ", available=" + stats.getAvailable() + ", pending="
+				+ stats.getPending() + ", max=" + stats.getMax()
+				+ ", requests=" + requests.get() + ", failed="
+				+ failedRequests.get() + ", unavailable=" + unavailable.get() + "]";
+	}
+	
 	public HttpResponse get(String url) throws IOException {
 		return request(new HttpGet(url));
 	}
 	
 	public HttpResponse post(String url, String content) throws IOException {
-		String printable = (content.length()>100) ? content.substring(0, 100)+" [snip]..." : content;
-		InternalLogger.debug("Posting "+printable+" to "+url);
+		return post(url, content, null);
+	}
+	
+	/**
+	 * @param accept the content type wanted in the response, or 
+	 * <code>null</code> to leave it up to the host
+	 */
+	public HttpResponse post(String url, String content, String accept) throws IOException {
+		if(InternalLogger.isAllowed(Level.DEBUG)) {
+			String printable = (content.length()>100) ? content.substring(0, 100)+" [snip]..." : content;
+			InternalLogger.debug("Posting "+printable+" to "+url);
+		}
 		
-		return post(url, new StringEntity(content, "UTF-8"));
+		return post(url, new StringEntity(content, "UTF-8"), accept);
+	}
+	
+	public HttpResponse post(String url, byte[] content, String contentType, String accept) throws IOException {
+		if(InternalLogger.isAllowed(Level.DEBUG)) {
+			InternalLogger.debug("Posting "+content.length+" bytes of "+contentType+" to "+url);
+		}
+		ByteArrayEntity entity = new ByteArrayEntity(content);
+		entity.setContentType(contentType);
+		return post(url, entity, accept);
 	}
 	
 	public HttpResponse post(String url, InputStream content) throws IOException {
-		return post(url, new InputStreamEntity(content, -1));
+		return post(url, new InputStreamEntity(content, -1), null);
 	}
 	
-	private HttpResponse post(String url, HttpEntity entity) throws IOException {
+	private HttpResponse post(String url, HttpEntity entity, String accept) throws IOException {
 		HttpPost request = new HttpPost(url);
 		
 		request.setEntity(entity);
+		if(accept != null) {
+			request.setHeader(HttpHeaders.ACCEPT, accept);
+		}
 
 		return request(request);
 	}
@@ -67,7 +231,75 @@ public class HttpConnection {
 		return request(new HttpDelete(url));
 	}
 
+	/**
+	 * Sets how many times a request is retried when the host answers 503
+	 * Service Unavailable with a Retry-After header, waiting as long as the 
+	 * host asks before each retry. Requests with bodies that cannot be 
+	 * repeated, such as streams, are never retried.
+	 */
+	public void setMaxUnavailableRetries(int maxUnavailableRetries) {
+		this.maxUnavailableRetries = maxUnavailableRetries;
+	}
+	
+	public int getMaxUnavailableRetries() {
+		return maxUnavailableRetries;
+	}
+	
+	/**
+	 * @return the number of 503 Service Unavailable responses that have been
+	 * retried
+	 */
+	public long getUnavailableCount() {
+		return unavailable.get();
+	}
+	
 	private HttpResponse request(HttpRequest request) throws IOException {
-		return client.execute(host, request);
+		for(int attempt = 0; ; attempt++) {
+			HttpResponse response = execute(request);
+			if(response.getStatusLine().getStatusCode() != HttpStatus.SC_SERVICE_UNAVAILABLE 
+					|| attempt >= maxUnavailableRetries || !isRepeatable(request)) {
+				return response;
+			}
+			Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+			long wait;
+			try {
+				wait = retryAfter != null ? Long.parseLong(retryAfter.getValue().trim()) * 1000 : -1;
+			} catch (NumberFormatException e) {
+				wait = -1;
+			}
+			if(wait < 0) {
+				return response;
+			}
+			EntityUtils.consume(response.getEntity());
+			unavailable.incrementAndGet();
+			InternalLogger.debug("Host is busy, retrying in "+wait+"ms");
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry "+request.getRequestLine());
+			}
+		}
+	}
+	
+	private static boolean isRepeatable(HttpRequest request) {
+		if(request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+	private HttpResponse execute(HttpRequest request) throws IOException {
+		requests.incrementAndGet();
+		try {
+			return client.execute(host, request);
+		} catch (IOException e) {
+			failedRequests.incrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			failedRequests.incrementAndGet();
+			throw e;
+		}
 	}
 }
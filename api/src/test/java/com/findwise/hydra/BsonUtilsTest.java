@@ -0,0 +1,93 @@
+package com.findwise.hydra;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Action;
+import com.findwise.hydra.local.LocalDocument;
+
+public class BsonUtilsTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Date date = new Date();
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("string", "value with \"quotes\" and åäö");
+		map.put("int", 1);
+		map.put("long", 10000000000L);
+		map.put("double", 1.5);
+		map.put("bool", true);
+		map.put("null", null);
+		map.put("date", date);
+		map.put("list", Arrays.asList("a", 2, Arrays.asList("b")));
+		Map<String, Object> inner = new HashMap<String, Object>();
+		inner.put("x", "y");
+		map.put("map", inner);
+
+		Map<String, Object> read = BsonUtils.fromBson(BsonUtils.toBson(map));
+		Assert.assertEquals(map, read);
+		Assert.assertEquals(Integer.class, read.get("int").getClass());
+		Assert.assertEquals(Long.class, read.get("long").getClass());
+		Assert.assertEquals(date, read.get("date"));
+		Assert.assertEquals(ArrayList.class, read.get("list").getClass());
+		Assert.assertEquals(HashMap.class, read.get("map").getClass());
+		Assert.assertTrue(read.containsKey("null"));
+	}
+
+	@Test
+	public void testValuesWithoutBsonType() throws Exception {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("float", 0.5f);
+		map.put("short", (short) 3);
+		map.put("char", 'c');
+		map.put("enum", Action.ADD);
+		map.put("array", new String[] { "a", "b" });
+
+		Map<String, Object> read = BsonUtils.fromBson(BsonUtils.toBson(map));
+		Assert.assertEquals(0.5, read.get("float"));
+		Assert.assertEquals(3, read.get("short"));
+		Assert.assertEquals("c", read.get("char"));
+		Assert.assertEquals("ADD", read.get("enum"));
+		Assert.assertEquals(Arrays.asList("a", "b"), read.get("array"));
+	}
+
+	@Test
+	public void testList() throws Exception {
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 3; i++) {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("number", i);
+			maps.add(map);
+		}
+
+		List<Map<String, Object>> read = BsonUtils.listFromBson(new ByteArrayInputStream(BsonUtils.toBson(maps)));
+		Assert.assertEquals(maps, read);
+	}
+
+	@Test
+	public void testDocument() throws Exception {
+		LocalDocument ld = new LocalDocument();
+		ld.putContentField("text", "some text");
+		ld.putContentField("number", 4);
+		ld.setAction(Action.UPDATE);
+
+		LocalDocument read = new LocalDocument(BsonUtils.fromBson(ld.toBson()));
+		Assert.assertEquals("some text", read.getContentField("text"));
+		Assert.assertEquals(4, read.getContentField("number"));
+		Assert.assertEquals(Action.UPDATE, read.getAction());
+	}
+
+	@Test(expected = JsonException.class)
+	public void testInvalid() throws Exception {
+		BsonUtils.fromBson(new byte[] { 1, 2, 3 });
+	}
+}
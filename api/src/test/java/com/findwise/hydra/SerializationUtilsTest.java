@@ -1,6 +1,10 @@
 package com.findwise.hydra;
 
+import java.io.StringReader;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import junit.framework.Assert;
 
@@ -17,4 +21,68 @@ public class SerializationUtilsTest {
 		//SerializationUtils.toJson(SerializationUtils.fromJson("{_action=null, _id={_inc=-1320293295, _new=false, _time=1354236890, _machine=1951282283}, contents={id=xdIJbiV1BlSD, f=JsNOwXa1, d=DQkP, e=Umj9n, b=p5d4wNOtPbs2QC5VQ9, c=Fize, a=0SVtbmBhlPbOw, in=e, z=r1I0vOMlEs, y=f1mkaEna1L2iVdg, x=15}, metadata={touched={insertStage=Fri Nov 30 01:54:50 CET 2012, sleepy1=Fri Nov 30 01:56:42 CET 2012, sleepy3=Fri Nov 30 01:56:42 CET 2012, sleepy4=Fri Nov 30 01:56:41 CET 2012, sleepy5=Fri Nov 30 01:56:42 CET 2012, sleepy6=Fri Nov 30 01:56:41 CET 2012, sleepy7=Fri Nov 30 01:56:42 CET 2012, sleepy8=Fri Nov 30 01:56:42 CET 2012, sleepy9=Fri Nov 30 01:56:32 CET 2012}, fetched={sleepy1=Fri Nov 30 01:56:42 CET 2012, sleepy0=Fri Nov 30 01:56:42 CET 2012, sleepy3=Fri Nov 30 01:56:42 CET 2012, sleepy4=Fri Nov 30 01:56:41 CET 2012, sleepy5=Fri Nov 30 01:56:41 CET 2012, sleepy6=Fri Nov 30 01:56:41 CET 2012, sleepy7=Fri Nov 30 01:56:42 CET 2012, sleepy8=Fri Nov 30 01:56:42 CET 2012, sleepy9=Fri Nov 30 01:56:32 CET 2012}}}"));
 	}
 
+	@Test
+	public void testStreamingFromJson() throws Exception {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("string", "value");
+		map.put("int", 1);
+		map.put("long", 10000000000L);
+		map.put("double", 1.5);
+		map.put("bool", true);
+		map.put("null", null);
+		map.put("date", new Date());
+		map.put("list", Arrays.asList("a", 2));
+		Map<String, Object> inner = new HashMap<String, Object>();
+		inner.put("x", "y");
+		map.put("map", inner);
+
+		String json = SerializationUtils.toJson(map);
+		Map<String, Object> streamed = SerializationUtils.fromJson(new StringReader(json));
+		Assert.assertEquals(SerializationUtils.fromJson(json), streamed);
+		Assert.assertEquals(Integer.class, streamed.get("int").getClass());
+		Assert.assertEquals(Long.class, streamed.get("long").getClass());
+		Assert.assertEquals(Date.class, streamed.get("date").getClass());
+		Assert.assertTrue(streamed.containsKey("null"));
+	}
+
+	@Test(expected = JsonException.class)
+	public void testStreamingFromInvalidJson() throws Exception {
+		SerializationUtils.fromJson(new StringReader("{\"a\":"));
+	}
+
+	@Test
+	public void testOnlyDateShapedStringsAreDates() throws Exception {
+		Assert.assertEquals(Date.class, SerializationUtils.toObject("\"2012-11-30T01:54:50+0100\"").getClass());
+		Assert.assertEquals(String.class, SerializationUtils.toObject("\"2012-11-30T01:54:50+0100 and more\"").getClass());
+		Assert.assertEquals(String.class, SerializationUtils.toObject("\"2012-11-30 01:54:50+0100\"").getClass());
+		Assert.assertEquals(String.class, SerializationUtils.toObject("\"some text\"").getClass());
+	}
+
+	@Test
+	public void testConcurrentDates() throws Exception {
+		final String json = SerializationUtils.toJson(new Date());
+		final Object expected = SerializationUtils.toObject(json);
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 1000; j++) {
+							if (!expected.equals(SerializationUtils.toObject(json))) {
+								failed[0] = true;
+							}
+						}
+					} catch (JsonException e) {
+						failed[0] = true;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Assert.assertFalse(failed[0]);
+	}
 }
@@ -0,0 +1,46 @@
+package com.findwise.hydra.local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.findwise.hydra.SerializationUtils;
+
+public class StageMetricsTest {
+
+	@Test
+	public void testDrainReturnsChangesSinceLastDrain() throws Exception {
+		StageMetrics metrics = new StageMetrics();
+		metrics.time(StageMetrics.PROCESS, 3);
+		metrics.count(StageMetrics.DOCUMENTS);
+
+		StageMetrics total = new StageMetrics();
+		total.add(SerializationUtils.fromJson(SerializationUtils.toJson(metrics.drain())));
+		assertEquals(1, total.getTimer(StageMetrics.PROCESS).getCount());
+		assertEquals(3, total.getTimer(StageMetrics.PROCESS).getSum());
+		assertEquals(1, total.getCounter(StageMetrics.DOCUMENTS));
+
+		Map<?, ?> empty = metrics.drain();
+		assertTrue(((Map<?, ?>) empty.get(StageMetrics.TIMERS_KEY)).isEmpty());
+		assertTrue(((Map<?, ?>) empty.get(StageMetrics.COUNTERS_KEY)).isEmpty());
+
+		metrics.time(StageMetrics.PROCESS, 3000);
+		metrics.count(StageMetrics.DOCUMENTS, 2);
+		total.add(SerializationUtils.fromJson(SerializationUtils.toJson(metrics.drain())));
+		assertArrayEquals(metrics.getTimer(StageMetrics.PROCESS).getBucketCounts(), total.getTimer(StageMetrics.PROCESS).getBucketCounts());
+		assertEquals(3003, total.getTimer(StageMetrics.PROCESS).getSum());
+		assertEquals(3, total.getCounter(StageMetrics.DOCUMENTS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddMalformed() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(StageMetrics.COUNTERS_KEY, "not a map");
+		new StageMetrics().add(map);
+	}
+}
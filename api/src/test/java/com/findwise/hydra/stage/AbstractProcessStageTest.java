@@ -1,5 +1,7 @@
 package com.findwise.hydra.stage;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
@@ -11,17 +13,24 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.findwise.hydra.Logger;
 import com.findwise.hydra.Logger.Level;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalQuery;
 import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.local.StageMetrics;
 
 public class AbstractProcessStageTest {
 
@@ -38,6 +47,15 @@ public class AbstractProcessStageTest {
 
 	}
 
+	/**
+	 * @return a mocked RemotePipeline with metrics for the stage to use
+	 */
+	private static RemotePipeline mockPipeline() {
+		RemotePipeline rp = mock(RemotePipeline.class);
+		when(rp.getMetrics()).thenReturn(new StageMetrics());
+		return rp;
+	}
+
 	private AbstractProcessStage getDummyAbstractStage(RemotePipeline rp) {
 		AbstractProcessStage stage = new DummyAbstractStage();
 		stage.setRemotePipeline(rp);
@@ -101,7 +119,7 @@ public class AbstractProcessStageTest {
 	@Test
 	public void testDocumentThroughput() {
 
-		rp = mock(RemotePipeline.class);
+		rp = mockPipeline();
 		stage = getDummyAbstractStage(rp);
 
 		spy(stage);
@@ -155,7 +173,7 @@ public class AbstractProcessStageTest {
 
 	@Test
 	public void testDocumentProcessException() throws Exception {
-		rp = mock(RemotePipeline.class);
+		rp = mockPipeline();
 		stage = getErrorAbstractStage(rp);
 		spy(stage);
 
@@ -180,7 +198,7 @@ public class AbstractProcessStageTest {
 	
 	@Test
 	public void testFailDocumentOnProcessException() throws Exception {
-		rp = mock(RemotePipeline.class);
+		rp = mockPipeline();
 		stage = getErrorAbstractStage(rp);
 		HashMap<String, Object> map = new HashMap<String, Object>();
 		map.put("failDocumentOnProcessException", true);
@@ -227,7 +245,7 @@ public class AbstractProcessStageTest {
 	public void testPersistError() throws Exception {
 		ExceptionStage es = new ExceptionStage();
 		es.setName("stagename");
-		RemotePipeline rp = mock(RemotePipeline.class);
+		RemotePipeline rp = mockPipeline();
 		es.setRemotePipeline(rp);
 		
 		LocalDocument ld = mock(LocalDocument.class);
@@ -248,7 +266,7 @@ public class AbstractProcessStageTest {
 	@Test
 	public void testPersistErrorOnSaveFailiure() throws Exception {
 		Logger.setGlobalLoggingLevel(Level.DEBUG);
-		RemotePipeline rp = mock(RemotePipeline.class);
+		RemotePipeline rp = mockPipeline();
 		when(rp.getDocument(any(LocalQuery.class))).thenReturn(new LocalDocument());
 		
 		when(rp.save(any(LocalDocument.class))).thenReturn(false);
@@ -271,6 +289,149 @@ public class AbstractProcessStageTest {
 		verify(rp, times(1)).markFailed(any(LocalDocument.class), any(Throwable.class));
 	}
 	
+	@Stage
+	public static class PipelinedStage extends AbstractProcessStage {
+		private List<Object> processed = Collections.synchronizedList(new ArrayList<Object>());
+		private List<Object> persisted = Collections.synchronizedList(new ArrayList<Object>());
+
+		@Override
+		public void process(LocalDocument doc) throws ProcessException {
+			processed.add(doc.getContentField("number"));
+			if(processed.size() >= 10) {
+				stopStage();
+			}
+		}
+
+		@Override
+		protected boolean persist(LocalDocument doc) {
+			persisted.add(doc.getContentField("number"));
+			return true;
+		}
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		RemotePipeline rp = mockPipeline();
+		when(rp.getDocument(any(LocalQuery.class))).thenAnswer(new Answer<LocalDocument>() {
+			private int number = 0;
+
+			@Override
+			public LocalDocument answer(InvocationOnMock invocation) {
+				LocalDocument ld = new LocalDocument();
+				ld.putContentField("number", number++);
+				return ld;
+			}
+		});
+
+		PipelinedStage stage = new PipelinedStage();
+		stage.setRemotePipeline(rp);
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("pipelineDepth", 3);
+		stage.setParameters(map);
+
+		stage.start();
+		stage.join(10000);
+
+		assertTrue(stage.processed.size() >= 10);
+		assertEquals("All fetched documents should be persisted, in order", stage.processed, stage.persisted);
+		verify(rp, times(stage.processed.size())).getDocument(any(LocalQuery.class));
+		verify(rp, never()).saveCurrentDocument();
+	}
+
+	@Stage
+	public static class PipelinedErrorStage extends PipelinedStage {
+		@Override
+		public void process(LocalDocument doc) throws ProcessException {
+			super.process(doc);
+			throw new ProcessException("err");
+		}
+	}
+
+	@Test
+	public void testPipelinedProcessException() throws Exception {
+		RemotePipeline rp = mockPipeline();
+		when(rp.getDocument(any(LocalQuery.class))).thenAnswer(new Answer<LocalDocument>() {
+			private int number = 0;
+
+			@Override
+			public LocalDocument answer(InvocationOnMock invocation) {
+				LocalDocument ld = new LocalDocument();
+				ld.putContentField("number", number++);
+				return ld;
+			}
+		});
+
+		PipelinedStage stage = new PipelinedErrorStage();
+		stage.setRemotePipeline(rp);
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("pipelineDepth", 3);
+		stage.setParameters(map);
+
+		stage.start();
+		stage.join(10000);
+
+		assertEquals("Documents failing to process should be persisted through persist(LocalDocument)", stage.processed, stage.persisted);
+		verify(rp, never()).save(any(LocalDocument.class));
+		verify(rp, never()).saveCurrentDocument();
+	}
+
+	@Stage
+	public static class ConcurrentStage extends AbstractProcessStage {
+		private AtomicInteger running = new AtomicInteger();
+		private AtomicInteger maxRunning = new AtomicInteger();
+		private AtomicInteger processed = new AtomicInteger();
+		private AtomicInteger persisted = new AtomicInteger();
+
+		@Override
+		public void process(LocalDocument doc) throws ProcessException {
+			int now = running.incrementAndGet();
+			synchronized (maxRunning) {
+				maxRunning.set(Math.max(maxRunning.get(), now));
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			if(processed.incrementAndGet() >= 20) {
+				stopStage();
+			}
+		}
+
+		@Override
+		protected boolean persist(LocalDocument doc) {
+			persisted.incrementAndGet();
+			return true;
+		}
+	}
+
+	@Test
+	public void testProcessingThreads() throws Exception {
+		RemotePipeline rp = mockPipeline();
+		when(rp.getDocument(any(LocalQuery.class))).thenAnswer(new Answer<LocalDocument>() {
+			@Override
+			public LocalDocument answer(InvocationOnMock invocation) {
+				return new LocalDocument();
+			}
+		});
+
+		ConcurrentStage stage = new ConcurrentStage();
+		stage.setRemotePipeline(rp);
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("processingThreads", 4);
+		stage.setParameters(map);
+
+		stage.start();
+		stage.join(10000);
+
+		assertTrue(stage.maxRunning.get() > 1);
+		assertTrue(stage.maxRunning.get() <= 4);
+		assertEquals("All fetched documents should be persisted", stage.processed.get(), stage.persisted.get());
+		verify(rp, times(stage.processed.get())).getDocument(any(LocalQuery.class));
+		assertEquals(6, stage.getMaxConnections());
+	}
+
 	public static class ExceptionStage extends AbstractProcessStage {
 
 		@Override
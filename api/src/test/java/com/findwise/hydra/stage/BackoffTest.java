@@ -0,0 +1,42 @@
+package com.findwise.hydra.stage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackoffTest {
+
+	@Test
+	public void testGrowsToMax() {
+		Backoff backoff = new Backoff(10, 1000);
+		long previousMax = 0;
+		for(int i=0; i<20; i++) {
+			long wait = backoff.next();
+			long interval = Math.min(1000, 10L << Math.min(i, 20));
+			assertTrue("Waited "+wait+" for interval "+interval, wait >= interval / 2);
+			assertTrue("Waited "+wait+" for interval "+interval, wait <= interval);
+			previousMax = Math.max(previousMax, wait);
+		}
+		assertTrue(previousMax >= 500);
+	}
+
+	@Test
+	public void testReset() {
+		Backoff backoff = new Backoff(10, 1000);
+		for(int i=0; i<10; i++) {
+			backoff.next();
+		}
+		backoff.reset();
+		assertTrue(backoff.next() <= 10);
+	}
+
+	@Test
+	public void testBounds() {
+		Backoff backoff = new Backoff(0, -1);
+		assertEquals(1, backoff.getMinInterval());
+		assertEquals(1, backoff.getMaxInterval());
+		assertEquals(1, backoff.next());
+		assertEquals(1, backoff.next());
+	}
+}
@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import com.findwise.hydra.SerializationUtils;
@@ -114,6 +115,19 @@ public class StageTest {
 		
 	}
 
+	@Test
+	public void testMaxConnectionsArePerInstance() throws Exception {
+		ProcessStage ps = new ProcessStage();
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("numberOfThreads", 8);
+		ps.setParameters(map);
+		assertEquals(2, ps.getMaxConnections());
+
+		map.put("maxConnections", 5);
+		ps.setParameters(map);
+		assertEquals(5, ps.getMaxConnections());
+	}
+
 	@Stage
 	public static class ProcessStage extends AbstractProcessStage {
 		@Parameter
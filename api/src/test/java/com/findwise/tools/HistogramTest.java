@@ -0,0 +1,53 @@
+package com.findwise.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testRecord() {
+		Histogram h = new Histogram(new long[] { 10, 100 });
+		h.record(0);
+		h.record(10);
+		h.record(11);
+		h.record(1000);
+		assertArrayEquals(new long[] { 2, 1, 1 }, h.getBucketCounts());
+		assertEquals(4, h.getCount());
+		assertEquals(1021, h.getSum());
+		assertEquals(1021 / 4.0, h.getMean(), 0.0001);
+	}
+
+	@Test
+	public void testPercentile() {
+		Histogram h = new Histogram(new long[] { 10, 100, 1000 });
+		assertEquals(0, h.getPercentile(50));
+		for (int i = 0; i < 90; i++) {
+			h.record(5);
+		}
+		for (int i = 0; i < 9; i++) {
+			h.record(50);
+		}
+		h.record(5000);
+		assertEquals(10, h.getPercentile(50));
+		assertEquals(10, h.getPercentile(90));
+		assertEquals(100, h.getPercentile(99));
+		assertEquals(1000, h.getPercentile(100));
+	}
+
+	@Test
+	public void testAdd() {
+		Histogram h = new Histogram(new long[] { 10 });
+		h.record(1);
+		h.add(new long[] { 2, 3 }, 100);
+		assertArrayEquals(new long[] { 3, 3 }, h.getBucketCounts());
+		assertEquals(101, h.getSum());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddMismatchedBuckets() {
+		new Histogram().add(new long[] { 1 }, 1);
+	}
+}
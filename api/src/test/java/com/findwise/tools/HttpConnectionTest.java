@@ -0,0 +1,51 @@
+package com.findwise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HttpConnectionTest {
+
+	@Test
+	public void testDefaults() {
+		HttpConnection connection = new HttpConnection("localhost", 12001);
+		assertEquals(HttpConnection.DEFAULT_MAX_CONNECTIONS, connection.getMaxConnections());
+		assertFalse(connection.isExpectContinue());
+		assertTrue(connection.isStaleConnectionCheck());
+		assertEquals(0, connection.getConnectTimeout());
+		assertEquals(0, connection.getSocketTimeout());
+		assertEquals(0, connection.getLeasedConnections());
+		assertEquals(0, connection.getRequestCount());
+	}
+
+	@Test
+	public void testConfiguration() {
+		HttpConnection connection = new HttpConnection("localhost", 12001);
+		connection.setMaxConnections(20);
+		connection.setExpectContinue(true);
+		connection.setStaleConnectionCheck(false);
+		connection.setConnectTimeout(1000);
+		connection.setSocketTimeout(2000);
+
+		assertEquals(20, connection.getMaxConnections());
+		assertTrue(connection.isExpectContinue());
+		assertFalse(connection.isStaleConnectionCheck());
+		assertEquals(1000, connection.getConnectTimeout());
+		assertEquals(2000, connection.getSocketTimeout());
+	}
+
+	@Test
+	public void testFailedRequestsCounted() {
+		HttpConnection connection = new HttpConnection("localhost", 1);
+		connection.setConnectTimeout(1000);
+		try {
+			connection.get("/");
+		} catch (Exception e) {
+		}
+		assertEquals(1, connection.getRequestCount());
+		assertEquals(1, connection.getFailedRequestCount());
+		assertEquals(0, connection.getLeasedConnections());
+	}
+}
@@ -0,0 +1,59 @@
+package com.findwise.hydra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.tools.Comparator;
+
+/**
+ * Compares a document's content with a copy that has been through a JSON
+ * round trip, so that numbers have changed type the way they do when
+ * documents travel between core and stages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComparatorBenchmark {
+	@Param({ Documents.SMALL, Documents.LARGE, Documents.NESTED })
+	public String shape;
+
+	private Object original;
+	private Object copy;
+	private Integer integer;
+	private Double decimal;
+
+	@Setup
+	public void setUp() throws JsonException {
+		LocalDocument ld = Documents.create(shape);
+		original = ld.getContentMap();
+		copy = new LocalDocument(ld.toJson()).getContentMap();
+		integer = 4711;
+		decimal = 4711.0;
+	}
+
+	@Benchmark
+	public boolean equalsContent() {
+		return Comparator.equals(original, copy);
+	}
+
+	@Benchmark
+	public boolean equalsNumbers() {
+		return Comparator.equals(integer, decimal);
+	}
+}
@@ -0,0 +1,106 @@
+package com.findwise.hydra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * Document shapes shared by the benchmarks. All documents are built from a
+ * fixed seed so that runs are comparable.
+ */
+public final class Documents {
+	public static final String SMALL = "small";
+	public static final String LARGE = "large";
+	public static final String NESTED = "nested";
+
+	private static final int LARGE_TEXT_SIZE = 1024 * 1024;
+	private static final int NESTING_DEPTH = 12;
+
+	private static final String[] WORDS = { "hydra", "pipeline", "document",
+			"stage", "search", "index", "content", "metadata", "query", "field" };
+
+	private Documents() {
+	}
+
+	/**
+	 * @param shape
+	 *            one of {@link #SMALL}, {@link #LARGE} or {@link #NESTED}
+	 */
+	public static LocalDocument create(String shape) {
+		if (SMALL.equals(shape)) {
+			return small();
+		} else if (LARGE.equals(shape)) {
+			return large();
+		} else if (NESTED.equals(shape)) {
+			return nested();
+		}
+		throw new IllegalArgumentException("Unknown document shape: " + shape);
+	}
+
+	/**
+	 * A typical connector output: a handful of short metadata fields.
+	 */
+	public static LocalDocument small() {
+		LocalDocument ld = new LocalDocument();
+		ld.putContentField("id", "http://www.example.com/documents/12345");
+		ld.putContentField("title", "A short document title");
+		ld.putContentField("author", "Jane Doe");
+		ld.putContentField("modified", new Date(1356998400000L));
+		ld.putContentField("size", 4711);
+		ld.putContentField("score", 0.75);
+		ld.putContentField("published", true);
+		List<String> tags = new ArrayList<String>();
+		tags.add("news");
+		tags.add("internal");
+		tags.add("2013");
+		ld.putContentField("tags", tags);
+		return ld;
+	}
+
+	/**
+	 * A small document with a 1 MB extracted text field.
+	 */
+	public static LocalDocument large() {
+		LocalDocument ld = small();
+		ld.putContentField("content", text(LARGE_TEXT_SIZE));
+		return ld;
+	}
+
+	/**
+	 * A small document with a field holding deeply nested lists and maps.
+	 */
+	public static LocalDocument nested() {
+		LocalDocument ld = small();
+		ld.putContentField("structure", nestedList(NESTING_DEPTH));
+		return ld;
+	}
+
+	public static String text(int length) {
+		Random random = new Random(length);
+		StringBuilder sb = new StringBuilder(length + 16);
+		while (sb.length() < length) {
+			sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		sb.setLength(length);
+		return sb.toString();
+	}
+
+	private static List<Object> nestedList(int depth) {
+		List<Object> list = new ArrayList<Object>();
+		list.add(depth);
+		list.add("level " + depth);
+		if (depth > 0) {
+			list.add(nestedList(depth - 1));
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("depth", depth);
+			map.put("child", nestedList(Math.max(0, depth - 2)));
+			list.add(map);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,53 @@
+package com.findwise.hydra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalDocument;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalDocumentBenchmark {
+	@Param({ Documents.SMALL, Documents.LARGE, Documents.NESTED })
+	public String shape;
+
+	private String json;
+	private LocalDocument modified;
+
+	@Setup
+	public void setUp() throws JsonException {
+		json = Documents.create(shape).toJson();
+
+		/* What a stage sends back: a fetched document with a few changed fields */
+		modified = new LocalDocument(json);
+		modified.markSynced();
+		modified.putContentField("title", "A changed document title");
+		modified.putContentField("language", "en");
+	}
+
+	@Benchmark
+	public LocalDocument parse() throws JsonException {
+		return new LocalDocument(json);
+	}
+
+	@Benchmark
+	public String modifiedFieldsToJson() {
+		return modified.modifiedFieldsToJson();
+	}
+}
@@ -0,0 +1,65 @@
+package com.findwise.hydra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryQuery;
+
+/**
+ * Measures evaluating a typical stage query against a single document, which
+ * is what the in-memory database does for every stored document on each
+ * fetch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryQueryBenchmark {
+	@Param({ Documents.SMALL, Documents.LARGE, Documents.NESTED })
+	public String shape;
+
+	private MemoryDocument document;
+	private MemoryQuery matching;
+	private MemoryQuery failing;
+
+	@Setup
+	public void setUp() {
+		MemoryConnector connector = new MemoryConnector();
+		document = (MemoryDocument) connector.convert(Documents.create(shape));
+
+		matching = new MemoryQuery();
+		matching.requireContentFieldExists("title");
+		matching.requireContentFieldEquals("author", "Jane Doe");
+		matching.requireContentFieldNotExists("language");
+		matching.requireNotTouchedByStage("stage");
+
+		failing = new MemoryQuery();
+		failing.requireContentFieldExists("title");
+		failing.requireContentFieldEquals("author", "John Doe");
+	}
+
+	@Benchmark
+	public boolean matches() {
+		return document.matches(matching);
+	}
+
+	@Benchmark
+	public boolean notMatches() {
+		return document.matches(failing);
+	}
+}
@@ -0,0 +1,81 @@
+package com.findwise.hydra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.DatabaseConfiguration;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.mongodb.MongoConnector;
+import com.findwise.hydra.mongodb.MongoType;
+
+/**
+ * Measures the conversion of a stage document into a MongoDB document. No
+ * connection to a database is made.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoConvertBenchmark {
+	@Param({ Documents.SMALL, Documents.LARGE, Documents.NESTED })
+	public String shape;
+
+	private MongoConnector connector;
+	private LocalDocument document;
+
+	@Setup
+	public void setUp() {
+		connector = new MongoConnector(new DatabaseConfiguration() {
+			@Override
+			public String getNamespace() {
+				return "benchmarks";
+			}
+
+			@Override
+			public String getDatabaseUrl() {
+				return "localhost";
+			}
+
+			@Override
+			public String getDatabaseUser() {
+				return "";
+			}
+
+			@Override
+			public String getDatabasePassword() {
+				return "";
+			}
+
+			@Override
+			public int getOldMaxSize() {
+				return 0;
+			}
+
+			@Override
+			public int getOldMaxCount() {
+				return 0;
+			}
+		});
+		document = Documents.create(shape);
+	}
+
+	@Benchmark
+	public DatabaseDocument<MongoType> convert() throws ConversionException {
+		return connector.convert(document);
+	}
+}
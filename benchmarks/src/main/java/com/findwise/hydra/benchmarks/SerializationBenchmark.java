@@ -0,0 +1,55 @@
+package com.findwise.hydra.benchmarks;
+
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.SerializationUtils;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	@Param({ Documents.SMALL, Documents.LARGE, Documents.NESTED })
+	public String shape;
+
+	private Map<String, Object> map;
+	private String json;
+
+	@Setup
+	public void setUp() {
+		map = Documents.create(shape).toMap();
+		json = SerializationUtils.toJson(map);
+	}
+
+	@Benchmark
+	public String toJson() {
+		return SerializationUtils.toJson(map);
+	}
+
+	@Benchmark
+	public Map<String, Object> fromJson() throws JsonException {
+		return SerializationUtils.fromJson(json);
+	}
+
+	@Benchmark
+	public Map<String, Object> fromJsonReader() throws JsonException {
+		return SerializationUtils.fromJson(new StringReader(json));
+	}
+}
@@ -0,0 +1,227 @@
+package com.findwise.hydra;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps this core registered in the cluster and decides which stage groups
+ * it should run, when several cores share one database.
+ *
+ * Each group is preferred by one of the live nodes, picked by rendezvous
+ * hashing of the node ids and the group name. A node takes the lease on the
+ * groups it prefers and gives up the leases on groups that another live node
+ * prefers. When a node stops sending heartbeats it drops out of the live
+ * nodes, its groups become preferred by others, and they take them over once
+ * its leases have expired. Adding a node only moves the groups it becomes
+ * preferred for.
+ */
+public class ClusterManager extends Thread {
+	public static final long DEFAULT_HEARTBEAT_MS = 5000;
+
+	/**
+	 * How many heartbeat intervals a node registration or a lease lasts
+	 * without being renewed.
+	 */
+	static final int TTL_HEARTBEATS = 3;
+
+	private static Logger logger = LoggerFactory.getLogger(ClusterManager.class);
+
+	/**
+	 * What the cluster manager assigns groups to.
+	 */
+	public interface Listener {
+		/**
+		 * @return the names of all groups in the pipeline
+		 */
+		Set<String> getGroupNames();
+
+		/**
+		 * Called from the cluster manager thread whenever the set of groups
+		 * held by this node has changed.
+		 */
+		void assignmentChanged();
+	}
+
+	private ClusterCoordinator coordinator;
+	private String nodeId;
+	private long heartbeatMs;
+	private long ttlMs;
+	private Listener listener;
+
+	private Set<String> held = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private Set<String> announced = new HashSet<String>();
+	private long lastTick;
+
+	public ClusterManager(ClusterCoordinator coordinator, String nodeId, long heartbeatMs, Listener listener) {
+		super("ClusterManager-" + nodeId);
+		setDaemon(true);
+		this.coordinator = coordinator;
+		this.nodeId = nodeId;
+		this.heartbeatMs = heartbeatMs;
+		this.ttlMs = heartbeatMs * TTL_HEARTBEATS;
+		this.listener = listener;
+	}
+
+	@Override
+	public void run() {
+		logger.info("Joining the cluster as " + nodeId);
+		try {
+			while (!isInterrupted()) {
+				try {
+					tick();
+				} catch (RuntimeException e) {
+					logger.error("Unable to coordinate with the cluster", e);
+					dropIfStale();
+				}
+				try {
+					Thread.sleep(heartbeatMs);
+				} catch (InterruptedException e) {
+					interrupt();
+				}
+			}
+		} finally {
+			leave();
+		}
+	}
+
+	/**
+	 * Sends a heartbeat and takes, renews or gives up leases so that this
+	 * node holds the groups it is preferred for.
+	 */
+	void tick() {
+		coordinator.heartbeat(nodeId, ttlMs);
+		Set<String> live = coordinator.getLiveNodes();
+		live.add(nodeId);
+
+		Set<String> groups = listener.getGroupNames();
+		for (String group : groups) {
+			if (nodeId.equals(getPreferredNode(group, live))) {
+				if (coordinator.acquireLease(group, nodeId, ttlMs)) {
+					held.add(group);
+				} else {
+					held.remove(group);
+				}
+			} else if (held.contains(group)) {
+				logger.info("Handing over stage group " + group + " to " + getPreferredNode(group, live));
+				coordinator.releaseLease(group, nodeId);
+				held.remove(group);
+			}
+		}
+		for (String group : new HashSet<String>(held)) {
+			if (!groups.contains(group)) {
+				coordinator.releaseLease(group, nodeId);
+				held.remove(group);
+			}
+		}
+		lastTick = System.currentTimeMillis();
+		announce();
+	}
+
+	private void announce() {
+		if (!announced.equals(held)) {
+			announced = new HashSet<String>(held);
+			logger.info("Now running stage groups " + announced);
+			listener.assignmentChanged();
+		}
+	}
+
+	/**
+	 * Stops running all groups if the leases on them may have expired
+	 * without being renewed, since other nodes may then have taken them.
+	 */
+	private void dropIfStale() {
+		if (!held.isEmpty() && System.currentTimeMillis() - lastTick >= ttlMs) {
+			logger.warn("Leases could not be renewed, stopping all stage groups");
+			held.clear();
+		}
+		announce();
+	}
+
+	/**
+	 * Gives up all leases and removes this node from the cluster.
+	 */
+	public void leave() {
+		held.clear();
+		try {
+			coordinator.unregister(nodeId);
+			logger.info("Left the cluster as " + nodeId);
+		} catch (RuntimeException e) {
+			logger.error("Unable to leave the cluster, leases will expire in " + ttlMs + " ms", e);
+		}
+	}
+
+	public boolean isHolding(String group) {
+		return held.contains(group);
+	}
+
+	public Set<String> getHeldGroups() {
+		return new HashSet<String>(held);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return the node with the highest rendezvous hash for the group, or
+	 *         null if there are no nodes
+	 */
+	static String getPreferredNode(String group, Set<String> nodes) {
+		String preferred = null;
+		long best = Long.MIN_VALUE;
+		for (String node : nodes) {
+			long h = hash(node, group);
+			if (preferred == null || h > best || (h == best && node.compareTo(preferred) < 0)) {
+				preferred = node;
+				best = h;
+			}
+		}
+		return preferred;
+	}
+
+	private static long hash(String node, String group) {
+		long h = 0xcbf29ce484222325L;
+		String key = node + '\u0000' + group;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @return the configured node id, or the default node id for the REST
+	 *         port if none is configured
+	 */
+	public static String getNodeId(CoreConfiguration conf) {
+		String nodeId = conf.getClusterNodeId();
+		if (nodeId == null) {
+			nodeId = getDefaultNodeId(conf.getRestPort());
+		}
+		return nodeId;
+	}
+
+	/**
+	 * @return the host name of this machine and the port, which identifies
+	 *         a core unless several share one machine and port
+	 */
+	public static String getDefaultNodeId(int port) {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "localhost";
+		}
+		return host + ":" + port;
+	}
+}
@@ -2,8 +2,65 @@ package com.findwise.hydra;
 
 public interface CoreConfiguration extends Configuration, DatabaseConfiguration {
 	static final String PERFORMANCE_LOGGING = "performance_logging";
+	static final String CACHE_SIZE_MB = "cache_size_mb";
+	static final String IO_THREADS = "io_threads";
+	static final String WORKER_THREADS = "worker_threads";
+	static final String WORKER_QUEUE_SIZE = "worker_queue_size";
+	static final String METRICS = "metrics";
+	static final String CLUSTER = "cluster";
+	static final String CLUSTER_NODE_ID = "cluster_node_id";
+	static final String CLUSTER_HEARTBEAT_MS = "cluster_heartbeat_ms";
+	
+	static final int WORKER_THREADS_DEFAULT = 16;
+	static final int WORKER_QUEUE_SIZE_DEFAULT = 1000;
 	
 	int getPollingInterval();
 	
 	boolean isPerformanceLogging();
+	
+	/**
+	 * @return the size of the in-process document cache, or 0 if it is disabled
+	 */
+	int getCacheSizeMB();
+	
+	/**
+	 * @return the number of threads accepting and reading requests in the 
+	 * REST server, or 0 to use one per processor
+	 */
+	int getIoThreads();
+	
+	/**
+	 * @return the number of threads handling requests in the REST server, or
+	 * 0 to handle them on the I/O threads
+	 */
+	int getWorkerThreads();
+	
+	/**
+	 * @return the number of requests that may wait for a worker thread before
+	 * the REST server starts answering 503 Service Unavailable
+	 */
+	int getWorkerQueueSize();
+	
+	/**
+	 * @return whether request metrics are recorded and served at /metrics
+	 */
+	boolean isMetricsEnabled();
+	
+	/**
+	 * @return whether this core shares its database with other cores, running
+	 * only the stage groups it holds the lease on
+	 */
+	boolean isClusterMode();
+	
+	/**
+	 * @return the id of this core in the cluster, which must be unique, or 
+	 * null to use the host name and REST port
+	 */
+	String getClusterNodeId();
+	
+	/**
+	 * @return how often this core renews its registration and leases in 
+	 * cluster mode. Cores that miss three heartbeats lose their stage groups.
+	 */
+	long getClusterHeartbeatMs();
 }
@@ -76,4 +76,44 @@ public class FileConfiguration implements CoreConfiguration {
 	public boolean isPerformanceLogging() {
 		return conf.getBoolean(PERFORMANCE_LOGGING, false);
 	}
+
+	@Override
+	public int getCacheSizeMB() {
+		return conf.getInt(CACHE_SIZE_MB, 0);
+	}
+
+	@Override
+	public int getIoThreads() {
+		return conf.getInt(IO_THREADS, 0);
+	}
+
+	@Override
+	public int getWorkerThreads() {
+		return conf.getInt(WORKER_THREADS, WORKER_THREADS_DEFAULT);
+	}
+
+	@Override
+	public int getWorkerQueueSize() {
+		return conf.getInt(WORKER_QUEUE_SIZE, WORKER_QUEUE_SIZE_DEFAULT);
+	}
+
+	@Override
+	public boolean isMetricsEnabled() {
+		return conf.getBoolean(METRICS, true);
+	}
+
+	@Override
+	public boolean isClusterMode() {
+		return conf.getBoolean(CLUSTER, false);
+	}
+
+	@Override
+	public String getClusterNodeId() {
+		return conf.getString(CLUSTER_NODE_ID, null);
+	}
+
+	@Override
+	public long getClusterHeartbeatMs() {
+		return conf.getLong(CLUSTER_HEARTBEAT_MS, ClusterManager.DEFAULT_HEARTBEAT_MS);
+	}
 }
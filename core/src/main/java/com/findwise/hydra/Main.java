@@ -31,12 +31,29 @@ public final class Main {
 		}
 		
 		DatabaseConnector<MongoType> backing = new MongoConnector(conf);
-//		DatabaseConnector<MemoryType> cache = new MemoryConnector();
+		if(conf.getCacheSizeMB() > 0) {
+			logger.info("Using an in-process document cache of "+conf.getCacheSizeMB()+" MB");
+			Cache<MongoType> cache = new OffHeapCache<MongoType>(backing, conf.getCacheSizeMB() * 1024L * 1024L);
+			final CachingDatabaseConnector<MongoType> caching = new CachingDatabaseConnector<MongoType>(backing, cache);
+			if(conf.isClusterMode()) {
+				caching.setNodeId(ClusterManager.getNodeId(conf));
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					caching.shutdown();
+				}
+			});
+			backing = caching;
+		}
 		
 		NodeMaster<MongoType> nm = new NodeMaster<MongoType>(conf, backing, new Pipeline());
-		//NodeMaster<MemoryType> nm = new NodeMaster<MemoryType>(conf, new CachingDatabaseConnector<MongoType, MemoryType>(backing, cache), new Pipeline());
 
-		RESTServer server = new RESTServer(conf, new HttpRESTHandler<MongoType>(nm.getDatabaseConnector(), conf.isPerformanceLogging()));
+		HttpRESTHandler<MongoType> handler = new HttpRESTHandler<MongoType>(nm.getDatabaseConnector(), conf.isPerformanceLogging());
+		if (!conf.isMetricsEnabled()) {
+			handler.setMetrics(null);
+		}
+		RESTServer server = new RESTServer(conf, handler);
 
 		if (!server.blockingStart()) {
 			if (server.hasError()) {
@@ -105,4 +105,76 @@ public class MapConfiguration implements CoreConfiguration {
 	public boolean isPerformanceLogging() {
 		return Boolean.parseBoolean(getParameter(PERFORMANCE_LOGGING, "false"));
 	}
+
+	public void setCacheSizeMB(int size) {
+		map.put(CACHE_SIZE_MB, ""+size);
+	}
+
+	@Override
+	public int getCacheSizeMB() {
+		return Integer.parseInt(getParameter(CACHE_SIZE_MB, "0"));
+	}
+
+	public void setIoThreads(int threads) {
+		map.put(IO_THREADS, ""+threads);
+	}
+
+	@Override
+	public int getIoThreads() {
+		return Integer.parseInt(getParameter(IO_THREADS, "0"));
+	}
+
+	public void setWorkerThreads(int threads) {
+		map.put(WORKER_THREADS, ""+threads);
+	}
+
+	@Override
+	public int getWorkerThreads() {
+		return Integer.parseInt(getParameter(WORKER_THREADS, ""+WORKER_THREADS_DEFAULT));
+	}
+
+	public void setWorkerQueueSize(int size) {
+		map.put(WORKER_QUEUE_SIZE, ""+size);
+	}
+
+	@Override
+	public int getWorkerQueueSize() {
+		return Integer.parseInt(getParameter(WORKER_QUEUE_SIZE, ""+WORKER_QUEUE_SIZE_DEFAULT));
+	}
+
+	public void setMetricsEnabled(boolean enabled) {
+		map.put(METRICS, ""+enabled);
+	}
+
+	@Override
+	public boolean isMetricsEnabled() {
+		return Boolean.parseBoolean(getParameter(METRICS, "true"));
+	}
+
+	public void setClusterMode(boolean enabled) {
+		map.put(CLUSTER, ""+enabled);
+	}
+
+	@Override
+	public boolean isClusterMode() {
+		return Boolean.parseBoolean(getParameter(CLUSTER, "false"));
+	}
+
+	public void setClusterNodeId(String nodeId) {
+		map.put(CLUSTER_NODE_ID, nodeId);
+	}
+
+	@Override
+	public String getClusterNodeId() {
+		return getParameter(CLUSTER_NODE_ID, null);
+	}
+
+	public void setClusterHeartbeatMs(long heartbeatMs) {
+		map.put(CLUSTER_HEARTBEAT_MS, ""+heartbeatMs);
+	}
+
+	@Override
+	public long getClusterHeartbeatMs() {
+		return Long.parseLong(getParameter(CLUSTER_HEARTBEAT_MS, ""+ClusterManager.DEFAULT_HEARTBEAT_MS));
+	}
 }
@@ -24,6 +24,8 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 	
 	private CoreConfiguration conf;
 	
+	private ClusterManager cluster;
+	
 	public NodeMaster(CoreConfiguration conf, DatabaseConnector<T> dbc, Pipeline pipeline) {
 		this.conf = conf;
 		this.dbc = dbc;
@@ -34,7 +36,8 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		this.namespace = conf.getNamespace();
 	}
 	/**
-	 * Starts the NodeMaster.
+	 * Starts the NodeMaster. In cluster mode, this also joins the cluster, 
+	 * and only the stage groups this core holds the lease on will be run.
 	 */
 	public void blockingStart() throws IOException {
 
@@ -45,8 +48,33 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 			throw e;
 		}
 		
+		if(conf.isClusterMode()) {
+			startCluster();
+		}
+		
 		super.start();
 	}
+	
+	private void startCluster() {
+		cluster = new ClusterManager(dbc.getClusterCoordinator(), ClusterManager.getNodeId(conf), conf.getClusterHeartbeatMs(), new ClusterManager.Listener() {
+			@Override
+			public Set<String> getGroupNames() {
+				return NodeMaster.this.getGroupNames();
+			}
+			
+			@Override
+			public void assignmentChanged() {
+				NodeMaster.this.assignmentChanged();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				cluster.leave();
+			}
+		});
+		cluster.start();
+	}
 
 	public void run() {
 		while (!isInterrupted()) {
@@ -54,8 +82,10 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 			if(!pipeline.equals(newPipeline)) {
 				logger.info("Pipeline has been updated");
 				try {
-					updatePipeline(newPipeline);
-					startStopped();
+					synchronized (this) {
+						updatePipeline(newPipeline);
+						startStopped();
+					}
 				} catch (IOException e) {
 					logger.error("An IOException occurred while updating the pipeline");
 					throw new IllegalStateException(e);
@@ -71,6 +101,51 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 				interrupt();
 			}
 		}
+		if(cluster != null) {
+			cluster.interrupt();
+		}
+	}
+	
+	private synchronized Set<String> getGroupNames() {
+		Set<String> names = new HashSet<String>();
+		for(StageGroup group : pipeline.getStageGroups()) {
+			names.add(group.getName());
+		}
+		return names;
+	}
+	
+	/**
+	 * Starts runners for the groups this core has been assigned, and stops
+	 * the runners of groups it no longer holds. Runners are always created
+	 * anew, since a stopped runner cannot be started again.
+	 */
+	private synchronized void assignmentChanged() {
+		for(StageGroup group : pipeline.getStageGroups()) {
+			String name = group.getName();
+			if(isAssigned(name) && !sm.hasRunner(name)) {
+				if(!addRunner(group)) {
+					continue;
+				}
+				try {
+					sm.getRunner(name).prepare();
+					sm.getRunner(name).start();
+				} catch (IOException e) {
+					logger.error("Unable to start the stage group '"+name+"'", e);
+				}
+			} else if(!isAssigned(name) && sm.hasRunner(name)) {
+				logger.info("Stopping the stage group '"+name+"', which is now run by another core");
+				stopGroup(name);
+				sm.removeRunner(name);
+			}
+		}
+	}
+	
+	/**
+	 * @return whether this core should run the group, which it always should
+	 * unless it is in cluster mode
+	 */
+	private boolean isAssigned(String group) {
+		return cluster == null || cluster.isHolding(group);
 	}
 	
 	private void startStopped() throws IOException {
@@ -126,15 +201,22 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		for(StageGroup group : newPipeline.getStageGroups()) {
 			if(!pipeline.hasGroup(group.getName())) {
 				pipeline.addGroup(group);
-				if(attachFiles(group)) {
-					sm.addRunner(new StageRunner(group, new File(namespace), port, conf.isPerformanceLogging()));
-				} else {
-					logger.error("Was unable to start the stage group '"+group.getName()+"' due to missing libraries.");
+				if(isAssigned(group.getName())) {
+					addRunner(group);
 				}
 			}
 		}
 	}
 	
+	private boolean addRunner(StageGroup group) {
+		if(attachFiles(group)) {
+			sm.addRunner(new StageRunner(group, new File(namespace), port, conf.isPerformanceLogging()));
+			return true;
+		}
+		logger.error("Was unable to start the stage group '"+group.getName()+"' due to missing libraries.");
+		return false;
+	}
+	
 	private boolean attachFiles(StageGroup group) {
 		Set<DatabaseFile> files = group.getDatabaseFiles();
 		if(files == null) {
@@ -157,4 +239,11 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 	public CoreConfiguration getConfiguration() {
 		return conf;
 	}
+	
+	/**
+	 * @return the cluster manager, or null unless in cluster mode
+	 */
+	public ClusterManager getClusterManager() {
+		return cluster;
+	}
 }
@@ -1,9 +1,9 @@
 package com.findwise.hydra;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class StageManager {
 	
@@ -12,10 +12,10 @@ public final class StageManager {
 	private Map<String, StageRunner> runnerMap;
 	
 	private StageManager() {
-		runnerMap = new HashMap<String, StageRunner>();
+		runnerMap = new ConcurrentHashMap<String, StageRunner>();
 	}
 	
-	public static StageManager getStageManager() {
+	public static synchronized StageManager getStageManager() {
 		if(self==null) {
 			self = new StageManager();
 		}
@@ -23,10 +23,7 @@ public final class StageManager {
 	}
 	
 	public StageRunner getRunner(String groupName) {
-		if(runnerMap.containsKey(groupName)) {
-			return runnerMap.get(groupName);
-		}
-		return null;
+		return runnerMap.get(groupName);
 	}
 	
 	public boolean hasRunner(String groupName) {
@@ -51,12 +48,7 @@ public final class StageManager {
 	}
 	
 	public StageRunner removeRunner(String groupName) {
-		if(runnerMap.containsKey(groupName)) {
-			StageRunner ret = runnerMap.get(groupName);
-			runnerMap.remove(groupName);
-			return ret;
-		}
-		return null;
+		return runnerMap.remove(groupName);
 	}
 	
 	public void findAndDestroy(String groupName) {
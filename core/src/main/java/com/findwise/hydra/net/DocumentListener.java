@@ -0,0 +1,16 @@
+package com.findwise.hydra.net;
+
+/**
+ * Notified by the handlers whenever a document may have become available to
+ * stages that did not get it before.
+ */
+public interface DocumentListener {
+
+	/**
+	 * @param touchedBy
+	 *            the stage that touched the document, or <code>null</code> if
+	 *            the document was inserted, in which case no stage has
+	 *            touched it yet.
+	 */
+	void documentChanged(String touchedBy);
+}
@@ -43,7 +43,13 @@ public class FileHandler<T extends DatabaseType> implements ResponsibleHandler {
 	@Override
 	public void handle(HttpRequest request, HttpResponse response, HttpContext context)
 			throws HttpException, IOException {
-		if(RESTTools.isPost(request)) {
+		if(isStream(request)) {
+			if(RESTTools.isPost(request)) {
+				handleStreamFile(request, response);
+			} else {
+				handleGetFileStream(request, response);
+			}
+		} else if(RESTTools.isPost(request)) {
 			handleSaveFile(request, response);
 		} else if (RESTTools.isGet(request)) {
 			if(RESTTools.getParam(request, RemotePipeline.FILENAME_PARAM)!=null) {
@@ -58,12 +64,105 @@ public class FileHandler<T extends DatabaseType> implements ResponsibleHandler {
 
 	@Override
 	public boolean supports(HttpRequest request) {
+		if(isStream(request)) {
+			return RESTTools.isGet(request) || RESTTools.isPost(request);
+		}
 		return (RESTTools.isGet(request) || RESTTools.isPost(request) || RESTTools.isDelete(request)) && RESTTools.getBaseUrl(request).equals(RemotePipeline.FILE_URL);
 	}
 
 	@Override
 	public String[] getSupportedUrls() {
-		return new String[] { RemotePipeline.FILE_URL };
+		return new String[] { RemotePipeline.FILE_URL, RemotePipeline.FILE_STREAM_URL };
+	}
+	
+	private static boolean isStream(HttpRequest request) {
+		return RemotePipeline.FILE_STREAM_URL.equals(RESTTools.getBaseUrl(request));
+	}
+	
+	/**
+	 * @return true if the request is a file upload, the body of which should
+	 * be spooled to disk rather than read into memory.
+	 */
+	public static boolean isUpload(HttpRequest request) {
+		return isStream(request) && RESTTools.isPost(request);
+	}
+	
+	/**
+	 * Saves the raw body of the request as the file, reading the file name,
+	 * document and metadata from the request parameters.
+	 */
+	private void handleStreamFile(HttpRequest request, HttpResponse response) {
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		InputStream content = null;
+		try {
+			Triple triple = getTriple(request, response);
+			if(triple == null) {
+				return;
+			}
+			if(entity == null) {
+				HttpResponseWriter.printBadRequestContent(response);
+				return;
+			}
+			
+			DatabaseDocument<T> md = dbc.getDocumentReader().getDocumentById(triple.docid);
+			if (md == null) {
+				HttpResponseWriter.printNoDocument(response);
+				return;
+			}
+			
+			content = entity.getContent();
+			DocumentFile<T> df = new DocumentFile<T>(triple.docid, triple.fileName, content, triple.stage);
+			String mimetype = RESTTools.getParam(request, RemotePipeline.MIMETYPE_PARAM);
+			if(mimetype != null) {
+				df.setMimetype(URLDecoder.decode(mimetype, "UTF-8"));
+			}
+			String encoding = RESTTools.getParam(request, RemotePipeline.ENCODING_PARAM);
+			if(encoding != null) {
+				df.setEncoding(URLDecoder.decode(encoding, "UTF-8"));
+			}
+			
+			dbc.getDocumentWriter().write(df);
+			
+			HttpResponseWriter.printOk(response);
+		} catch (Exception e) {
+			logger.error("An error occurred during file save", e);
+			HttpResponseWriter.printUnhandledException(response, e);
+		} finally {
+			if(content != null) {
+				try {
+					content.close();
+				} catch (IOException e) {
+					logger.error("Unable to close the uploaded file", e);
+				}
+			}
+			SpoolingRequestConsumer.discard(request);
+		}
+	}
+	
+	private void handleGetFileStream(HttpRequest request, HttpResponse response) {
+		Triple triple = getTriple(request, response);
+		if(triple==null) {
+			return;
+		}
+		
+		DatabaseDocument<T> md = dbc.getDocumentReader().getDocumentById(triple.docid);
+		if(md==null) {
+			HttpResponseWriter.printNoDocument(response);
+			return;
+		}
+		
+		DocumentFile<T> df = dbc.getDocumentReader().getDocumentFile(md, triple.fileName);
+		if(df==null) {
+			HttpResponseWriter.printFileNotFound(response, triple.fileName);
+			return;
+		}
+		
+		try {
+			HttpResponseWriter.printFile(response, df);
+		} catch (IOException e) {
+			logger.error("Unable to read file "+triple.fileName+" of document "+triple.docid, e);
+			HttpResponseWriter.printUnhandledException(response, e);
+		}
 	}
 	
 	private void handleSaveFile(HttpRequest request, HttpResponse response) {
@@ -3,12 +3,21 @@ package com.findwise.hydra.net;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
@@ -18,7 +27,25 @@ import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.NodeMaster;
 
-public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandler {
+/**
+ * Dispatches requests to the handler responsible for them. Requests asking
+ * to wait for documents are handed to a {@link LongPollHandler}, which may
+ * answer them later, while all other requests are answered right away.
+ * 
+ * If an executor is set, requests are handled on it rather than on the I/O
+ * thread that read them. Requests that the executor rejects are answered 
+ * with 503 Service Unavailable.
+ * 
+ * Unless disabled, the time taken to handle every request is recorded in a
+ * {@link Metrics} registry, which is served at /metrics.
+ */
+public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandler, HttpAsyncRequestHandler<HttpRequest> {
+	/**
+	 * Seconds that clients are asked to wait before retrying a request that
+	 * was turned away because every worker was busy.
+	 */
+	public static final int RETRY_AFTER_SECONDS = 1;
+	
 	private Logger logger = LoggerFactory.getLogger(HttpRESTHandler.class);
 	
 	private DatabaseConnector<T> dbc;
@@ -31,7 +58,15 @@ public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandl
 	
 	private ResponsibleHandler[] handlers;
 	
+	private Map<String, ResponsibleHandler[]> routes;
+	
 	private PingHandler pingHandler;
+	
+	private LongPollHandler<T> longPollHandler;
+	
+	private volatile Executor executor;
+	
+	private Metrics metrics = new Metrics();
 
 	private PingHandler getPingHandler() {
 		if(pingHandler == null) {
@@ -64,16 +99,95 @@ public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandl
     }
 	
 	private void createHandlers() {
-		handlers = new ResponsibleHandler[] { new FileHandler<T>(dbc), new PropertiesHandler<T>(dbc), new MarkHandler<T>(dbc, performanceLogging), new QueryHandler<T>(dbc, performanceLogging), new ReleaseHandler<T>(dbc), new WriteHandler<T>(dbc, performanceLogging) };
+		QueryHandler<T> queryHandler = new QueryHandler<T>(dbc, performanceLogging);
+		queryHandler.setMetrics(metrics);
+		longPollHandler = new LongPollHandler<T>(queryHandler);
+		MarkHandler<T> markHandler = new MarkHandler<T>(dbc, performanceLogging);
+		markHandler.setMetrics(metrics);
+		WriteHandler<T> writeHandler = new WriteHandler<T>(dbc, performanceLogging, longPollHandler);
+		writeHandler.setMetrics(metrics);
+		List<ResponsibleHandler> list = new ArrayList<ResponsibleHandler>();
+		list.add(new FileHandler<T>(dbc));
+		list.add(new PropertiesHandler<T>(dbc));
+		list.add(markHandler);
+		list.add(queryHandler);
+		list.add(new ReleaseHandler<T>(dbc, longPollHandler));
+		list.add(writeHandler);
+		list.add(new StageMetricsHandler(metrics));
+		if(metrics != null) {
+			list.add(new MetricsHandler(metrics));
+			metrics.addGauge("hydra_long_polls_waiting", "Requests waiting for a document to become available.", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return longPollHandler.getWaiting();
+				}
+			});
+		}
+		handlers = list.toArray(new ResponsibleHandler[list.size()]);
 	}
 	
-	private ResponsibleHandler[] getHandlers() {
+	/**
+	 * @return the registry that requests are recorded in, or null if 
+	 * recording is disabled
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the registry that requests are recorded in, or null to disable
+	 * recording and the /metrics url. Must be called before the first 
+	 * request is handled.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	private synchronized ResponsibleHandler[] getHandlers() {
 		if(handlers==null) {
 			createHandlers();
 		}
 		return handlers;
 	}
 	
+	public LongPollHandler<T> getLongPollHandler() {
+		getHandlers();
+		return longPollHandler;
+	}
+	
+	/**
+	 * Maps every supported url to the handlers supporting it, so that a
+	 * request only has to be offered to the handlers of its own url.
+	 */
+	private synchronized Map<String, ResponsibleHandler[]> getRoutes() {
+		if(routes==null) {
+			Map<String, List<ResponsibleHandler>> lists = new HashMap<String, List<ResponsibleHandler>>();
+			addRoutes(lists, getPingHandler());
+			for(ResponsibleHandler handler : getHandlers()) {
+				addRoutes(lists, handler);
+			}
+			Map<String, ResponsibleHandler[]> map = new HashMap<String, ResponsibleHandler[]>();
+			for(Map.Entry<String, List<ResponsibleHandler>> e : lists.entrySet()) {
+				map.put(e.getKey(), e.getValue().toArray(new ResponsibleHandler[e.getValue().size()]));
+			}
+			routes = map;
+		}
+		return routes;
+	}
+	
+	private static void addRoutes(Map<String, List<ResponsibleHandler>> routes, ResponsibleHandler handler) {
+		for(String url : handler.getSupportedUrls()) {
+			if(!routes.containsKey(url)) {
+				routes.put(url, new ArrayList<ResponsibleHandler>());
+			}
+			routes.get(url).add(handler);
+		}
+	}
+	
+	private ResponsibleHandler[] getRoute(HttpRequest request) {
+		return getRoutes().get(RESTTools.getBaseUrl(request));
+	}
+	
 	public void setRestId(String restId) {
 		getPingHandler().setServerId(restId);
 	}
@@ -88,6 +202,23 @@ public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandl
 		return false;
 	}
 
+	private boolean dispatchTimed(HttpRequest request, HttpResponse response, HttpContext context, ResponsibleHandler[] route) throws HttpException, IOException {
+		Metrics metrics = this.metrics;
+		if(metrics == null) {
+			return dispatch(request, response, context, route);
+		}
+		String url = RESTTools.getBaseUrl(request);
+		AtomicLong inFlight = metrics.getInFlight(url);
+		inFlight.incrementAndGet();
+		long start = System.currentTimeMillis();
+		try {
+			return dispatch(request, response, context, route);
+		} finally {
+			inFlight.decrementAndGet();
+			metrics.get(url, RESTTools.getStage(request)).record(System.currentTimeMillis() - start);
+		}
+	}
+
 	@Override
 	public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) {
 		if(!accessAllowed(context)) {
@@ -97,11 +228,8 @@ public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandl
 		try {
 			logger.trace("Parsing incoming request");
 			
-			if(dispatch(request, response, context, getPingHandler())) {
-				return;
-			}
-			
-			if(dispatch(request, response, context, getHandlers())) {
+			ResponsibleHandler[] route = getRoute(request);
+			if(route != null && dispatchTimed(request, response, context, route)) {
 				return;
 			}
 			
@@ -113,6 +241,66 @@ public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandl
 		}
     }
 	
+	@Override
+	public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest request, HttpContext context) {
+		if(FileHandler.isUpload(request)) {
+			return new SpoolingRequestConsumer();
+		}
+		return new BasicAsyncRequestConsumer();
+	}
+
+	/**
+	 * Sets the executor that requests are handled on. Unless set, requests 
+	 * are handled on the thread they were read on.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void handle(final HttpRequest request, final HttpAsyncExchange exchange, final HttpContext context) {
+		Executor executor = this.executor;
+		if(executor == null) {
+			respond(request, exchange, context);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					respond(request, exchange, context);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			SpoolingRequestConsumer.discard(request);
+			HttpResponseWriter.printServiceUnavailable(exchange.getResponse(), RETRY_AFTER_SECONDS);
+			exchange.submitResponse();
+		}
+	}
+	
+	/**
+	 * Handles the request and removes its spooled body, if any, whichever
+	 * handler it ended up with, including when access was denied.
+	 */
+	private void respond(HttpRequest request, HttpAsyncExchange exchange, HttpContext context) {
+		try {
+			if(accessAllowed(context) && getLongPollHandler().accepts(request)) {
+				try {
+					getLongPollHandler().handle(request, exchange);
+				} catch (Exception e) {
+					logger.error("Unhandled exception occurred", e);
+					HttpResponseWriter.printUnhandledException(exchange.getResponse(), e);
+					System.exit(1);
+				}
+				return;
+			}
+			handle(request, exchange.getResponse(), context);
+			exchange.submitResponse();
+		} finally {
+			SpoolingRequestConsumer.discard(request);
+		}
+	}
+	
 	public boolean accessAllowed(HttpContext context) {
 		if(allowedHosts==null) {
 			return true;
@@ -134,10 +322,11 @@ public class HttpRESTHandler<T extends DatabaseType> implements ResponsibleHandl
 
 	@Override
 	public boolean supports(HttpRequest request) {
-		if(getPingHandler().supports(request)) {
-			return true;
+		ResponsibleHandler[] route = getRoute(request);
+		if(route == null) {
+			return false;
 		}
-		for(ResponsibleHandler handler : handlers) {
+		for(ResponsibleHandler handler : route) {
 			if(handler.supports(request)) {
 				return true;
 			}
@@ -1,15 +1,28 @@
 package com.findwise.hydra.net;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.entity.ContentType;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.nio.entity.NStringEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.BsonUtils;
 import com.findwise.hydra.Document;
+import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
 
 /**
  * This class provides methods for writing output to a HttpResponse.
@@ -22,6 +35,7 @@ public final class HttpResponseWriter {
 	private HttpResponseWriter() {} // Should not be possible to instantiate
 	
 	public static final ContentType CONTENT_TYPE = ContentType.create("application/json", "UTF-8");
+	public static final ContentType BSON_CONTENT_TYPE = ContentType.create(BsonUtils.CONTENT_TYPE);
 
 	private static void setStringEntity(HttpResponse response, String content) {
 		response.setEntity(new NStringEntity(content, CONTENT_TYPE));
@@ -32,6 +46,52 @@ public final class HttpResponseWriter {
 		response.setStatusCode(HttpStatus.SC_OK);
 		setStringEntity(response, d.toJson());
 	}
+	
+	protected static void printDocument(HttpResponse response, Document<?> d, String stage, boolean bson) {
+		if(!bson) {
+			printDocument(response, d, stage);
+			return;
+		}
+		logger.debug("Printing document with ID " + d.getID() + " to stage " + stage + " as BSON");
+		response.setStatusCode(HttpStatus.SC_OK);
+		response.setEntity(new NByteArrayEntity(toLocalDocument(d).toBson(), BSON_CONTENT_TYPE));
+	}
+
+	protected static void printDocuments(HttpResponse response, Collection<? extends Document<?>> docs, String stage, boolean bson) {
+		if(!bson) {
+			printDocuments(response, docs, stage);
+			return;
+		}
+		logger.debug("Printing " + docs.size() + " documents to stage " + stage + " as BSON");
+		response.setStatusCode(HttpStatus.SC_OK);
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(docs.size());
+		for(Document<?> d : docs) {
+			maps.add(toLocalDocument(d).toMap());
+		}
+		response.setEntity(new NByteArrayEntity(BsonUtils.toBson(maps), BSON_CONTENT_TYPE));
+	}
+	
+	private static LocalDocument toLocalDocument(Document<?> d) {
+		LocalDocument ld = new LocalDocument();
+		ld.putAll(d);
+		return ld;
+	}
+
+	protected static void printDocuments(HttpResponse response, Collection<? extends Document<?>> docs, String stage) {
+		logger.debug("Printing " + docs.size() + " documents to stage " + stage);
+		response.setStatusCode(HttpStatus.SC_OK);
+		StringBuilder sb = new StringBuilder("[");
+		boolean first = true;
+		for(Document<?> d : docs) {
+			if(!first) {
+				sb.append(',');
+			}
+			sb.append(d.toJson());
+			first = false;
+		}
+		sb.append(']');
+		setStringEntity(response, sb.toString());
+	}
 
 	protected static void printDocumentReleased(HttpResponse response) {
 		logger.debug("Printing release successful");
@@ -81,6 +141,12 @@ public final class HttpResponseWriter {
 		setStringEntity(response, "Submitted document was missing the required ID field");
 	}
 
+	protected static void printBadParameter(HttpResponse response, String param, String value) {
+		logger.error(param + " parameter has an invalid value: " + value);
+		response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+		setStringEntity(response, "Parameter '" + param + "' has an invalid value: " + value);
+	}
+
 	protected static void printMissingParameter(HttpResponse response, String param) {
 		logger.error(param + " parameter is missing from request");
 		response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
@@ -97,11 +163,41 @@ public final class HttpResponseWriter {
 		setStringEntity(response, "Document " + id + " successfully saved");
 	}
 	
+	protected static void printMarked(HttpResponse response, int count) {
+		logger.debug("Successfully marked " + count + " documents");
+		response.setStatusCode(HttpStatus.SC_OK);
+		setStringEntity(response, Integer.toString(count));
+	}
+	
 	protected static void printSaveFailed(HttpResponse response, Object id) {
 		response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
 		setStringEntity(response, "Unable to update document with id:"+id);
 	}
 	
+	/**
+	 * Writes the contents of the file as the body of the response, with its
+	 * metadata in the headers. The contents are spooled to a temporary file
+	 * first, so that sending them never blocks the I/O reactor.
+	 */
+	protected static void printFile(HttpResponse response, DocumentFile<?> df) throws IOException {
+		logger.debug("Printing file " + df.getFileName() + " of document " + df.getDocumentId());
+		SpooledResponseEntity entity = SpooledResponseEntity.spool(df.getStream());
+		response.setStatusCode(HttpStatus.SC_OK);
+		if(df.getMimetype() != null) {
+			entity.setContentType(df.getMimetype());
+		}
+		response.setEntity(entity);
+		if(df.getEncoding() != null) {
+			response.setHeader(RemotePipeline.FILE_ENCODING_HEADER, df.getEncoding());
+		}
+		if(df.getSavedByStage() != null) {
+			response.setHeader(RemotePipeline.FILE_SAVED_BY_HEADER, df.getSavedByStage());
+		}
+		if(df.getUploadDate() != null) {
+			response.setHeader(HttpHeaders.LAST_MODIFIED, DateUtils.formatDate(df.getUploadDate()));
+		}
+	}
+	
 	protected static void printFileDeleteOk(HttpResponse response, String filename, Object id) {
 		logger.debug("Successfully deleted file with filename: "+filename+" from document " + id);
 		response.setStatusCode(HttpStatus.SC_OK);
@@ -126,6 +222,13 @@ public final class HttpResponseWriter {
 		setStringEntity(response, "An error occurred while releasing the document");
 	}
 
+	protected static void printServiceUnavailable(HttpResponse response, int retryAfterSeconds) {
+		logger.warn("Too many requests waiting to be handled, asking the client to retry in " + retryAfterSeconds + "s");
+		response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+		response.setHeader(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfterSeconds));
+		setStringEntity(response, "Too many requests, retry in " + retryAfterSeconds + " seconds");
+	}
+
 	protected static void printUnhandledException(HttpResponse response, Exception e) {
 		logger.error("Printing Unhandled Exception");
 		response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
@@ -144,6 +247,20 @@ public final class HttpResponseWriter {
 		setStringEntity(response, SerializationUtils.toJson(o));
 	}
 
+	protected static void printMetrics(HttpResponse response, String metrics) {
+		logger.trace("Printing metrics");
+		response.setStatusCode(HttpStatus.SC_OK);
+		NStringEntity entity = new NStringEntity(metrics, ContentType.create("text/plain", "UTF-8"));
+		entity.setContentType(Metrics.CONTENT_TYPE + "; charset=utf-8");
+		response.setEntity(entity);
+	}
+
+	protected static void printMetricsReceived(HttpResponse response) {
+		logger.trace("Received metrics");
+		response.setStatusCode(HttpStatus.SC_OK);
+		setStringEntity(response, "Metrics received");
+	}
+
 	protected static void printID(HttpResponse response, String uuid) {
 		logger.info("Got ID ping!");
 		response.setStatusCode(HttpStatus.SC_OK);
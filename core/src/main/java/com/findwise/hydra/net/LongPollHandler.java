@@ -0,0 +1,297 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+
+/**
+ * Holds on to getDocument requests carrying a
+ * {@link RemotePipeline#WAIT_PARAM} until a document matching them becomes
+ * available, or until the requested number of milliseconds have passed.
+ * 
+ * Parked requests are retried whenever a document is touched by one of the
+ * stages that their query requires to have touched it. Requests whose query
+ * does not require any stage to have touched the document are also retried
+ * whenever a document is inserted. The query of a request is read once when
+ * it is parked, since the request entity can only be consumed once.
+ * 
+ * Requests are retried on a single retry thread rather than on the thread
+ * reporting the change, so that writes are not held up by the queries of
+ * parked requests, and so that at most one more thread accesses the
+ * database than without long polling. A single timer thread answers the
+ * requests that time out.
+ */
+public class LongPollHandler<T extends DatabaseType> implements DocumentListener {
+	public static final long MAX_WAIT = 60000;
+
+	private static Logger logger = LoggerFactory.getLogger(LongPollHandler.class);
+
+	private QueryHandler<T> queryHandler;
+	private ScheduledExecutorService timer;
+	private ExecutorService retrier;
+
+	private List<Waiter> waiters = new ArrayList<Waiter>();
+	private long changes = 0;
+
+	public LongPollHandler(QueryHandler<T> queryHandler) {
+		this.queryHandler = queryHandler;
+		timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("LongPollTimer"));
+		retrier = Executors.newSingleThreadExecutor(new DaemonThreadFactory("LongPollRetry"));
+	}
+
+	/**
+	 * @return true if the request is a query asking to wait for documents
+	 */
+	public boolean accepts(HttpRequest request) {
+		return queryHandler.supports(request) && getWait(request) > 0;
+	}
+
+	/**
+	 * Answers the request right away if there are matching documents, or
+	 * parks it otherwise.
+	 */
+	public void handle(HttpRequest request, HttpAsyncExchange exchange) throws IOException {
+		long seen = getChanges();
+		String content = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity());
+		if (queryHandler.respond(request, content, exchange.getResponse(), true)) {
+			exchange.submitResponse();
+			return;
+		}
+
+		final Waiter waiter = new Waiter(request, content, exchange, getRequiredTouched(content));
+		waiter.timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expire(waiter);
+			}
+		}, Math.min(getWait(request), MAX_WAIT), TimeUnit.MILLISECONDS);
+		exchange.setCallback(new Cancellable() {
+			@Override
+			public boolean cancel() {
+				logger.debug("Parked request cancelled by the client");
+				remove(waiter);
+				return waiter.finish();
+			}
+		});
+
+		park(waiter, seen);
+	}
+
+	/**
+	 * Parks the waiter, unless something has changed since the waiter last
+	 * queried, in which case it queries again.
+	 */
+	private void park(Waiter waiter, long seen) {
+		while (true) {
+			synchronized (this) {
+				if (changes == seen) {
+					waiters.add(waiter);
+					return;
+				}
+				seen = changes;
+			}
+			if (retry(waiter)) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void documentChanged(String touchedBy) {
+		final List<Waiter> woken = new ArrayList<Waiter>();
+		final long seen;
+		synchronized (this) {
+			changes++;
+			seen = changes;
+			for (Waiter waiter : waiters) {
+				if (waiter.isInterestedIn(touchedBy)) {
+					woken.add(waiter);
+				}
+			}
+			waiters.removeAll(woken);
+		}
+		if (woken.isEmpty()) {
+			return;
+		}
+		try {
+			retrier.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (Waiter waiter : woken) {
+						try {
+							if (!retry(waiter)) {
+								park(waiter, seen);
+							}
+						} catch (RuntimeException e) {
+							logger.error("Unable to retry a parked request, leaving it to time out", e);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.debug("Long polling has been shut down, not retrying parked requests");
+		}
+	}
+
+	/**
+	 * @return true if the waiter no longer needs to be parked
+	 */
+	private boolean retry(Waiter waiter) {
+		synchronized (waiter) {
+			if (waiter.done) {
+				return true;
+			}
+			if (!queryHandler.respond(waiter.request, waiter.content, waiter.exchange.getResponse(), true)) {
+				return false;
+			}
+			waiter.timeout.cancel(false);
+			waiter.submit();
+			return true;
+		}
+	}
+
+	private void expire(Waiter waiter) {
+		remove(waiter);
+		synchronized (waiter) {
+			if (waiter.done) {
+				return;
+			}
+			HttpResponseWriter.printNoDocument(waiter.exchange.getResponse());
+			waiter.submit();
+		}
+	}
+
+	private synchronized void remove(Waiter waiter) {
+		waiters.remove(waiter);
+	}
+
+	private synchronized long getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return the number of requests currently parked
+	 */
+	public synchronized int getWaiting() {
+		return waiters.size();
+	}
+
+	public void shutdown() {
+		retrier.shutdownNow();
+		timer.shutdownNow();
+	}
+
+	static long getWait(HttpRequest request) {
+		String wait = RESTTools.getParam(request, RemotePipeline.WAIT_PARAM);
+		if (wait == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(wait);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the stages that the query requires to have touched its
+	 *         documents. If the query cannot be read, the empty set is
+	 *         returned, so that the request is retried on every change.
+	 */
+	private static Set<String> getRequiredTouched(String content) {
+		Set<String> set = new HashSet<String>();
+		try {
+			for (Map.Entry<String, Boolean> e : new LocalQuery(content).getTouched().entrySet()) {
+				if (e.getValue()) {
+					set.add(e.getKey());
+				}
+			}
+		} catch (JsonException e) {
+			logger.debug("Unable to read the query of a parked request", e);
+		}
+		return set;
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private String name;
+
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	private static class Waiter {
+		private HttpRequest request;
+		private String content;
+		private HttpAsyncExchange exchange;
+		private Set<String> requiredTouched;
+		private ScheduledFuture<?> timeout;
+		private boolean done = false;
+
+		public Waiter(HttpRequest request, String content, HttpAsyncExchange exchange, Set<String> requiredTouched) {
+			this.request = request;
+			this.content = content;
+			this.exchange = exchange;
+			this.requiredTouched = requiredTouched;
+		}
+
+		/**
+		 * A query requiring some stages to have touched its documents can
+		 * only start matching a document when one of those stages touches
+		 * it, and never matches a newly inserted document. Any other query
+		 * may match any changed document.
+		 */
+		public boolean isInterestedIn(String touchedBy) {
+			if (requiredTouched.isEmpty()) {
+				return true;
+			}
+			return touchedBy != null && requiredTouched.contains(touchedBy);
+		}
+
+		public synchronized boolean finish() {
+			if (done) {
+				return false;
+			}
+			done = true;
+			timeout.cancel(false);
+			return true;
+		}
+
+		public synchronized void submit() {
+			done = true;
+			if (!exchange.isCompleted()) {
+				exchange.submitResponse();
+			}
+		}
+	}
+}
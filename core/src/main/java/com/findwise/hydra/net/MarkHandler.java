@@ -1,6 +1,9 @@
 package com.findwise.hydra.net;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -17,6 +20,7 @@ import com.findwise.hydra.DatabaseConnector.ConversionException;
 import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.SerializationUtils;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 
@@ -29,34 +33,48 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
 
 	private DatabaseConnector<T> dbc;
 	private boolean performanceLogging = false;
+	private Metrics metrics;
 	
 	public MarkHandler(DatabaseConnector<T> dbc, boolean performanceLogging) {
 		this.dbc = dbc;
 		this.performanceLogging = performanceLogging;
 	}
 
+	/**
+	 * Sets the registry that the phases of every request are recorded in, or
+	 * null to not record them.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
 	@Override
 	public void handle(HttpRequest request, HttpResponse response,
 			HttpContext context) throws HttpException, IOException {
 		long start = System.currentTimeMillis();
-		HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request)
-				.getEntity();
-		String requestContent = EntityUtils.toString(requestEntity);
-		long tostring = System.currentTimeMillis();
 		String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
 		if (stage == null) {
 			HttpResponseWriter.printMissingParameter(response, RemotePipeline.STAGE_PARAM);
 			return;
 		}
 
+		if (isBulk(request)) {
+			HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request)
+					.getEntity();
+			String requestContent = EntityUtils.toString(requestEntity);
+			handleBulk(request, response, requestContent, stage, start, System.currentTimeMillis());
+			return;
+		}
+
+		long tostring = System.currentTimeMillis();
 		DatabaseDocument<T> md;
 		try {
-			md = dbc.convert(new LocalDocument(requestContent));
+			md = RESTTools.readDocument(dbc, request);
 		} catch (JsonException e) {
 			HttpResponseWriter.printJsonException(response, e);
 			return;
 		} catch (ConversionException e) {
-			logger.error("Caught Exception when trying to convert "+requestContent, e);
+			logger.error("Caught Exception when trying to convert the posted document", e);
 			HttpResponseWriter.printBadRequestContent(response);
 			return;
 		}
@@ -76,21 +94,109 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
 		} else {
 			HttpResponseWriter.printSaveOk(response, md.getID());
 		}
+		long end = System.currentTimeMillis();
+		if(metrics != null) {
+			Metrics.RequestMetrics m = metrics.get(RESTTools.getBaseUrl(request), stage);
+			m.documents(1);
+			m.phase(Metrics.PHASE_ENTITYSTRING, tostring-start);
+			m.phase(Metrics.PHASE_PARSE, convert-tostring);
+			m.phase(Metrics.PHASE_QUERY, end-convert);
+		}
 		if(performanceLogging) {
-			long end = System.currentTimeMillis();
 			logger.info(String.format("type=performance event=processed stage_name=%s doc_id=%s start=%d end=%d total=%d entitystring=%d parse=%d query=%d serialize=%d", stage, md.getID(), start, end, end-start, tostring-start, convert-tostring, query-convert, end-query));
 		}
 	}
 	
+	/**
+	 * Marks every document in a JSON array with a single call to the 
+	 * DocumentWriter. The posted documents are applied on top of the stored
+	 * ones by the writer, so no per-document lookup is done here.
+	 */
+	private void handleBulk(HttpRequest request, HttpResponse response, String requestContent, String stage, long start, long tostring) {
+		List<DatabaseDocument<T>> docs = new ArrayList<DatabaseDocument<T>>();
+		try {
+			Object o = SerializationUtils.toObject(requestContent);
+			if (!(o instanceof List)) {
+				HttpResponseWriter.printBadRequestContent(response);
+				return;
+			}
+			for (Object x : (List<?>) o) {
+				if (!(x instanceof Map)) {
+					HttpResponseWriter.printBadRequestContent(response);
+					return;
+				}
+				@SuppressWarnings("unchecked")
+				Map<String, Object> map = (Map<String, Object>) x;
+				DatabaseDocument<T> md = dbc.convert(new LocalDocument(map));
+				if (md.getID() == null) {
+					HttpResponseWriter.printMissingID(response);
+					return;
+				}
+				docs.add(md);
+			}
+		} catch (JsonException e) {
+			HttpResponseWriter.printJsonException(response, e);
+			return;
+		} catch (ConversionException e) {
+			logger.error("Caught Exception when trying to convert "+requestContent, e);
+			HttpResponseWriter.printBadRequestContent(response);
+			return;
+		}
+		long convert = System.currentTimeMillis();
+		
+		int marked = markAll(docs, stage, getMark(request));
+		HttpResponseWriter.printMarked(response, marked);
+		
+		long end = System.currentTimeMillis();
+		if(metrics != null) {
+			Metrics.RequestMetrics m = metrics.get(RESTTools.getBaseUrl(request), stage);
+			m.documents(docs.size());
+			m.phase(Metrics.PHASE_ENTITYSTRING, tostring-start);
+			m.phase(Metrics.PHASE_PARSE, convert-tostring);
+			m.phase(Metrics.PHASE_QUERY, end-convert);
+		}
+		if(performanceLogging) {
+			logger.info(String.format("type=performance event=processed_batch stage_name=%s count=%d start=%d end=%d total=%d entitystring=%d parse=%d query=%d", stage, docs.size(), start, end, end-start, tostring-start, convert-tostring, end-convert));
+		}
+	}
+	
+	private int markAll(List<DatabaseDocument<T>> docs, String stage, Mark mark) {
+		logger.trace("handleMarkAll(..., ..., " + mark.toString() + ")");
+		
+		switch (mark) {
+		case PENDING: {
+			return dbc.getDocumentWriter().markPending(docs, stage);
+		}
+		case PROCESSED: {
+			return dbc.getDocumentWriter().markProcessed(docs, stage);
+		}
+		case FAILED: {
+			return dbc.getDocumentWriter().markFailed(docs, stage);
+		}
+		case DISCARDED: {
+			return dbc.getDocumentWriter().markDiscarded(docs, stage);
+		}
+		}
+		return 0;
+	}
+	
+	private boolean isBulk(HttpRequest request) {
+		String uri = RESTTools.getBaseUrl(request);
+		return uri.equals(RemotePipeline.PROCESSED_DOCUMENTS_URL)
+				|| uri.equals(RemotePipeline.PENDING_DOCUMENTS_URL)
+				|| uri.equals(RemotePipeline.DISCARDED_DOCUMENTS_URL)
+				|| uri.equals(RemotePipeline.FAILED_DOCUMENTS_URL);
+	}
+	
 	private Mark getMark(HttpRequest request) {
 		String uri = RESTTools.getBaseUrl(request);
-		if (uri.equals(RemotePipeline.PROCESSED_DOCUMENT_URL)) {
+		if (uri.equals(RemotePipeline.PROCESSED_DOCUMENT_URL) || uri.equals(RemotePipeline.PROCESSED_DOCUMENTS_URL)) {
 			return Mark.PROCESSED;
-		} else if (uri.equals(RemotePipeline.PENDING_DOCUMENT_URL)) {
+		} else if (uri.equals(RemotePipeline.PENDING_DOCUMENT_URL) || uri.equals(RemotePipeline.PENDING_DOCUMENTS_URL)) {
 			return Mark.PENDING;
-		} else if (uri.equals(RemotePipeline.DISCARDED_DOCUMENT_URL)) {
+		} else if (uri.equals(RemotePipeline.DISCARDED_DOCUMENT_URL) || uri.equals(RemotePipeline.DISCARDED_DOCUMENTS_URL)) {
 			return Mark.DISCARDED;
-		} else if (uri.equals(RemotePipeline.FAILED_DOCUMENT_URL)) {
+		} else if (uri.equals(RemotePipeline.FAILED_DOCUMENT_URL) || uri.equals(RemotePipeline.FAILED_DOCUMENTS_URL)) {
 			return Mark.FAILED;
 		}
 		return null;
@@ -127,7 +233,11 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
 		return new String[] { RemotePipeline.DISCARDED_DOCUMENT_URL,
 				RemotePipeline.FAILED_DOCUMENT_URL,
 				RemotePipeline.PROCESSED_DOCUMENT_URL,
-				RemotePipeline.PENDING_DOCUMENT_URL };
+				RemotePipeline.PENDING_DOCUMENT_URL,
+				RemotePipeline.DISCARDED_DOCUMENTS_URL,
+				RemotePipeline.FAILED_DOCUMENTS_URL,
+				RemotePipeline.PROCESSED_DOCUMENTS_URL,
+				RemotePipeline.PENDING_DOCUMENTS_URL };
 	}
 
 }
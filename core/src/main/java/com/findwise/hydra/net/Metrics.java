@@ -0,0 +1,317 @@
+package com.findwise.hydra.net;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.findwise.hydra.local.StageMetrics;
+import com.findwise.tools.Histogram;
+
+/**
+ * Aggregates timings and counts of the requests handled by the core, per
+ * url and stage, and writes them in the Prometheus text format. Also keeps
+ * the totals of the {@link StageMetrics} pushed by stages.
+ *
+ * Recording only touches atomic counters in objects that are created once
+ * per url and stage, so it is cheap enough to do for every request.
+ */
+public class Metrics {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+	public static final String PHASE_ENTITYSTRING = "entitystring";
+	public static final String PHASE_PARSE = "parse";
+	public static final String PHASE_QUERY = "query";
+	public static final String PHASE_SERIALIZE = "serialize";
+
+	/**
+	 * A value read when the metrics are written.
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+
+	private ConcurrentMap<String, RequestMetrics> requests = new ConcurrentHashMap<String, RequestMetrics>();
+	private ConcurrentMap<String, AtomicLong> inFlight = new ConcurrentHashMap<String, AtomicLong>();
+	private ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private ConcurrentMap<String, String> help = new ConcurrentHashMap<String, String>();
+	private ConcurrentMap<String, StageTotals> stages = new ConcurrentHashMap<String, StageTotals>();
+
+	/**
+	 * @return the metrics of requests to the url made by the stage, which
+	 * may be null for requests that are not made by stages.
+	 */
+	public RequestMetrics get(String url, String stage) {
+		if(stage == null) {
+			stage = "";
+		}
+		String key = url + '\u0000' + stage;
+		RequestMetrics m = requests.get(key);
+		if(m == null) {
+			RequestMetrics created = new RequestMetrics(url, stage);
+			m = requests.putIfAbsent(key, created);
+			if(m == null) {
+				m = created;
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * @return the number of requests to the url currently being handled
+	 */
+	public AtomicLong getInFlight(String url) {
+		AtomicLong count = inFlight.get(url);
+		if(count == null) {
+			AtomicLong created = new AtomicLong();
+			count = inFlight.putIfAbsent(url, created);
+			if(count == null) {
+				count = created;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds metrics drained from a {@link StageMetrics} by an instance of the
+	 * stage to the totals of the stage.
+	 * 
+	 * @throws IllegalArgumentException if the metrics are malformed
+	 */
+	public void addStageMetrics(String stage, Map<String, Object> drained) {
+		StageTotals totals = stages.get(stage);
+		if(totals == null) {
+			StageTotals created = new StageTotals();
+			totals = stages.putIfAbsent(stage, created);
+			if(totals == null) {
+				totals = created;
+			}
+		}
+		totals.metrics.add(drained);
+	}
+
+	/**
+	 * @return the totals pushed by each stage, with the throughput of the
+	 * stage since its first push and the count, mean and percentiles of 
+	 * every timer in milliseconds.
+	 */
+	public Map<String, Object> getStageTable() {
+		Map<String, Object> table = new TreeMap<String, Object>();
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, StageTotals> e : stages.entrySet()) {
+			StageMetrics m = e.getValue().metrics;
+			Map<String, Object> row = new HashMap<String, Object>();
+			long documents = m.getCounter(StageMetrics.DOCUMENTS);
+			long polls = m.getTimer(StageMetrics.FETCH).getCount();
+			double seconds = Math.max(1, now - e.getValue().since) / 1000.0;
+			row.put("since", new Date(e.getValue().since));
+			row.put("documentsPerSecond", documents / seconds);
+			row.put("emptyPollRatio", polls == 0 ? 0.0 : (double) m.getCounter(StageMetrics.EMPTY_POLLS) / polls);
+			row.put("counters", new TreeMap<String, Long>(m.getCounters()));
+			Map<String, Object> timers = new TreeMap<String, Object>();
+			for(Map.Entry<String, Histogram> t : m.getTimers().entrySet()) {
+				Histogram h = t.getValue();
+				Map<String, Object> timer = new HashMap<String, Object>();
+				timer.put("count", h.getCount());
+				timer.put("mean", h.getMean());
+				timer.put("p50", h.getPercentile(50));
+				timer.put("p95", h.getPercentile(95));
+				timer.put("p99", h.getPercentile(99));
+				timers.put(t.getKey(), timer);
+			}
+			row.put("timers", timers);
+			table.put(e.getKey(), row);
+		}
+		return table;
+	}
+
+	/**
+	 * Adds a gauge, replacing any gauge of the same name.
+	 */
+	public void addGauge(String name, String description, Gauge gauge) {
+		help.put(name, description);
+		gauges.put(name, gauge);
+	}
+
+	public void removeGauge(String name) {
+		gauges.remove(name);
+		help.remove(name);
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		Map<String, RequestMetrics> sorted = new TreeMap<String, RequestMetrics>(requests);
+
+		header(sb, "hydra_request_duration_seconds", "histogram", "Time taken to handle requests, by url and stage.");
+		for(RequestMetrics m : sorted.values()) {
+			histogram(sb, "hydra_request_duration_seconds", m.getLabels(), m.getDuration());
+		}
+
+		header(sb, "hydra_request_phase_duration_seconds", "histogram", "Time taken by each phase of handling requests, by url and stage.");
+		for(RequestMetrics m : sorted.values()) {
+			for(Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(m.phases).entrySet()) {
+				histogram(sb, "hydra_request_phase_duration_seconds", m.getLabels() + ",phase=\"" + escape(e.getKey()) + "\"", e.getValue());
+			}
+		}
+
+		header(sb, "hydra_polls_total", "counter", "Requests for documents, by url, stage and whether any document was found.");
+		for(RequestMetrics m : sorted.values()) {
+			if(m.hits.get() > 0 || m.empty.get() > 0) {
+				sample(sb, "hydra_polls_total", m.getLabels() + ",result=\"hit\"", m.hits.get());
+				sample(sb, "hydra_polls_total", m.getLabels() + ",result=\"empty\"", m.empty.get());
+			}
+		}
+
+		header(sb, "hydra_documents_total", "counter", "Documents handed out or received, by url and stage.");
+		for(RequestMetrics m : sorted.values()) {
+			if(m.documents.get() > 0) {
+				sample(sb, "hydra_documents_total", m.getLabels(), m.documents.get());
+			}
+		}
+
+		header(sb, "hydra_requests_in_flight", "gauge", "Requests currently being handled, by url.");
+		for(Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(inFlight).entrySet()) {
+			sample(sb, "hydra_requests_in_flight", "url=\"" + escape(e.getKey()) + "\"", e.getValue().get());
+		}
+
+		Map<String, StageTotals> sortedStages = new TreeMap<String, StageTotals>(stages);
+		header(sb, "hydra_stage_duration_seconds", "histogram", "Time spent by stages, as pushed by the stages, by stage and timer.");
+		for(Map.Entry<String, StageTotals> e : sortedStages.entrySet()) {
+			for(Map.Entry<String, Histogram> t : new TreeMap<String, Histogram>(e.getValue().metrics.getTimers()).entrySet()) {
+				histogram(sb, "hydra_stage_duration_seconds", "stage=\"" + escape(e.getKey()) + "\",timer=\"" + escape(t.getKey()) + "\"", t.getValue());
+			}
+		}
+
+		header(sb, "hydra_stage_events_total", "counter", "Events counted by stages, as pushed by the stages, by stage and event.");
+		for(Map.Entry<String, StageTotals> e : sortedStages.entrySet()) {
+			for(Map.Entry<String, Long> c : new TreeMap<String, Long>(e.getValue().metrics.getCounters()).entrySet()) {
+				sample(sb, "hydra_stage_events_total", "stage=\"" + escape(e.getKey()) + "\",event=\"" + escape(c.getKey()) + "\"", c.getValue());
+			}
+		}
+
+		for(Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(gauges).entrySet()) {
+			header(sb, e.getKey(), "gauge", help.get(e.getKey()));
+			sample(sb, e.getKey(), null, e.getValue().getValue());
+		}
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String type, String description) {
+		sb.append("# HELP ").append(name).append(' ').append(description).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void histogram(StringBuilder sb, String name, String labels, Histogram h) {
+		long[] bounds = h.getBounds();
+		long[] counts = h.getBucketCounts();
+		long cumulative = 0;
+		for(int i = 0; i < bounds.length; i++) {
+			cumulative += counts[i];
+			sample(sb, name + "_bucket", labels + ",le=\"" + seconds(bounds[i]) + "\"", cumulative);
+		}
+		cumulative += counts[bounds.length];
+		sample(sb, name + "_bucket", labels + ",le=\"+Inf\"", cumulative);
+		sb.append(name).append("_sum{").append(labels).append("} ").append(seconds(h.getSum())).append('\n');
+		sample(sb, name + "_count", labels, cumulative);
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name);
+		if(labels != null) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long millis) {
+		return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+	}
+
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static class StageTotals {
+		private final StageMetrics metrics = new StageMetrics();
+		private final long since = System.currentTimeMillis();
+	}
+
+	/**
+	 * The metrics of requests to a single url by a single stage.
+	 */
+	public static class RequestMetrics {
+		private final String labels;
+		private final Histogram duration = new Histogram();
+		private final ConcurrentMap<String, Histogram> phases = new ConcurrentHashMap<String, Histogram>();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong empty = new AtomicLong();
+		private final AtomicLong documents = new AtomicLong();
+
+		RequestMetrics(String url, String stage) {
+			labels = "url=\"" + escape(url) + "\",stage=\"" + escape(stage) + "\"";
+		}
+
+		String getLabels() {
+			return labels;
+		}
+
+		public Histogram getDuration() {
+			return duration;
+		}
+
+		public void record(long millis) {
+			duration.record(millis);
+		}
+
+		public void phase(String phase, long millis) {
+			Histogram h = phases.get(phase);
+			if(h == null) {
+				Histogram created = new Histogram();
+				h = phases.putIfAbsent(phase, created);
+				if(h == null) {
+					h = created;
+				}
+			}
+			h.record(millis);
+		}
+
+		/**
+		 * Counts a poll for documents that returned <code>count</code>
+		 * documents, which may be 0.
+		 */
+		public void poll(int count) {
+			if(count > 0) {
+				hits.incrementAndGet();
+				documents.addAndGet(count);
+			} else {
+				empty.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Counts documents received in a request.
+		 */
+		public void documents(int count) {
+			documents.addAndGet(count);
+		}
+
+		public long getHits() {
+			return hits.get();
+		}
+
+		public long getEmpty() {
+			return empty.get();
+		}
+
+		public long getDocuments() {
+			return documents.get();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Answers GET requests to /metrics with the contents of a {@link Metrics}
+ * registry, in the Prometheus text format.
+ */
+public class MetricsHandler implements ResponsibleHandler {
+	public static final String METRICS_URL = "metrics";
+	
+	private Metrics metrics;
+	
+	public MetricsHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+			throws HttpException, IOException {
+		HttpResponseWriter.printMetrics(response, metrics.toPrometheus());
+	}
+
+	@Override
+	public boolean supports(HttpRequest request) {
+		return RESTTools.isGet(request) && METRICS_URL.equals(RESTTools.getBaseUrl(request));
+	}
+
+	@Override
+	public String[] getSupportedUrls() {
+		return new String[] { METRICS_URL };
+	}
+}
@@ -0,0 +1,98 @@
+package com.findwise.hydra.net;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.HttpRequest;
+
+import com.findwise.hydra.net.RESTTools.Method;
+
+/**
+ * The request line of an incoming request, parsed once into its method, base
+ * url and query parameters. Parameter values are kept exactly as they
+ * appear in the url, without any decoding.
+ */
+public final class ParsedRequest {
+	private final Method method;
+	private final String uri;
+	private final String baseUrl;
+	private final Map<String, String> params;
+
+	private ParsedRequest(Method method, String uri, String baseUrl, Map<String, String> params) {
+		this.method = method;
+		this.uri = uri;
+		this.baseUrl = baseUrl;
+		this.params = params;
+	}
+
+	public static ParsedRequest parse(HttpRequest request) {
+		return parse(request.getRequestLine().getMethod(), request.getRequestLine().getUri());
+	}
+
+	public static ParsedRequest parse(String method, String uri) {
+		int query = uri.indexOf('?');
+		int end = query < 0 ? uri.length() : query;
+		String baseUrl = end > 0 ? uri.substring(1, end) : "";
+
+		Map<String, String> params;
+		if (query < 0) {
+			params = Collections.emptyMap();
+		} else {
+			params = new HashMap<String, String>();
+			int start = query + 1;
+			while (start < uri.length()) {
+				int amp = uri.indexOf('&', start);
+				if (amp < 0) {
+					amp = uri.length();
+				}
+				int eq = uri.indexOf('=', start);
+				if (eq > start && eq < amp - 1) {
+					String name = uri.substring(start, eq);
+					if (!params.containsKey(name)) {
+						params.put(name, uri.substring(eq + 1, amp));
+					}
+				}
+				start = amp + 1;
+			}
+		}
+		return new ParsedRequest(Method.valueOf(method.toUpperCase(Locale.ENGLISH)), uri, baseUrl, params);
+	}
+
+	/**
+	 * @return true if this is the parsed form of the request line of the
+	 * request
+	 */
+	public boolean isParsedFrom(HttpRequest request) {
+		return uri.equals(request.getRequestLine().getUri())
+				&& method.name().equalsIgnoreCase(request.getRequestLine().getMethod());
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the url of the request, without the leading slash and the
+	 * query string
+	 */
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	/**
+	 * @return the value of the parameter, or null if it is missing or empty
+	 */
+	public String getParam(String name) {
+		return params.get(name);
+	}
+
+	public Map<String, String> getParams() {
+		return params;
+	}
+}
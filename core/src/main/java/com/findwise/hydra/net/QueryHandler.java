@@ -1,6 +1,7 @@
 package com.findwise.hydra.net;
 
 import java.io.IOException;
+import java.util.Collection;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -13,6 +14,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.DatabaseConnector;
+import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseQuery;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
@@ -26,6 +28,7 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 	
 	private DatabaseConnector<T> dbc;
 	private boolean performanceLogging = false;
+	private Metrics metrics;
 
 	private static Logger logger = LoggerFactory.getLogger(QueryHandler.class);
 
@@ -34,20 +37,70 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 		this.performanceLogging = performanceLogging;
 	}
 
+	/**
+	 * Sets the registry that the phases of every query are recorded in, or
+	 * null to not record them.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
 	@Override
 	public void handle(HttpRequest request, HttpResponse response,
 			HttpContext arg2) throws HttpException, IOException {
+		respond(request, response, false);
+	}
+
+	/**
+	 * Handles the request, unless it is valid but there is no document
+	 * matching it and <code>waiting</code> is set, in which case the response
+	 * is left untouched so that the request can be retried later.
+	 * 
+	 * @return true if the response has been written
+	 */
+	boolean respond(HttpRequest request, HttpResponse response, boolean waiting) throws IOException {
 		long start = System.currentTimeMillis();
-		logger.trace("handleGetDocument()");
 		HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
-		String requestContent = EntityUtils.toString(requestEntity);
+		return respond(request, EntityUtils.toString(requestEntity), response, waiting, start);
+	}
+
+	/**
+	 * Like {@link #respond(HttpRequest, HttpResponse, boolean)}, for a
+	 * request whose content has already been read, so that it can be
+	 * answered more than once.
+	 */
+	boolean respond(HttpRequest request, String requestContent, HttpResponse response, boolean waiting) {
+		return respond(request, requestContent, response, waiting, System.currentTimeMillis());
+	}
+
+	private boolean respond(HttpRequest request, String requestContent, HttpResponse response, boolean waiting, long start) {
+		logger.trace("handleGetDocument()");
 		long tostring = System.currentTimeMillis();
 		String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
 		
 		if (stage == null) {
 			HttpResponseWriter.printMissingParameter(response,
 					RemotePipeline.STAGE_PARAM);
-			return;
+			return true;
+		}
+
+		boolean batch = RemotePipeline.GET_DOCUMENTS_URL.equals(RESTTools.getBaseUrl(request));
+		int count = 1;
+		if (batch) {
+			String countParam = RESTTools.getParam(request, RemotePipeline.COUNT_PARAM);
+			if (countParam == null) {
+				HttpResponseWriter.printMissingParameter(response, RemotePipeline.COUNT_PARAM);
+				return true;
+			}
+			try {
+				count = Integer.parseInt(countParam);
+			} catch (NumberFormatException e) {
+				count = 0;
+			}
+			if (count < 1) {
+				HttpResponseWriter.printBadParameter(response, RemotePipeline.COUNT_PARAM, countParam);
+				return true;
+			}
 		}
 
 		DatabaseQuery<T> dbq;
@@ -55,29 +108,76 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 			dbq = requestToQuery(requestContent);
 		} catch (JsonException e) {
 			HttpResponseWriter.printJsonException(response, e);
-			return;
+			return true;
 		}
 		
 		long parse = System.currentTimeMillis();
 		
 		reportQuery(stage);		
 		
+		boolean bson = RESTTools.acceptsBson(request);
+		if (batch) {
+			return handleBatch(response, dbq, stage, count, waiting, bson, start, tostring, parse);
+		}
 
 		Document<T> d = dbc.getDocumentWriter().getAndTag(dbq, stage);
 		
 		long query = System.currentTimeMillis();
 		
 		if (d != null) {
-			HttpResponseWriter.printDocument(response, d, stage);
-		} else {
+			HttpResponseWriter.printDocument(response, d, stage, bson);
+		} else if (!waiting) {
 			HttpResponseWriter.printNoDocument(response);
 		}
 
+		long serialize = System.currentTimeMillis();
 		if(performanceLogging) {
-			long serialize = System.currentTimeMillis();
 			Object id = d != null ? d.getID() : null;
 			logger.info(String.format("type=performance event=query stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d entitystring=%d parse=%d query=%d serialize=%d", stage, id, start, serialize, serialize-start, tostring-start, parse-tostring, query-parse, serialize-query));
 		}
+		if(d != null || !waiting) {
+			record(RemotePipeline.GET_DOCUMENT_URL, stage, d != null ? 1 : 0, start, tostring, parse, query, serialize);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean handleBatch(HttpResponse response, DatabaseQuery<T> dbq, String stage, int count, boolean waiting, boolean bson, long start, long tostring, long parse) {
+		Collection<DatabaseDocument<T>> docs = dbc.getDocumentWriter().getAndTag(dbq, stage, count);
+		
+		long query = System.currentTimeMillis();
+		
+		if (!docs.isEmpty()) {
+			HttpResponseWriter.printDocuments(response, docs, stage, bson);
+		} else if (!waiting) {
+			HttpResponseWriter.printNoDocument(response);
+		}
+		
+		long serialize = System.currentTimeMillis();
+		if(performanceLogging) {
+			logger.info(String.format("type=performance event=query_batch stage_name=%s count=%d start=%d end=%d total=%d entitystring=%d parse=%d query=%d serialize=%d", stage, docs.size(), start, serialize, serialize-start, tostring-start, parse-tostring, query-parse, serialize-query));
+		}
+		if(!docs.isEmpty() || !waiting) {
+			record(RemotePipeline.GET_DOCUMENTS_URL, stage, docs.size(), start, tostring, parse, query, serialize);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Records an answered query. Queries that were left waiting for a
+	 * document are not recorded until they are answered.
+	 */
+	private void record(String url, String stage, int found, long start, long tostring, long parse, long query, long serialize) {
+		if(metrics == null) {
+			return;
+		}
+		Metrics.RequestMetrics m = metrics.get(url, stage);
+		m.poll(found);
+		m.phase(Metrics.PHASE_ENTITYSTRING, tostring-start);
+		m.phase(Metrics.PHASE_PARSE, parse-tostring);
+		m.phase(Metrics.PHASE_QUERY, query-parse);
+		m.phase(Metrics.PHASE_SERIALIZE, serialize-query);
 	}
 
 	private DatabaseQuery<T> requestToQuery(String requestContent)
@@ -87,14 +187,17 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 
 	@Override
 	public boolean supports(HttpRequest request) {
-		return RESTTools.getMethod(request) == Method.POST
-				&& RemotePipeline.GET_DOCUMENT_URL.equals(RESTTools
-						.getBaseUrl(request));
+		if (RESTTools.getMethod(request) != Method.POST) {
+			return false;
+		}
+		String url = RESTTools.getBaseUrl(request);
+		return RemotePipeline.GET_DOCUMENT_URL.equals(url)
+				|| RemotePipeline.GET_DOCUMENTS_URL.equals(url);
 	}
 
 	@Override
 	public String[] getSupportedUrls() {
-		return new String[] { RemotePipeline.GET_DOCUMENT_URL };
+		return new String[] { RemotePipeline.GET_DOCUMENT_URL, RemotePipeline.GET_DOCUMENTS_URL };
 	}
 	
 	private void reportQuery(String stage) {
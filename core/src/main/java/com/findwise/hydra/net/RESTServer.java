@@ -3,6 +3,10 @@ package com.findwise.hydra.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
@@ -12,9 +16,9 @@ import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
 import org.apache.http.impl.nio.DefaultNHttpServerConnection;
 import org.apache.http.impl.nio.DefaultNHttpServerConnectionFactory;
 import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.NHttpConnectionFactory;
 import org.apache.http.nio.NHttpServerConnection;
-import org.apache.http.nio.protocol.BasicAsyncRequestHandler;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandlerRegistry;
 import org.apache.http.nio.protocol.HttpAsyncService;
 import org.apache.http.nio.reactor.IOEventDispatch;
@@ -38,6 +42,11 @@ import com.findwise.tools.HttpConnection;
 /**
  * Sets up a REST service on the specified port, or 12001 by default.
  * 
+ * Requests are read by a small number of I/O threads and handed to a pool
+ * of worker threads, so that slow database operations do not hold up the
+ * I/O of other requests. When every worker is busy and the queue of waiting
+ * requests is full, requests are answered with 503 Service Unavailable.
+ * 
  * @author joel.westberg
  */
 public class RESTServer extends Thread {
@@ -57,6 +66,12 @@ public class RESTServer extends Thread {
 	private HttpRESTHandler<?> requestHandler;
 	
 	private String id;
+	
+	private int ioThreads = 0;
+	private int workerThreads = CoreConfiguration.WORKER_THREADS_DEFAULT;
+	private int workerQueueSize = CoreConfiguration.WORKER_QUEUE_SIZE_DEFAULT;
+	
+	private ThreadPoolExecutor workers;
 
 	@SuppressWarnings("rawtypes")
 	public RESTServer(int port, HttpRESTHandler requestHandler) {
@@ -71,6 +86,59 @@ public class RESTServer extends Thread {
 	@SuppressWarnings("rawtypes")
 	public RESTServer(CoreConfiguration conf, HttpRESTHandler requestHandler) {
 		this(conf.getRestPort(), requestHandler);
+		setIoThreads(conf.getIoThreads());
+		setWorkerThreads(conf.getWorkerThreads());
+		setWorkerQueueSize(conf.getWorkerQueueSize());
+	}
+	
+	/**
+	 * Sets the number of I/O threads, or 0 for one per processor. Must be
+	 * called before the server is started.
+	 */
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+	
+	public int getIoThreads() {
+		return ioThreads;
+	}
+	
+	/**
+	 * Sets the number of worker threads, or 0 to handle requests on the I/O
+	 * threads. Must be called before the server is started.
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+	
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+	
+	/**
+	 * Sets the number of requests that may wait for a worker thread. Must be
+	 * called before the server is started.
+	 */
+	public void setWorkerQueueSize(int workerQueueSize) {
+		this.workerQueueSize = workerQueueSize;
+	}
+	
+	public int getWorkerQueueSize() {
+		return workerQueueSize;
+	}
+	
+	/**
+	 * @return the number of requests waiting for a worker thread
+	 */
+	public int getQueuedRequests() {
+		return workers != null ? workers.getQueue().size() : 0;
+	}
+	
+	/**
+	 * @return the number of requests being handled by worker threads
+	 */
+	public int getActiveWorkers() {
+		return workers != null ? workers.getActiveCount() : 0;
 	}
 	
 	public boolean isExecuting() {
@@ -147,7 +215,7 @@ public class RESTServer extends Thread {
 						});
 
 			HttpAsyncRequestHandlerRegistry registry = new HttpAsyncRequestHandlerRegistry();
-			registry.register("*", new BasicAsyncRequestHandler(requestHandler));
+			registry.register("*", requestHandler);
 			
 			HttpAsyncService handler = new HttpAsyncService(httpproc, new DefaultConnectionReuseStrategy(), registry, params) {
 	            @Override
@@ -168,7 +236,41 @@ public class RESTServer extends Thread {
 
 	        IOEventDispatch ioEventDispatch = new DefaultHttpServerIODispatch(handler, connFactory);
 
-			ioReactor = new DefaultListeningIOReactor();
+	        if(workerThreads > 0) {
+	        	workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, 
+	        			new ArrayBlockingQueue<Runnable>(Math.max(1, workerQueueSize)), new ThreadFactory() {
+	        		private int count = 0;
+	        		
+	        		@Override
+	        		public synchronized Thread newThread(Runnable r) {
+	        			Thread t = new Thread(r, "RESTWorker-" + (count++));
+	        			t.setDaemon(true);
+	        			return t;
+	        		}
+	        	});
+	        	requestHandler.setExecutor(workers);
+	        	Metrics metrics = requestHandler.getMetrics();
+	        	if(metrics != null) {
+	        		metrics.addGauge("hydra_rest_worker_queue", "Requests waiting for a worker thread.", new Metrics.Gauge() {
+	        			@Override
+	        			public long getValue() {
+	        				return getQueuedRequests();
+	        			}
+	        		});
+	        		metrics.addGauge("hydra_rest_workers_active", "Worker threads currently handling a request.", new Metrics.Gauge() {
+	        			@Override
+	        			public long getValue() {
+	        				return getActiveWorkers();
+	        			}
+	        		});
+	        	}
+	        }
+	        
+	        IOReactorConfig config = new IOReactorConfig();
+	        if(ioThreads > 0) {
+	        	config.setIoThreadCount(ioThreads);
+	        }
+			ioReactor = new DefaultListeningIOReactor(config);
 
 			ioReactor.listen(new InetSocketAddress(port));
 			executing = true;
@@ -190,7 +292,11 @@ public class RESTServer extends Thread {
 	public void shutdown() throws IOException {
 		logger.info("Caught shutdown command to RESTServer");
 		shutdownCalled = true;
+		requestHandler.getLongPollHandler().shutdown();
 		ioReactor.shutdown();
+		if(workers != null) {
+			workers.shutdown();
+		}
 	}
 	
 	public static RESTServer getNewStartedRESTServer(int port, HttpRESTHandler<?> restHandler) {
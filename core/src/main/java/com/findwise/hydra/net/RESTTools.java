@@ -1,16 +1,30 @@
 package com.findwise.hydra.net;
 
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
 
+import com.findwise.hydra.BsonUtils;
+import com.findwise.hydra.DatabaseConnector;
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.JsonException;
 import com.findwise.hydra.local.RemotePipeline;
 
 public final class RESTTools {
 	public enum Method { GET, PUT, POST, DELETE, HEAD, TRACE, CONNECT, PATCH, OPTIONS };
 	
+	private static final String PARSED_REQUEST = "hydra.parsed-request";
+	
 	public static String getUri(HttpRequest request) {
 		return request.getRequestLine().getUri();
 	}
@@ -19,28 +33,75 @@ public final class RESTTools {
 		return getUri(request).substring(1);
 	}
 	
+	/**
+	 * Parses the request line of the request. The result is stored with the
+	 * request, so the request line is only parsed once however many times
+	 * this is called.
+	 */
+	public static ParsedRequest parse(HttpRequest request) {
+		Object o = request.getParams().getParameter(PARSED_REQUEST);
+		if(o instanceof ParsedRequest && ((ParsedRequest) o).isParsedFrom(request)) {
+			return (ParsedRequest) o;
+		}
+		ParsedRequest parsed = ParsedRequest.parse(request);
+		request.getParams().setParameter(PARSED_REQUEST, parsed);
+		return parsed;
+	}
+	
 	public static Method getMethod(HttpRequest request) {
-		return Method.valueOf(request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH));
+		return parse(request).getMethod();
 	}
 	
 	public static String getParam(HttpRequest request, String param) {
-		String uri = getUri(request);
-		Pattern p = Pattern.compile("[^\\?]+\\?.*"+param+"=([^&]+)");
-		Matcher m = p.matcher(uri);
-		if(!m.find()) {
-			return null;
-		}
-		return m.group(1);
+		return parse(request).getParam(param);
 	}
 	
 	public static String getBaseUrl(HttpRequest request) {
-		String uri = getStrippedUri(request);
-		Pattern p = Pattern.compile("([^\\?]+).*");
-		Matcher m = p.matcher(uri);
-		if(!m.find()) {
-			return null;
+		return parse(request).getBaseUrl();
+	}
+	
+	/**
+	 * Gives a reader over the body of the request, decoded with the same
+	 * charset as EntityUtils.toString(entity) would use.
+	 */
+	@SuppressWarnings("deprecation")
+	public static Reader getContentReader(HttpRequest request) throws IOException {
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		String charset = EntityUtils.getContentCharSet(entity);
+		if(charset == null) {
+			charset = HTTP.DEFAULT_CONTENT_CHARSET;
+		}
+		return new InputStreamReader(entity.getContent(), charset);
+	}
+	
+	/**
+	 * @return true if the body of the request is BSON rather than JSON
+	 */
+	public static boolean isBson(HttpRequest request) {
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		return entity != null && isBson(entity.getContentType());
+	}
+	
+	/**
+	 * @return true if the client asked for documents to be sent as BSON
+	 */
+	public static boolean acceptsBson(HttpRequest request) {
+		return isBson(request.getFirstHeader(HttpHeaders.ACCEPT));
+	}
+	
+	private static boolean isBson(Header header) {
+		return header != null && header.getValue().startsWith(BsonUtils.CONTENT_TYPE);
+	}
+	
+	/**
+	 * Reads the document posted in the request, whether it was sent as JSON
+	 * or as BSON.
+	 */
+	public static <T extends DatabaseType> DatabaseDocument<T> readDocument(DatabaseConnector<T> dbc, HttpRequest request) throws IOException, JsonException, ConversionException {
+		if(isBson(request)) {
+			return dbc.convert(BsonUtils.fromBson(((HttpEntityEnclosingRequest) request).getEntity().getContent()));
 		}
-		return m.group(1);
+		return dbc.convert(getContentReader(request));
 	}
 	
 	public static String getStage(HttpRequest request) {
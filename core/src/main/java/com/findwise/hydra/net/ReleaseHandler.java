@@ -2,43 +2,43 @@ package com.findwise.hydra.net;
 
 import java.io.IOException;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
-import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.hydra.net.RESTTools.Method;
 
 public class ReleaseHandler<T extends DatabaseType> implements ResponsibleHandler {
 
 	private DatabaseConnector<T> dbc;
+	private DocumentListener listener;
 
 	private static Logger logger = LoggerFactory
 			.getLogger(ReleaseHandler.class);
 
 	public ReleaseHandler(DatabaseConnector<T> dbc) {
+		this(dbc, null);
+	}
+
+	public ReleaseHandler(DatabaseConnector<T> dbc, DocumentListener listener) {
 		this.dbc = dbc;
+		this.listener = listener;
 	}
 
 	@Override
 	public void handle(HttpRequest request, HttpResponse response,
 			HttpContext arg2) throws HttpException, IOException {
 		logger.trace("handleReleaseDocument()");
-		HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request)
-				.getEntity();
-		String requestContent = EntityUtils.toString(requestEntity);
 		String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
 
 		if (stage == null) {
@@ -48,7 +48,13 @@ public class ReleaseHandler<T extends DatabaseType> implements ResponsibleHandle
 		}
 
 		try {
-			boolean x = release(dbc.convert(new LocalDocument(requestContent)), stage);
+			Document<T> md = RESTTools.readDocument(dbc, request);
+			boolean x;
+			if ("1".equals(RESTTools.getParam(request, RemotePipeline.UNFETCH_PARAM))) {
+				x = unfetch(md, stage);
+			} else {
+				x = release(md, stage);
+			}
 			if (!x) {
 				HttpResponseWriter.printNoDocument(response);
 			}
@@ -65,7 +71,32 @@ public class ReleaseHandler<T extends DatabaseType> implements ResponsibleHandle
 	}
 
 	private boolean release(Document<T> md, String stage) {
-		return dbc.getDocumentWriter().markTouched(md.getID(), stage);
+		if(dbc.getDocumentWriter().markTouched(md.getID(), stage)) {
+			if(listener != null) {
+				listener.documentChanged(stage);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Makes a document fetched, but never processed, by the stage available
+	 * to it again.
+	 */
+	private boolean unfetch(Document<T> md, String stage) {
+		DatabaseDocument<T> inDB = dbc.getDocumentReader().getDocumentById(md.getID());
+		if (inDB == null) {
+			return false;
+		}
+		inDB.removeFetchedBy(stage);
+		if (dbc.getDocumentWriter().update(inDB)) {
+			if (listener != null) {
+				listener.documentChanged(null);
+			}
+			return true;
+		}
+		return false;
 	}
 
 	@Override
@@ -0,0 +1,82 @@
+package com.findwise.hydra.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NFileEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A response entity whose content is first copied from a stream into a
+ * temporary file, on the thread handling the request, so that the I/O
+ * reactor only has to read from a local file when sending it instead of
+ * blocking on the stream. The file is removed once the response has been
+ * sent or the entity is closed.
+ */
+public class SpooledResponseEntity extends NFileEntity {
+	private static Logger logger = LoggerFactory.getLogger(SpooledResponseEntity.class);
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final File spooled;
+
+	private SpooledResponseEntity(File file) {
+		super(file, ContentType.DEFAULT_BINARY);
+		spooled = file;
+	}
+
+	/**
+	 * Copies the stream into a temporary file and closes it.
+	 */
+	public static SpooledResponseEntity spool(InputStream in) throws IOException {
+		File file = File.createTempFile("hydra-download", ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			delete(file);
+			throw e;
+		} finally {
+			in.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+		return new SpooledResponseEntity(file);
+	}
+
+	@Override
+	public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+		super.produceContent(encoder, ioctrl);
+		if (encoder.isCompleted()) {
+			close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			delete(spooled);
+		}
+	}
+
+	private static void delete(File file) {
+		if (file.exists() && !file.delete()) {
+			logger.warn("Unable to delete the spooled response body " + file);
+		}
+	}
+}
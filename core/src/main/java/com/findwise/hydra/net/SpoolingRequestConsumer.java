@@ -0,0 +1,124 @@
+package com.findwise.hydra.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumes a request by writing its body to a temporary file as it arrives,
+ * rather than buffering it in memory. The consumed request carries a
+ * {@link SpooledFileEntity} reading from that file, which must be discarded
+ * once the request has been handled.
+ */
+public class SpoolingRequestConsumer extends AbstractAsyncRequestConsumer<HttpRequest> {
+	private static Logger logger = LoggerFactory.getLogger(SpoolingRequestConsumer.class);
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private HttpRequest request;
+	private File file;
+	private FileChannel channel;
+	private long position;
+	private ContentType contentType;
+	private ByteBuffer buffer;
+	private boolean built;
+
+	@Override
+	protected void onRequestReceived(HttpRequest request) throws HttpException, IOException {
+		this.request = request;
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		this.contentType = contentType;
+		file = File.createTempFile("hydra-upload", ".tmp");
+		channel = new FileOutputStream(file).getChannel();
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		if (decoder instanceof FileContentDecoder) {
+			position += ((FileContentDecoder) decoder).transfer(channel, position, Integer.MAX_VALUE);
+			return;
+		}
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		while (decoder.read(buffer) > 0) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	@Override
+	protected HttpRequest buildResult(HttpContext context) throws Exception {
+		if (channel != null) {
+			channel.close();
+			((HttpEntityEnclosingRequest) request).setEntity(new SpooledFileEntity(file, contentType));
+		}
+		built = true;
+		return request;
+	}
+
+	@Override
+	protected void releaseResources() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Unable to close the spooled request body", e);
+			}
+		}
+		if (!built && file != null && !file.delete()) {
+			logger.warn("Unable to delete the spooled request body " + file);
+		}
+		buffer = null;
+	}
+
+	/**
+	 * Removes the spooled body of the request, if it has one.
+	 */
+	public static void discard(HttpRequest request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if (entity instanceof SpooledFileEntity) {
+				((SpooledFileEntity) entity).discard();
+			}
+		}
+	}
+
+	/**
+	 * An entity reading from a temporary file, which is removed when the
+	 * entity is discarded.
+	 */
+	public static class SpooledFileEntity extends FileEntity {
+		public SpooledFileEntity(File file, ContentType contentType) {
+			super(file, contentType);
+		}
+
+		public void discard() {
+			if (file.exists() && !file.delete()) {
+				logger.warn("Unable to delete the spooled request body " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.RemotePipeline;
+
+/**
+ * Receives the metrics pushed by stages through 
+ * {@link RemotePipeline#pushMetrics()}, and answers GET requests with a table
+ * of the throughput and latencies of every stage.
+ * 
+ * If no {@link Metrics} registry is set, pushed metrics are accepted but
+ * ignored, so that stages do not treat it as an error.
+ */
+public class StageMetricsHandler implements ResponsibleHandler {
+	private static Logger logger = LoggerFactory.getLogger(StageMetricsHandler.class);
+	
+	private Metrics metrics;
+	
+	public StageMetricsHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+			throws HttpException, IOException {
+		if(RESTTools.isGet(request)) {
+			HttpResponseWriter.printJson(response, metrics != null ? metrics.getStageTable() : new HashMap<String, Object>());
+			return;
+		}
+		
+		String stage = RESTTools.getStage(request);
+		if(stage == null) {
+			HttpResponseWriter.printMissingParameter(response, RemotePipeline.STAGE_PARAM);
+			return;
+		}
+		String content = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity());
+		if(metrics != null) {
+			try {
+				Map<String, Object> drained = SerializationUtils.fromJson(content);
+				metrics.addStageMetrics(stage, drained);
+			} catch (JsonException e) {
+				HttpResponseWriter.printJsonException(response, e);
+				return;
+			} catch (IllegalArgumentException e) {
+				logger.error("Received malformed metrics from stage " + stage, e);
+				HttpResponseWriter.printBadRequestContent(response);
+				return;
+			}
+		}
+		HttpResponseWriter.printMetricsReceived(response);
+	}
+
+	@Override
+	public boolean supports(HttpRequest request) {
+		return (RESTTools.isGet(request) || RESTTools.isPost(request))
+				&& RemotePipeline.STAGE_METRICS_URL.equals(RESTTools.getBaseUrl(request));
+	}
+
+	@Override
+	public String[] getSupportedUrls() {
+		return new String[] { RemotePipeline.STAGE_METRICS_URL };
+	}
+}
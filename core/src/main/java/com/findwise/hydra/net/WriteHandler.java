@@ -3,13 +3,10 @@ package com.findwise.hydra.net;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,7 +16,6 @@ import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
-import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.hydra.net.RESTTools.Method;
 
@@ -27,21 +23,34 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 
 	private DatabaseConnector<T> dbc;
 	private boolean performanceLogging;
+	private DocumentListener listener;
+	private Metrics metrics;
 	
 	private static Logger logger = LoggerFactory.getLogger(WriteHandler.class);
 
 	public WriteHandler(DatabaseConnector<T> dbc, boolean performanceLogging) {
+		this(dbc, performanceLogging, null);
+	}
+	
+	public WriteHandler(DatabaseConnector<T> dbc, boolean performanceLogging, DocumentListener listener) {
 		this.dbc = dbc;
 		this.performanceLogging = performanceLogging;
+		this.listener = listener;
 	}
 	
+	/**
+	 * Sets the registry that the phases of every request are recorded in, or
+	 * null to not record them.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
 	@Override
 	public void handle(HttpRequest request, HttpResponse response, HttpContext arg2)
 			throws HttpException, IOException {
 		logger.trace("handleWriteDocument()");
         long start = System.currentTimeMillis();
-		HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
-        String requestContent = EntityUtils.toString(requestEntity);
         long tostring = System.currentTimeMillis();
         
         String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
@@ -64,13 +73,13 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
         
         DatabaseDocument<T> md;
         try {
-        	md = dbc.convert(new LocalDocument(requestContent));
+        	md = RESTTools.readDocument(dbc, request);
         }
         catch(JsonException e) {
         	HttpResponseWriter.printJsonException(response, e);
         	return;
         } catch (ConversionException e) {
-			logger.error("Caught Exception when trying to convert "+requestContent, e);
+			logger.error("Caught Exception when trying to convert the posted document", e);
 			HttpResponseWriter.printBadRequestContent(response);
 			return;
 		}
@@ -101,14 +110,28 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 				return;
 			}
 		}
+		long end = System.currentTimeMillis();
+		if(metrics != null) {
+			Metrics.RequestMetrics m = metrics.get(RemotePipeline.WRITE_DOCUMENT_URL, stage);
+			m.documents(1);
+			m.phase(Metrics.PHASE_ENTITYSTRING, tostring-start);
+			m.phase(Metrics.PHASE_PARSE, convert-tostring);
+			m.phase(Metrics.PHASE_QUERY, write-convert);
+			m.phase(Metrics.PHASE_SERIALIZE, end-write);
+		}
 		if(performanceLogging) {
-			long end = System.currentTimeMillis();
 			logger.info(String.format("type=performance event=%s stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d entitystring=%d parse=%d query=%d serialize=%d", type, stage, md.getID(), start, end, end-start, tostring-start, convert-tostring, write-convert, end-write));	
 		}
 	}
 	
 	private boolean release(Document<T> md, String stage) {
-		return dbc.getDocumentWriter().markTouched(md.getID(), stage);
+		if(dbc.getDocumentWriter().markTouched(md.getID(), stage)) {
+			if(listener != null) {
+				listener.documentChanged(stage);
+			}
+			return true;
+		}
+		return false;
 	}
 	
 	private boolean handlePartialWrite(DatabaseDocument<T> md, HttpResponse response) throws UnsupportedEncodingException{
@@ -149,6 +172,9 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 	private boolean handleInsert(DatabaseDocument<T> md, HttpResponse response) {
 		if(dbc.getDocumentWriter().insert(md)) {
 			HttpResponseWriter.printInsertOk(response, md);
+			if(listener != null) {
+				listener.documentChanged(null);
+			}
 			return true;
 		}
 		else {
@@ -0,0 +1,137 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.memorydb.MemoryClusterCoordinator;
+
+public class ClusterManagerTest {
+	private static final long HEARTBEAT_MS = 20;
+
+	private MemoryClusterCoordinator coordinator;
+	private Set<String> groups;
+
+	@Before
+	public void setUp() {
+		coordinator = new MemoryClusterCoordinator();
+		groups = new HashSet<String>();
+		for (int i = 0; i < 20; i++) {
+			groups.add("group" + i);
+		}
+	}
+
+	@Test
+	public void testSingleNodeHoldsAll() {
+		CountingListener listener = new CountingListener();
+		ClusterManager a = new ClusterManager(coordinator, "a", HEARTBEAT_MS, listener);
+		a.tick();
+		assertEquals(groups, a.getHeldGroups());
+		assertEquals(1, listener.changes);
+
+		a.tick();
+		assertEquals(1, listener.changes);
+		assertEquals("a", coordinator.getLeaseHolder("group0"));
+	}
+
+	@Test
+	public void testRebalanceOnJoin() {
+		ClusterManager a = new ClusterManager(coordinator, "a", HEARTBEAT_MS, new CountingListener());
+		ClusterManager b = new ClusterManager(coordinator, "b", HEARTBEAT_MS, new CountingListener());
+		a.tick();
+		b.tick();
+		assertTrue(b.getHeldGroups().isEmpty());
+
+		a.tick();
+		b.tick();
+		assertPartitioned(a, b);
+		assertFalse(a.getHeldGroups().isEmpty());
+		assertFalse(b.getHeldGroups().isEmpty());
+		for (String group : groups) {
+			String preferred = ClusterManager.getPreferredNode(group, new HashSet<String>(Arrays.asList("a", "b")));
+			assertEquals(preferred, coordinator.getLeaseHolder(group));
+		}
+	}
+
+	@Test
+	public void testTakeOverOnFailure() throws Exception {
+		ClusterManager a = new ClusterManager(coordinator, "a", HEARTBEAT_MS, new CountingListener());
+		ClusterManager b = new ClusterManager(coordinator, "b", HEARTBEAT_MS, new CountingListener());
+		b.tick();
+		a.tick();
+		b.tick();
+		a.tick();
+		assertPartitioned(a, b);
+
+		Thread.sleep(HEARTBEAT_MS * ClusterManager.TTL_HEARTBEATS + 20);
+		a.tick();
+		assertEquals(groups, a.getHeldGroups());
+	}
+
+	@Test
+	public void testLeave() {
+		ClusterManager a = new ClusterManager(coordinator, "a", HEARTBEAT_MS, new CountingListener());
+		ClusterManager b = new ClusterManager(coordinator, "b", HEARTBEAT_MS, new CountingListener());
+		a.tick();
+		b.tick();
+		a.leave();
+		assertNull(coordinator.getLeaseHolder("group0"));
+		assertFalse(coordinator.getLiveNodes().contains("a"));
+
+		b.tick();
+		assertEquals(groups, b.getHeldGroups());
+	}
+
+	@Test
+	public void testRemovedGroupIsReleased() {
+		CountingListener listener = new CountingListener();
+		ClusterManager a = new ClusterManager(coordinator, "a", HEARTBEAT_MS, listener);
+		a.tick();
+		groups.remove("group0");
+		a.tick();
+		assertFalse(a.isHolding("group0"));
+		assertNull(coordinator.getLeaseHolder("group0"));
+		assertEquals(2, listener.changes);
+	}
+
+	@Test
+	public void testPreferredNodeIsStable() {
+		Set<String> nodes = new HashSet<String>(Arrays.asList("a", "b", "c"));
+		Set<String> moreNodes = new HashSet<String>(Arrays.asList("a", "b", "c", "d"));
+		for (String group : groups) {
+			String before = ClusterManager.getPreferredNode(group, nodes);
+			String after = ClusterManager.getPreferredNode(group, moreNodes);
+			assertTrue(after.equals(before) || after.equals("d"));
+		}
+		assertNull(ClusterManager.getPreferredNode("group0", new HashSet<String>()));
+	}
+
+	private void assertPartitioned(ClusterManager a, ClusterManager b) {
+		Set<String> all = new HashSet<String>(a.getHeldGroups());
+		all.addAll(b.getHeldGroups());
+		assertEquals(groups, all);
+		assertEquals(groups.size(), a.getHeldGroups().size() + b.getHeldGroups().size());
+	}
+
+	private class CountingListener implements ClusterManager.Listener {
+		private int changes = 0;
+
+		@Override
+		public Set<String> getGroupNames() {
+			return new HashSet<String>(groups);
+		}
+
+		@Override
+		public void assignmentChanged() {
+			changes++;
+		}
+	}
+}
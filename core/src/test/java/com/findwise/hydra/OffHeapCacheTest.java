@@ -0,0 +1,177 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class OffHeapCacheTest {
+	private MemoryConnector mc;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+	}
+
+	private DatabaseDocument<MemoryType> insert(String field, Object value) {
+		LocalDocument ld = new LocalDocument();
+		ld.putContentField(field, value);
+		DatabaseDocument<MemoryType> doc = mc.convert(ld);
+		mc.getDocumentWriter().insert(doc);
+		return doc;
+	}
+
+	private CachingQuery<MemoryType> query(LocalQuery lq) throws Exception {
+		return new CachingQuery<MemoryType>(mc.convert(lq), lq);
+	}
+
+	@Test
+	public void testGetAndTag() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 1024 * 1024, 1024);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(cache.add(insert("number", i)));
+		}
+		assertTrue(cache.add(insert("other", "x")));
+
+		LocalQuery lq = new LocalQuery();
+		lq.requireContentFieldExists("number");
+
+		for (int i = 0; i < 3; i++) {
+			DatabaseDocument<MemoryType> doc = cache.getAndTag(query(lq), "stage");
+			assertNotNull(doc);
+			assertTrue(doc.hasContentField("number"));
+			assertTrue(doc.getFetchedBy().contains("stage"));
+		}
+		assertNull(cache.getAndTag(query(lq), "stage"));
+		assertNotNull(cache.getAndTag(query(lq), "otherstage"));
+		assertEquals(4, cache.size());
+	}
+
+	@Test
+	public void testTouchedQuery() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 1024 * 1024, 1024);
+		DatabaseDocument<MemoryType> doc = insert("field", "value");
+		cache.add(doc);
+
+		LocalQuery lq = new LocalQuery();
+		lq.requireTouchedByStage("first");
+		assertNull(cache.getDocument(query(lq)));
+
+		assertTrue(cache.markTouched(doc.getID(), "first"));
+		assertNotNull(cache.getDocument(query(lq)));
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 1024 * 1024, 1024);
+		DatabaseDocument<MemoryType> doc = insert("field", "value");
+		cache.add(doc);
+
+		doc.putContentField("field", "a much longer value than the one before");
+		doc.putContentField("added", 1);
+		assertTrue(cache.update(doc));
+
+		DatabaseDocument<MemoryType> cached = cache.getDocumentById(doc.getID());
+		assertEquals("a much longer value than the one before", cached.getContentField("field"));
+		assertTrue(cached.hasContentField("added"));
+	}
+
+	@Test
+	public void testBoundedSize() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 4096, 1024);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 600; i++) {
+			sb.append('x');
+		}
+
+		int added = 0;
+		for (int i = 0; i < 20; i++) {
+			if (cache.add(insert("data", sb.toString()))) {
+				added++;
+			}
+		}
+		assertTrue(added > 0);
+		assertTrue(added < 20);
+		assertTrue(cache.getAllocatedBytes() <= 4096);
+		assertFalse(cache.add(insert("data", sb.toString())));
+	}
+
+	@Test
+	public void testRewritesPastMaxBytes() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 4096, 1024);
+		List<DatabaseDocument<MemoryType>> docs = new ArrayList<DatabaseDocument<MemoryType>>();
+		for (int i = 0; i < 3; i++) {
+			DatabaseDocument<MemoryType> doc = insert("data", "");
+			assertTrue(cache.add(doc));
+			docs.add(doc);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		long written = 0;
+		for (int i = 0; i < 100; i++) {
+			sb.append("xxxx");
+			for (DatabaseDocument<MemoryType> doc : docs) {
+				doc.putContentField("data", sb.toString());
+				assertTrue(cache.update(doc));
+				written += doc.toJson().length();
+			}
+		}
+		assertTrue(written > 4096 * 10);
+		assertEquals(3, cache.size());
+		assertTrue(cache.getAllocatedBytes() <= 4096);
+		for (DatabaseDocument<MemoryType> doc : docs) {
+			assertEquals(sb.toString(), cache.getDocumentById(doc.getID()).getContentField("data"));
+		}
+	}
+
+	@Test
+	public void testRemoveReleasesMemory() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 1024, 1024);
+		DatabaseDocument<MemoryType> doc = insert("field", "value");
+		assertTrue(cache.add(doc));
+		assertTrue(cache.getUsedBytes() > 0);
+
+		assertTrue(cache.markProcessed(doc.getID(), "stage"));
+		assertEquals(0, cache.getUsedBytes());
+		assertNull(cache.getDocumentById(doc.getID()));
+		assertFalse(cache.markProcessed(doc.getID(), "stage"));
+	}
+
+	@Test
+	public void testEvict() throws Exception {
+		OffHeapCache<MemoryType> cache = new OffHeapCache<MemoryType>(mc, 1024 * 1024, 1024);
+		DatabaseDocument<MemoryType> first = insert("name", "first");
+		DatabaseDocument<MemoryType> second = insert("name", "second");
+		DatabaseDocument<MemoryType> third = insert("name", "third");
+		cache.add(first);
+		Thread.sleep(10);
+		cache.add(second);
+		Thread.sleep(10);
+		cache.add(third);
+
+		assertTrue(cache.evict(Long.MAX_VALUE, 3).isEmpty());
+
+		Thread.sleep(10);
+		cache.getDocumentById(first.getID());
+		Collection<DatabaseDocument<MemoryType>> evicted = cache.evict(Long.MAX_VALUE, 2);
+		assertEquals(1, evicted.size());
+		assertEquals("second", evicted.iterator().next().getContentField("name"));
+
+		assertEquals(2, cache.evict(0, Integer.MAX_VALUE).size());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getUsedBytes());
+	}
+}
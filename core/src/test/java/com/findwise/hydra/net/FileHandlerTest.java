@@ -2,7 +2,9 @@ package com.findwise.hydra.net;
 
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.IOUtils;
@@ -59,6 +61,42 @@ public class FileHandlerTest {
 		}
 	}
 	
+	@Test
+	public void testStreamBinaryFile() throws Exception {
+		MemoryDocument testDoc = new MemoryDocument();
+		mc.getDocumentWriter().insert(testDoc);
+		
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		
+		byte[] content = new byte[256 * 1024];
+		for(int i=0; i<content.length; i++) {
+			content[i] = (byte) i;
+		}
+		DocumentFile<Local> df = new DocumentFile<Local>(testDoc.getID().getLocalDocumentID(), "image.png", new ByteArrayInputStream(content));
+		df.setMimetype("image/png");
+		df.setEncoding("ISO-8859-1");
+		if(!rp.saveFile(df)) {
+			fail("File was not saved");
+		}
+		
+		DocumentFile<Local> read = rp.getFile("image.png", testDoc.getID().getLocalDocumentID());
+		if(!Arrays.equals(content, IOUtils.toByteArray(read.getStream()))) {
+			fail("File had wrong contents");
+		}
+		if(!"image/png".equals(read.getMimetype())) {
+			fail("File had wrong mimetype");
+		}
+		if(!"ISO-8859-1".equals(read.getEncoding())) {
+			fail("File had wrong encoding");
+		}
+		if(!"stage".equals(read.getSavedByStage())) {
+			fail("File was not saved by the stage");
+		}
+		if(read.getUploadDate() == null) {
+			fail("File had no upload date");
+		}
+	}
+	
 	@Test
 	public void testFileList() throws Exception {		
 		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
@@ -1,17 +1,32 @@
 package com.findwise.hydra.net;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.SerializationUtils;
 import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.local.StageMetrics;
 import com.findwise.hydra.memorydb.MemoryConnector;
 import com.findwise.hydra.memorydb.MemoryType;
+import com.findwise.tools.HttpConnection;
 
 public class HttpRESTHandlerTest {
 
@@ -70,4 +85,71 @@ public class HttpRESTHandlerTest {
 			fail("Server should have been working, since allowed hosts is null");
 		}
 	}
+
+	@Test
+	public void testServiceUnavailable() throws Exception {
+		final AtomicInteger rejections = new AtomicInteger(1);
+		restHandler.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if(rejections.getAndDecrement() > 0) {
+					throw new RejectedExecutionException();
+				}
+				command.run();
+			}
+		});
+		
+		HttpConnection conn = new HttpConnection("localhost", server.getPort());
+		conn.setMaxUnavailableRetries(0);
+		HttpResponse response = conn.get("/");
+		EntityUtils.consume(response.getEntity());
+		assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.getStatusLine().getStatusCode());
+		assertEquals(""+HttpRESTHandler.RETRY_AFTER_SECONDS, response.getFirstHeader(HttpHeaders.RETRY_AFTER).getValue());
+		
+		rejections.set(1);
+		conn.setMaxUnavailableRetries(1);
+		response = conn.get("/");
+		EntityUtils.consume(response.getEntity());
+		assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+		assertEquals(1, conn.getUnavailableCount());
+	}
+	
+	@Test
+	public void testMetrics() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		assertNull(rp.getDocument(new LocalQuery()));
+		
+		HttpConnection conn = new HttpConnection("localhost", server.getPort());
+		HttpResponse response = conn.get("/" + MetricsHandler.METRICS_URL);
+		String metrics = EntityUtils.toString(response.getEntity());
+		assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+		assertTrue(response.getEntity().getContentType().getValue().startsWith("text/plain; version=0.0.4"));
+		assertTrue(metrics.contains("hydra_request_duration_seconds_count{url=\""+RemotePipeline.GET_DOCUMENT_URL+"\",stage=\"stage\"} 1\n"));
+		assertTrue(metrics.contains("hydra_polls_total{url=\""+RemotePipeline.GET_DOCUMENT_URL+"\",stage=\"stage\",result=\"empty\"} 1\n"));
+		assertTrue(metrics.contains("hydra_request_phase_duration_seconds_count{url=\""+RemotePipeline.GET_DOCUMENT_URL+"\",stage=\"stage\",phase=\"query\"} 1\n"));
+		assertTrue(metrics.contains("# TYPE hydra_long_polls_waiting gauge\n"));
+	}
+	
+	@Test
+	public void testStageMetrics() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		rp.getMetrics().time(StageMetrics.PROCESS, 20);
+		rp.getMetrics().count(StageMetrics.DOCUMENTS);
+		assertTrue(rp.pushMetrics());
+		rp.getMetrics().count(StageMetrics.DOCUMENTS);
+		assertTrue(rp.pushMetrics());
+		
+		HttpConnection conn = new HttpConnection("localhost", server.getPort());
+		HttpResponse response = conn.get("/" + RemotePipeline.STAGE_METRICS_URL);
+		Map<String, Object> table = SerializationUtils.fromJson(EntityUtils.toString(response.getEntity()));
+		Map<?, ?> row = (Map<?, ?>) table.get("stage");
+		assertEquals(2, ((Number) ((Map<?, ?>) row.get("counters")).get(StageMetrics.DOCUMENTS)).intValue());
+		Map<?, ?> process = (Map<?, ?>) ((Map<?, ?>) row.get("timers")).get(StageMetrics.PROCESS);
+		assertEquals(1, ((Number) process.get("count")).intValue());
+		assertEquals(20, ((Number) process.get("p99")).intValue());
+		
+		response = conn.get("/" + MetricsHandler.METRICS_URL);
+		String metrics = EntityUtils.toString(response.getEntity());
+		assertTrue(metrics.contains("hydra_stage_events_total{stage=\"stage\",event=\""+StageMetrics.DOCUMENTS+"\"} 2\n"));
+	}
 }
@@ -0,0 +1,147 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class LongPollHandlerTest {
+	private MemoryConnector mc;
+	private HttpRESTHandler<MemoryType> handler;
+	private RESTServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		handler = new HttpRESTHandler<MemoryType>(mc);
+		server = RESTServer.getNewStartedRESTServer(22000, handler);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void testWokenByTouch() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		mc.getDocumentWriter().insert(mc.convert(doc));
+
+		final RemotePipeline second = new RemotePipeline("localhost", server.getPort(), "second");
+		second.setLongPollTimeout(10000);
+		final LocalQuery query = new LocalQuery();
+		query.requireTouchedByStage("first");
+
+		final LocalDocument[] result = new LocalDocument[1];
+		final Exception[] error = new Exception[1];
+		Thread poller = new Thread() {
+			public void run() {
+				try {
+					result[0] = second.getDocument(query);
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		poller.start();
+
+		while (handler.getLongPollHandler().getWaiting() == 0) {
+			Thread.sleep(10);
+		}
+
+		RemotePipeline first = new RemotePipeline("localhost", server.getPort(), "first");
+		LocalDocument ld = first.getDocument(new LocalQuery());
+		assertNotNull(ld);
+		ld.putContentField("touched", true);
+		assertTrue(first.saveCurrentDocument());
+
+		poller.join(10000);
+		assertNull("Parked request failed: " + error[0], error[0]);
+		assertTrue("Parked request was not woken up", System.currentTimeMillis() - start < 10000);
+		assertNotNull(result[0]);
+		assertEquals(true, result[0].getContentField("touched"));
+		assertEquals(0, handler.getLongPollHandler().getWaiting());
+	}
+
+	@Test
+	public void testNotAnsweredWithNonMatchingInsert() throws Exception {
+		final RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		rp.setLongPollTimeout(10000);
+		final LocalQuery query = new LocalQuery();
+		query.requireContentFieldEquals("field", "match");
+
+		final LocalDocument[] result = new LocalDocument[1];
+		final Exception[] error = new Exception[1];
+		Thread poller = new Thread() {
+			public void run() {
+				try {
+					result[0] = rp.getDocument(query);
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		poller.start();
+
+		while (handler.getLongPollHandler().getWaiting() == 0) {
+			Thread.sleep(10);
+		}
+
+		RemotePipeline inserter = new RemotePipeline("localhost", server.getPort(), "inserter");
+		LocalDocument other = new LocalDocument();
+		other.putContentField("field", "other");
+		assertTrue(inserter.saveFull(other));
+		assertNotNull("The non-matching document was not inserted", other.getID());
+
+		Thread.sleep(200);
+		assertTrue("Parked request was answered with a non-matching document", poller.isAlive());
+		assertEquals(1, handler.getLongPollHandler().getWaiting());
+
+		LocalDocument match = new LocalDocument();
+		match.putContentField("field", "match");
+		assertTrue(inserter.saveFull(match));
+
+		poller.join(10000);
+		assertNull("Parked request failed: " + error[0], error[0]);
+		assertNotNull(result[0]);
+		assertEquals("match", result[0].getContentField("field"));
+		assertEquals(0, handler.getLongPollHandler().getWaiting());
+	}
+
+	@Test
+	public void testAnsweredRightAway() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		mc.getDocumentWriter().insert(mc.convert(doc));
+
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		rp.setLongPollTimeout(10000);
+
+		long start = System.currentTimeMillis();
+		assertNotNull(rp.getDocument(new LocalQuery()));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		rp.setLongPollTimeout(300);
+
+		long start = System.currentTimeMillis();
+		assertNull(rp.getDocument(new LocalQuery()));
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(0, handler.getLongPollHandler().getWaiting());
+	}
+}
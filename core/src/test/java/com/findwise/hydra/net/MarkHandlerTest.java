@@ -1,5 +1,7 @@
 package com.findwise.hydra.net;
 
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -59,4 +61,35 @@ public class MarkHandlerTest {
 			fail("No FAILED status on the document");
 		}
 	}
+	
+	@Test
+	public void testBulkMarkProcessed() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "x");
+		
+		for(int i=0; i<3; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("number", i);
+			mc.getDocumentWriter().insert(mc.convert(doc));
+		}
+		
+		List<LocalDocument> docs = rp.getDocuments(new LocalQuery(), 3);
+		assertEquals(3, docs.size());
+		for(LocalDocument doc : docs) {
+			doc.putContentField("marked", true);
+		}
+		
+		if(!rp.markProcessed(docs)) {
+			fail("markProcessed returned false");
+		}
+		
+		assertEquals(0, mc.getDocumentReader().getActiveDatabaseSize());
+		
+		for(LocalDocument doc : docs) {
+			MemoryDocument inDb = (MemoryDocument) mc.getDocumentReader().getDocumentById(mc.convert(doc).getID(), true);
+			assertNotNull(inDb);
+			assertEquals(Status.PROCESSED, inDb.getStatus());
+			assertEquals(true, inDb.getContentField("marked"));
+			assertEquals(doc.getContentField("number"), inDb.getContentField("number"));
+		}
+	}
 }
@@ -0,0 +1,44 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+import com.findwise.hydra.net.RESTTools.Method;
+
+public class ParsedRequestTest {
+
+	@Test
+	public void testParse() {
+		ParsedRequest p = ParsedRequest.parse("post", "/getDocument?stage=s1&count=3&partial=");
+		assertEquals(Method.POST, p.getMethod());
+		assertEquals("getDocument", p.getBaseUrl());
+		assertEquals("s1", p.getParam("stage"));
+		assertEquals("3", p.getParam("count"));
+		assertNull(p.getParam("partial"));
+		assertNull(p.getParam("missing"));
+	}
+
+	@Test
+	public void testParseWithoutQuery() {
+		ParsedRequest p = ParsedRequest.parse("GET", "/");
+		assertEquals("", p.getBaseUrl());
+		assertEquals(0, p.getParams().size());
+
+		p = ParsedRequest.parse("GET", "/getProperties");
+		assertEquals("getProperties", p.getBaseUrl());
+		assertNull(p.getParam("stage"));
+	}
+
+	@Test
+	public void testParsedOnce() {
+		BasicHttpRequest request = new BasicHttpRequest("GET", "/getProperties?stage=x");
+		ParsedRequest p = RESTTools.parse(request);
+		assertSame(p, RESTTools.parse(request));
+		assertEquals("x", RESTTools.getStage(request));
+		assertEquals("getProperties", RESTTools.getBaseUrl(request));
+	}
+}
@@ -0,0 +1,110 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class QueryHandlerTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		server = RESTServer.getNewStartedRESTServer(21000, new HttpRESTHandler<MemoryType>(mc));
+
+		for(int i=0; i<5; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("number", i);
+			mc.getDocumentWriter().insert(mc.convert(doc));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void testGetDocuments() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "x");
+
+		List<LocalDocument> first = rp.getDocuments(new LocalQuery(), 3);
+		assertEquals(3, first.size());
+
+		List<LocalDocument> second = rp.getDocuments(new LocalQuery(), 3);
+		assertEquals(2, second.size());
+
+		Set<Object> numbers = new HashSet<Object>();
+		for(LocalDocument ld : first) {
+			assertNotNull(ld.getID());
+			numbers.add(ld.getContentField("number"));
+		}
+		for(LocalDocument ld : second) {
+			numbers.add(ld.getContentField("number"));
+		}
+		assertEquals("Got the same document twice", 5, numbers.size());
+
+		assertTrue(rp.getDocuments(new LocalQuery(), 3).isEmpty());
+	}
+
+	@Test
+	public void testBatchedGetDocument() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "x");
+
+		for(int i=0; i<5; i++) {
+			LocalDocument ld = rp.getDocument(new LocalQuery(), 2);
+			assertNotNull(ld);
+			ld.putContentField("seen", true);
+			assertTrue(rp.saveCurrentDocument());
+		}
+
+		assertNull(rp.getDocument(new LocalQuery(), 2));
+	}
+
+	@Test
+	public void testReleasePrefetchedDocuments() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "x");
+
+		assertNotNull(rp.getDocument(new LocalQuery(), 3));
+		assertEquals(2, rp.releasePrefetchedDocuments());
+
+		assertEquals(4, rp.getDocuments(new LocalQuery(), 5).size());
+	}
+
+	@Test
+	public void testBinaryWireFormat() throws Exception {
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "x");
+		rp.setBinaryWireFormat(true);
+
+		assertEquals(2, rp.getDocuments(new LocalQuery(), 2).size());
+
+		LocalDocument ld = rp.getDocument(new LocalQuery());
+		assertNotNull(ld);
+		ld.putContentField("seen", true);
+		assertTrue(rp.saveCurrentDocument());
+		LocalQuery seen = new LocalQuery();
+		seen.requireContentFieldExists("seen");
+		assertEquals(ld.getContentField("number"), mc.getDocumentReader().getDocument(mc.convert(seen)).getContentField("number"));
+
+		LocalDocument inserted = new LocalDocument();
+		inserted.putContentField("number", 5);
+		assertTrue(rp.saveFull(inserted));
+		assertNotNull(inserted.getID());
+	}
+}
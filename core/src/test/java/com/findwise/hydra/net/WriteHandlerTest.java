@@ -2,11 +2,14 @@ package com.findwise.hydra.net;
 
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.Reader;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -46,7 +49,7 @@ public class WriteHandlerTest {
 		when(writer.insert(any(DatabaseDocument.class))).thenReturn(false);
 		
 		DatabaseDocument<?> dbdoc = mock(DatabaseDocument.class);
-		when(dbc.convert(any(LocalDocument.class))).thenReturn(dbdoc);
+		stubConvert(dbdoc);
 		
 		when(dbdoc.getID()).thenReturn(null);
 		
@@ -68,7 +71,7 @@ public class WriteHandlerTest {
 		when(writer.insert(any(DatabaseDocument.class))).thenReturn(false);
 		
 		DatabaseDocument dbdoc = mock(DatabaseDocument.class);
-		when(dbc.convert(any(LocalDocument.class))).thenReturn(dbdoc);
+		stubConvert(dbdoc);
 		
 		LocalDocumentID id = new LocalDocumentID(1);
 		
@@ -93,4 +96,12 @@ public class WriteHandlerTest {
 		verify(writer, times(2)).update(any(DatabaseDocument.class));
 	}
 
+	/**
+	 * Posted documents are converted from the request body, as JSON or BSON.
+	 */
+	@SuppressWarnings("unchecked")
+	private void stubConvert(DatabaseDocument<?> dbdoc) throws Exception {
+		when(dbc.convert(any(Reader.class))).thenReturn(dbdoc);
+		when(dbc.convert(anyMap())).thenReturn(dbdoc);
+	}
 }
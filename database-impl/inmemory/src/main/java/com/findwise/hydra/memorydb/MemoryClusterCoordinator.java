@@ -0,0 +1,83 @@
+package com.findwise.hydra.memorydb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.findwise.hydra.ClusterCoordinator;
+
+/**
+ * Coordinates nodes within a single JVM, which is mostly useful for tests.
+ */
+public class MemoryClusterCoordinator implements ClusterCoordinator {
+	private Map<String, Long> nodes = new HashMap<String, Long>();
+	private Map<String, Lease> leases = new HashMap<String, Lease>();
+
+	@Override
+	public synchronized void heartbeat(String nodeId, long ttlMs) {
+		nodes.put(nodeId, System.currentTimeMillis() + ttlMs);
+	}
+
+	@Override
+	public synchronized void unregister(String nodeId) {
+		nodes.remove(nodeId);
+		Iterator<Lease> it = leases.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().node.equals(nodeId)) {
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized Set<String> getLiveNodes() {
+		long now = System.currentTimeMillis();
+		Set<String> live = new HashSet<String>();
+		for (Map.Entry<String, Long> e : nodes.entrySet()) {
+			if (e.getValue() > now) {
+				live.add(e.getKey());
+			}
+		}
+		return live;
+	}
+
+	@Override
+	public synchronized boolean acquireLease(String group, String nodeId, long leaseMs) {
+		long now = System.currentTimeMillis();
+		Lease lease = leases.get(group);
+		if (lease != null && lease.expires > now && !lease.node.equals(nodeId)) {
+			return false;
+		}
+		leases.put(group, new Lease(nodeId, now + leaseMs));
+		return true;
+	}
+
+	@Override
+	public synchronized void releaseLease(String group, String nodeId) {
+		Lease lease = leases.get(group);
+		if (lease != null && lease.node.equals(nodeId)) {
+			leases.remove(group);
+		}
+	}
+
+	@Override
+	public synchronized String getLeaseHolder(String group) {
+		Lease lease = leases.get(group);
+		if (lease == null || lease.expires <= System.currentTimeMillis()) {
+			return null;
+		}
+		return lease.node;
+	}
+
+	private static class Lease {
+		private final String node;
+		private final long expires;
+
+		Lease(String node, long expires) {
+			this.node = node;
+			this.expires = expires;
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package com.findwise.hydra.memorydb;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
 
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseDocument;
@@ -19,6 +21,7 @@ public class MemoryConnector implements DatabaseConnector<MemoryType> {
 
 	private MemoryDocumentIO docio;
 	private MemoryStatusIO statusio;
+	private MemoryClusterCoordinator clusterCoordinator = new MemoryClusterCoordinator();
 	
 	public MemoryConnector() {
 		docio = new MemoryDocumentIO();
@@ -83,6 +86,20 @@ public class MemoryConnector implements DatabaseConnector<MemoryType> {
 		return md;
 	}
 	
+	@Override
+	public DatabaseDocument<MemoryType> convert(Reader json) throws JsonException {
+		MemoryDocument md = new MemoryDocument();
+		md.fromJson(json);
+		return md;
+	}
+	
+	@Override
+	public DatabaseDocument<MemoryType> convert(Map<String, Object> map) {
+		MemoryDocument md = new MemoryDocument();
+		md.fromMap(map);
+		return md;
+	}
+	
 	@Override
 	public boolean isConnected() {
 		return true;
@@ -98,5 +115,10 @@ public class MemoryConnector implements DatabaseConnector<MemoryType> {
 		return statusio;
 	}
 
+	@Override
+	public MemoryClusterCoordinator getClusterCoordinator() {
+		return clusterCoordinator;
+	}
+
 
 }
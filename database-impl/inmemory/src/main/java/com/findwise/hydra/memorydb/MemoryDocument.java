@@ -1,10 +1,13 @@
 package com.findwise.hydra.memorydb;
 
+import java.io.Reader;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.Document;
@@ -13,6 +16,12 @@ import com.findwise.hydra.JsonException;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalDocumentID;
 
+/**
+ * A document in the in-memory database. The maps of stages that have
+ * fetched or touched the document are kept as concurrent maps, so that a
+ * stage can claim the document with a single atomic put, and changes to the
+ * metadata made through this class are synchronized on the document.
+ */
 public class MemoryDocument implements DatabaseDocument<MemoryType> {
 	
 	private LocalDocument doc;
@@ -21,11 +30,27 @@ public class MemoryDocument implements DatabaseDocument<MemoryType> {
 		doc = new LocalDocument();
 	}
 	
+	@SuppressWarnings("unchecked")
 	@Override
-	public Object putMetadataField(String key, Object value) {
+	public synchronized Object putMetadataField(String key, Object value) {
+		if((FETCHED_METADATA_TAG.equals(key) || TOUCHED_METADATA_TAG.equals(key)) && value instanceof Map) {
+			value = toConcurrentMap((Map<String, Object>) value);
+		}
 		return getMetadataMap().put(key, value);
 	}
 	
+	private static ConcurrentMap<String, Object> toConcurrentMap(Map<String, Object> map) {
+		ConcurrentMap<String, Object> concurrent = new ConcurrentHashMap<String, Object>();
+		if(map != null) {
+			for(Map.Entry<String, Object> e : map.entrySet()) {
+				if(e.getKey() != null && e.getValue() != null) {
+					concurrent.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		return concurrent;
+	}
+	
 	public boolean matches(MemoryQuery mq) {
 		for(Map.Entry<String, Boolean> touched  : mq.getTouched().entrySet()) {
 			if(touched.getValue()) {
@@ -99,7 +124,7 @@ public class MemoryDocument implements DatabaseDocument<MemoryType> {
 	 * nullsafe
 	 */
 	@SuppressWarnings("unchecked")
-	private Map<String, Object> getMetadataSubMap(String key) {
+	private synchronized Map<String, Object> getMetadataSubMap(String key) {
 		if(getMetadataMap().containsKey(key)) {
 			return (Map<String, Object>) getMetadataMap().get(key);
 		}
@@ -116,12 +141,34 @@ public class MemoryDocument implements DatabaseDocument<MemoryType> {
 		return getMetadataSubMap(FETCHED_METADATA_TAG).containsKey(stage);
 	}
 	
-	@SuppressWarnings("unchecked")
 	protected void tag(String tag, String stage) {
-		if(!getMetadataMap().containsKey(tag)) {
-			getMetadataMap().put(tag, new HashMap<String, Object>());
+		getTagMap(tag).put(stage, new Date());
+	}
+	
+	/**
+	 * Atomically tags the document as fetched by the stage, unless it has 
+	 * already been fetched by it.
+	 * 
+	 * @return true if this call tagged the document, false if it was 
+	 * already tagged
+	 */
+	protected boolean claim(String stage) {
+		return getTagMap(FETCHED_METADATA_TAG).putIfAbsent(stage, new Date()) == null;
+	}
+	
+	/**
+	 * @return the map of stages under the tag, replacing it with a 
+	 * concurrent copy if it is not already one 
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized ConcurrentMap<String, Object> getTagMap(String tag) {
+		Object map = getMetadataMap().get(tag);
+		if(map instanceof ConcurrentMap) {
+			return (ConcurrentMap<String, Object>) map;
 		}
-		((Map<String, Object>) getMetadataMap().get(tag)).put(stage, new Date());
+		ConcurrentMap<String, Object> concurrent = toConcurrentMap((Map<String, Object>) map);
+		getMetadataMap().put(tag, concurrent);
+		return concurrent;
 	}
 
 	@Override
@@ -129,9 +176,16 @@ public class MemoryDocument implements DatabaseDocument<MemoryType> {
 		doc.setID(new LocalDocumentID(id.getID()));
 	}
 	
+	/**
+	 * @return the id of the document, or null if it has not been inserted
+	 */
 	@Override
 	public MemoryDocumentID getID() {
-		return new MemoryDocumentID(doc.getID());
+		LocalDocumentID id = doc.getID();
+		if (id == null) {
+			return null;
+		}
+		return new MemoryDocumentID(id);
 	}
 
 	@Override
@@ -284,9 +338,17 @@ public class MemoryDocument implements DatabaseDocument<MemoryType> {
 	public void fromJson(String json) throws JsonException {
 		doc.fromJson(json);
 	}
+	
+	public void fromJson(Reader json) throws JsonException {
+		doc.fromJson(json);
+	}
+	
+	public void fromMap(Map<String, Object> map) {
+		doc.fromMap(map);
+	}
 
 	@Override
-	public String toJson() {
+	public synchronized String toJson() {
 		return doc.toJson();
 	}
 
@@ -1,5 +1,6 @@
 package com.findwise.hydra.memorydb;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -8,7 +9,9 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -25,23 +28,33 @@ import com.findwise.hydra.JsonException;
 import com.findwise.hydra.TailableIterator;
 import com.findwise.hydra.local.LocalDocumentID;
 
+/**
+ * Keeps the active documents in a map by id, with secondary indexes on the
+ * stages that have touched or fetched them and on content fields queried for
+ * equality, so that neither lookups by id nor most stage queries have to
+ * scan all documents.
+ */
 public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		DocumentReader<MemoryType> {
 
-	private ConcurrentHashMap<MemoryDocument, Boolean> set;
+	private ConcurrentHashMap<Object, MemoryDocument> documents;
+	private MemoryDocumentIndex index;
 	private LinkedBlockingQueue<MemoryDocument> inactive;
 	private boolean[] b = new boolean[1];
 
 	private static Logger logger = LoggerFactory
 			.getLogger(MemoryDocumentIO.class);
 
-	private HashSet<DocumentFile<MemoryType>> files;
+	private ConcurrentHashMap<Object, ConcurrentMap<String, DocumentFile<MemoryType>>> files;
+
+	private AtomicLong inserted = new AtomicLong();
 
 	public static final int inactiveSize = 100;
 
 	public MemoryDocumentIO() {
-		set = new ConcurrentHashMap<MemoryDocument, Boolean>();
-		files = new HashSet<DocumentFile<MemoryType>>();
+		documents = new ConcurrentHashMap<Object, MemoryDocument>();
+		index = new MemoryDocumentIndex(documents);
+		files = new ConcurrentHashMap<Object, ConcurrentMap<String, DocumentFile<MemoryType>>>();
 		inactive = new LinkedBlockingQueue<MemoryDocument>(inactiveSize);
 		b[0] = false;
 	}
@@ -71,18 +84,17 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public DatabaseDocument<MemoryType> getDocumentById(DocumentID<MemoryType> id,
 			boolean includeInactive) {
-		if (id == null) {
+		if (id == null || id.getID() == null) {
 			return null;
 		}
-		for (MemoryDocument d : set.keySet()) {
-			if (id.equals(d.getID())) {
-				return d;
-			}
+		MemoryDocument d = documents.get(id.getID());
+		if (d != null) {
+			return d;
 		}
 		if (includeInactive) {
-			for (MemoryDocument d : inactive) {
-				if (id.equals(d.getID())) {
-					return d;
+			for (MemoryDocument old : inactive) {
+				if (id.equals(old.getID())) {
+					return old;
 				}
 			}
 		}
@@ -101,7 +113,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		ArrayList<MemoryDocument> list = new ArrayList<MemoryDocument>();
 
 		int matching = 0;
-		for (MemoryDocument doc : set.keySet()) {
+		for (MemoryDocument doc : getCandidates((MemoryQuery) q)) {
 			if (list.size() >= limit)
 				break;
 
@@ -116,6 +128,25 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		return (List<DatabaseDocument<MemoryType>>) (Object) list;
 	}
 
+	/**
+	 * @return the active documents that may match the query, which are all
+	 *         of them unless an index applies to the query
+	 */
+	private Iterable<MemoryDocument> getCandidates(MemoryQuery q) {
+		Collection<Object> ids = index.getCandidates(q);
+		if (ids == null) {
+			return documents.values();
+		}
+		List<MemoryDocument> candidates = new ArrayList<MemoryDocument>(ids.size());
+		for (Object id : ids) {
+			MemoryDocument d = documents.get(id);
+			if (d != null) {
+				candidates.add(d);
+			}
+		}
+		return candidates;
+	}
+
 	@Override
 	public List<DatabaseDocument<MemoryType>> getDocuments(
 			DatabaseQuery<MemoryType> q, int limit) {
@@ -126,7 +157,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	public long getNumberOfDocuments(DatabaseQuery<MemoryType> q) {
 		long matching = 0;
 
-		for (MemoryDocument doc : set.keySet()) {
+		for (MemoryDocument doc : getCandidates((MemoryQuery) q)) {
 			if (doc.matches((MemoryQuery) q)) {
 				matching++;
 			}
@@ -138,48 +169,50 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public DocumentFile<MemoryType> getDocumentFile(
 			DatabaseDocument<MemoryType> d, String fileName) {
-		for (DocumentFile<MemoryType> f : files) {
-			if (f.getDocumentId().getID().equals(d.getID().getID())
-					&& f.getFileName().equals(fileName)) {
-				try {
-					return copy(f);
-				} catch (IOException e) {
-					logger.error("Error copying the streams", e);
-				}
-			}
+		ConcurrentMap<String, DocumentFile<MemoryType>> map = files.get(d.getID().getID());
+		DocumentFile<MemoryType> f = map == null ? null : map.get(fileName);
+		if (f == null) {
+			return null;
+		}
+		try {
+			return copy(f);
+		} catch (IOException e) {
+			logger.error("Error copying the streams", e);
+			return null;
 		}
-		return null;
 	}
 
 	@Override
 	public boolean deleteDocumentFile(DatabaseDocument<MemoryType> d,
 			String fileName) {
-		for (DocumentFile<MemoryType> f : files) {
-			if (f.getDocumentId().equals(d.getID())
-					&& f.getFileName().equals(fileName)) {
-				files.remove(f);
-				return true;
-			}
-		}
-		return false;
+		ConcurrentMap<String, DocumentFile<MemoryType>> map = files.get(d.getID().getID());
+		return map != null && map.remove(fileName) != null;
 	}
 
 	@Override
 	public List<String> getDocumentFileNames(DatabaseDocument<MemoryType> d) {
-		ArrayList<String> list = new ArrayList<String>();
+		ConcurrentMap<String, DocumentFile<MemoryType>> map = files.get(d.getID().getID());
+		if (map == null) {
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(map.keySet());
+	}
 
-		for (DocumentFile<MemoryType> f : files) {
-			if (f.getDocumentId().equals(d.getID())) {
-				list.add(f.getFileName());
+	private ConcurrentMap<String, DocumentFile<MemoryType>> getFiles(Object id) {
+		ConcurrentMap<String, DocumentFile<MemoryType>> map = files.get(id);
+		if (map == null) {
+			ConcurrentMap<String, DocumentFile<MemoryType>> created = new ConcurrentHashMap<String, DocumentFile<MemoryType>>();
+			map = files.putIfAbsent(id, created);
+			if (map == null) {
+				map = created;
 			}
 		}
-
-		return list;
+		return map;
 	}
 
 	@Override
 	public long getActiveDatabaseSize() {
-		return set.size();
+		return documents.size();
 	}
 
 	@Override
@@ -189,24 +222,42 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 
 	@Override
 	public MemoryDocument getAndTag(DatabaseQuery<MemoryType> query, String tag) {
-		((MemoryQuery) query).requireNotFetchedByStage(tag);
-		MemoryDocument d = getDocument(query);
-		if (d != null) {
-			d.tag(Document.FETCHED_METADATA_TAG, tag);
+		List<DatabaseDocument<MemoryType>> claimed = claim((MemoryQuery) query, tag, 1);
+		if (claimed.isEmpty()) {
+			return null;
 		}
-		return d;
+		return (MemoryDocument) claimed.get(0);
 	}
 
 	@Override
 	public Collection<DatabaseDocument<MemoryType>> getAndTag(
 			DatabaseQuery<MemoryType> query, String tag, int n) {
-		((MemoryQuery) query).requireNotFetchedByStage(tag);
-		List<DatabaseDocument<MemoryType>> docs = getDocuments(query, n);
-		for (int i = 0; i < docs.size() && i < n; i++) {
-			DatabaseDocument<MemoryType> d = docs.get(i);
-			((MemoryDocument) d).tag(Document.FETCHED_METADATA_TAG, tag);
+		return claim((MemoryQuery) query, tag, n);
+	}
+
+	/**
+	 * Claims up to n documents matching the query in a single pass over the
+	 * candidates. A document is claimed by atomically tagging it as fetched
+	 * by the stage, so it is claimed at most once per tag even when several
+	 * threads claim concurrently. Documents claimed by another thread while
+	 * being checked are skipped.
+	 */
+	private List<DatabaseDocument<MemoryType>> claim(MemoryQuery q, String tag, int n) {
+		q.requireNotFetchedByStage(tag);
+		List<DatabaseDocument<MemoryType>> claimed = new ArrayList<DatabaseDocument<MemoryType>>();
+		if (n < 1) {
+			return claimed;
+		}
+		for (MemoryDocument d : getCandidates(q)) {
+			if (claimed.size() >= n) {
+				break;
+			}
+			if (d.matches(q) && d.claim(tag)) {
+				reindex(d);
+				claimed.add(d);
+			}
 		}
-		return docs;
+		return claimed;
 	}
 
 	@Override
@@ -216,6 +267,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 			return false;
 		}
 		d.tag(Document.TOUCHED_METADATA_TAG, tag);
+		reindex(d);
 		return true;
 	}
 
@@ -240,7 +292,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		if (temp == null) {
 			return false;
 		}
-		set.remove(temp);
+		remove(temp.getID().getID());
 		((MemoryDocument) d).tag(flag, stage);
 		deleteAllFiles(d);
 		addInactive((MemoryDocument) d);
@@ -258,17 +310,73 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		return true;
 	}
 
+	@Override
+	public int markProcessed(Collection<DatabaseDocument<MemoryType>> docs,
+			String stage) {
+		return markDone(docs, stage, Document.PROCESSED_METADATA_FLAG);
+	}
+
+	@Override
+	public int markDiscarded(Collection<DatabaseDocument<MemoryType>> docs,
+			String stage) {
+		return markDone(docs, stage, Document.DISCARDED_METADATA_FLAG);
+	}
+
+	@Override
+	public int markFailed(Collection<DatabaseDocument<MemoryType>> docs,
+			String stage) {
+		return markDone(docs, stage, Document.FAILED_METADATA_FLAG);
+	}
+
+	private int markDone(Collection<DatabaseDocument<MemoryType>> docs,
+			String stage, String flag) {
+		int marked = 0;
+		for (DatabaseDocument<MemoryType> d : docs) {
+			MemoryDocument inDb = getDocumentById(d.getID());
+			if (inDb == null) {
+				continue;
+			}
+			inDb.putAll(d);
+			if (markDone(inDb, stage, flag)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	@Override
+	public int markPending(Collection<DatabaseDocument<MemoryType>> docs,
+			String stage) {
+		int marked = 0;
+		for (DatabaseDocument<MemoryType> d : docs) {
+			if (markPending(d, stage)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<MemoryType> d) {
 		MemoryDocument md = (MemoryDocument) d;
 		md.setID(new MemoryDocumentID(new LocalDocumentID(md.hashCode() + ""
-				+ System.currentTimeMillis())));
+				+ System.currentTimeMillis() + "-" + inserted.incrementAndGet())));
 		removeNullFields(md);
-		set.put(md, false);
+		documents.put(md.getID().getID(), md);
+		reindex(md);
 		md.markSynced();
 		return true;
 	}
 
+	private void reindex(MemoryDocument d) {
+		index.reindex(d.getID().getID(), d);
+	}
+
+	private void remove(Object id) {
+		documents.remove(id);
+		index.remove(id);
+	}
+
 	private void removeNullFields(MemoryDocument md) {
 		HashSet<String> fields = new HashSet<String>();
 		for (String entry : md.getTouchedContent()) {
@@ -309,14 +417,13 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 
 		MemoryDocument inDb = getDocumentById(d.getID());
 
-		if (inDb == null) {
-			set.put(md, false);
+		if (inDb == null && d.getID() != null) {
+			documents.putIfAbsent(d.getID().getID(), md);
 			inDb = getDocumentById(d.getID());
-
 		}
 
 		if (inDb == null) {
-			logger.error("Can't find document with id '" + d.getID().getID()
+			logger.error("Can't find document with id '" + d.getID()
 					+ "', unable to update.");
 			return false;
 		}
@@ -337,6 +444,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 			inDb.putMetadataField(s, md.getMetadataMap().get(s));
 		}
 
+		reindex(inDb);
 		md.markSynced();
 
 		return true;
@@ -345,35 +453,38 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public void delete(DatabaseDocument<MemoryType> d) {
 		deleteAllFiles(d);
-		set.remove(getDocumentById(d.getID()));
+		remove(d.getID().getID());
 	}
 
 	private void deleteAllFiles(DatabaseDocument<MemoryType> d) {
-		for (String fileName : getDocumentFileNames(d)) {
-			deleteDocumentFile(d, fileName);
-		}
+		files.remove(d.getID().getID());
 	}
 
 	@Override
 	public void deleteAll() {
-		set.clear();
+		documents.clear();
+		index.clear();
+		files.clear();
 	}
 
 	@Override
 	public void write(DocumentFile<MemoryType> df) throws IOException {
 		df.setUploadDate(new Date());
-		files.add(copy(df));
+		getFiles(df.getDocumentId().getID()).put(df.getFileName(), copy(df));
 		df.getStream().close();
 	}
 
 	private DocumentFile<MemoryType> copy(DocumentFile<MemoryType> df)
 			throws IOException {
-		String s = IOUtils.toString(df.getStream(), df.getEncoding());
+		byte[] bytes = IOUtils.toByteArray(df.getStream());
 		df.getStream().close();
-		df.setStream(IOUtils.toInputStream(s, df.getEncoding()));
-		return new DocumentFile<MemoryType>(df.getDocumentId(),
-				df.getFileName(), IOUtils.toInputStream(s, df.getEncoding()),
+		df.setStream(new ByteArrayInputStream(bytes));
+		DocumentFile<MemoryType> copy = new DocumentFile<MemoryType>(df.getDocumentId(),
+				df.getFileName(), new ByteArrayInputStream(bytes),
 				df.getSavedByStage(), df.getUploadDate());
+		copy.setEncoding(df.getEncoding());
+		copy.setMimetype(df.getMimetype());
+		return copy;
 	}
 
 	@Override
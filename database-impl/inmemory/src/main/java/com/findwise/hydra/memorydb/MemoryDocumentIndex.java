@@ -0,0 +1,214 @@
+package com.findwise.hydra.memorydb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary indexes over the active documents of a {@link MemoryDocumentIO},
+ * mapping the stages that have touched or fetched a document, and the values
+ * of content fields that have been queried for equality, to the ids of the
+ * documents.
+ *
+ * The indexes only narrow down the documents that may match a query, every
+ * candidate must still be checked with
+ * {@link MemoryDocument#matches(MemoryQuery)}. A document has to be
+ * reindexed whenever it is changed through the {@link MemoryDocumentIO}.
+ */
+class MemoryDocumentIndex {
+	private final Map<Object, MemoryDocument> documents;
+
+	private final ConcurrentMap<String, Set<Object>> touched = new ConcurrentHashMap<String, Set<Object>>();
+	private final ConcurrentMap<String, Set<Object>> fetched = new ConcurrentHashMap<String, Set<Object>>();
+	private final ConcurrentMap<String, FieldIndex> fields = new ConcurrentHashMap<String, FieldIndex>();
+	private final ConcurrentMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+
+	/**
+	 * @param documents the active documents by id, used to build the index
+	 * of a content field the first time it is queried
+	 */
+	MemoryDocumentIndex(Map<Object, MemoryDocument> documents) {
+		this.documents = documents;
+	}
+
+	/**
+	 * Updates the indexes to reflect the current state of the document.
+	 */
+	void reindex(Object id, MemoryDocument d) {
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			Entry created = new Entry();
+			entry = entries.putIfAbsent(id, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		synchronized (entry) {
+			if (entry.removed) {
+				return;
+			}
+			if (documents.get(id) != d) {
+				/* Removed from the active documents while being reindexed */
+				entries.remove(id, entry);
+				entry.removed = true;
+				unindex(id, entry);
+				return;
+			}
+			unindex(id, entry);
+			entry.touched = new HashSet<String>(d.getTouchedBy());
+			entry.fetched = new HashSet<String>(d.getFetchedBy());
+			entry.values = new HashMap<String, Object>();
+			for (String field : fields.keySet()) {
+				Object value = d.getContentField(field);
+				if (value != null) {
+					entry.values.put(field, value);
+				}
+			}
+			for (String stage : entry.touched) {
+				getSet(touched, stage).add(id);
+			}
+			for (String stage : entry.fetched) {
+				getSet(fetched, stage).add(id);
+			}
+			for (Map.Entry<String, Object> e : entry.values.entrySet()) {
+				FieldIndex index = fields.get(e.getKey());
+				if (index != null) {
+					getSet(index.values, e.getValue()).add(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the document from all indexes.
+	 */
+	void remove(Object id) {
+		Entry entry = entries.remove(id);
+		if (entry != null) {
+			synchronized (entry) {
+				unindex(id, entry);
+				entry.removed = true;
+			}
+		}
+	}
+
+	void clear() {
+		for (Object id : entries.keySet()) {
+			remove(id);
+		}
+	}
+
+	private void unindex(Object id, Entry entry) {
+		for (String stage : entry.touched) {
+			removeFrom(touched, stage, id);
+		}
+		for (String stage : entry.fetched) {
+			removeFrom(fetched, stage, id);
+		}
+		for (Map.Entry<String, Object> e : entry.values.entrySet()) {
+			FieldIndex index = fields.get(e.getKey());
+			if (index != null) {
+				removeFrom(index.values, e.getValue(), id);
+			}
+		}
+	}
+
+	/**
+	 * @return the ids of the smallest indexed set of documents that every
+	 * document matching the query is in, or null if none of the indexes
+	 * apply to the query and all documents have to be checked
+	 */
+	Collection<Object> getCandidates(MemoryQuery q) {
+		Set<Object> best = null;
+		for (Map.Entry<String, Boolean> e : q.getTouched().entrySet()) {
+			if (e.getValue()) {
+				best = smallest(best, touched.get(e.getKey()));
+			}
+		}
+		for (Map.Entry<String, Boolean> e : q.getFetchedBy().entrySet()) {
+			if (e.getValue()) {
+				best = smallest(best, fetched.get(e.getKey()));
+			}
+		}
+		for (Map.Entry<String, Object> e : q.getContentsEquals().entrySet()) {
+			if (e.getValue() == null) {
+				continue;
+			}
+			FieldIndex index = getFieldIndex(e.getKey());
+			if (index.ready) {
+				best = smallest(best, index.values.get(e.getValue()));
+			}
+		}
+		return best;
+	}
+
+	private static Set<Object> smallest(Set<Object> best, Set<Object> candidate) {
+		if (candidate == null) {
+			return Collections.emptySet();
+		}
+		if (best == null || candidate.size() < best.size()) {
+			return candidate;
+		}
+		return best;
+	}
+
+	/**
+	 * Gets the index of a content field, building it from all active
+	 * documents if the field has not been queried before.
+	 */
+	private FieldIndex getFieldIndex(String field) {
+		FieldIndex index = fields.get(field);
+		if (index == null) {
+			FieldIndex created = new FieldIndex();
+			index = fields.putIfAbsent(field, created);
+			if (index == null) {
+				for (Map.Entry<Object, MemoryDocument> e : documents.entrySet()) {
+					reindex(e.getKey(), e.getValue());
+				}
+				created.ready = true;
+				index = created;
+			}
+		}
+		return index;
+	}
+
+	private static <K> Set<Object> getSet(ConcurrentMap<K, Set<Object>> map, K key) {
+		Set<Object> set = map.get(key);
+		if (set == null) {
+			Set<Object> created = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+			set = map.putIfAbsent(key, created);
+			if (set == null) {
+				set = created;
+			}
+		}
+		return set;
+	}
+
+	private static <K> void removeFrom(ConcurrentMap<K, Set<Object>> map, K key, Object id) {
+		Set<Object> set = map.get(key);
+		if (set != null) {
+			set.remove(id);
+		}
+	}
+
+	private static class FieldIndex {
+		private final ConcurrentMap<Object, Set<Object>> values = new ConcurrentHashMap<Object, Set<Object>>();
+		private volatile boolean ready = false;
+	}
+
+	/**
+	 * What a document was last indexed under, so that it can be removed
+	 * from those sets when it changes.
+	 */
+	private static class Entry {
+		private Set<String> touched = Collections.emptySet();
+		private Set<String> fetched = Collections.emptySet();
+		private Map<String, Object> values = Collections.emptyMap();
+		private boolean removed = false;
+	}
+}
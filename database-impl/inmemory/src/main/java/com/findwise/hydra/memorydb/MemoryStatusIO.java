@@ -1,6 +1,7 @@
 package com.findwise.hydra.memorydb;
 
 import com.findwise.hydra.PipelineStatus;
+import com.findwise.hydra.StatusCounts;
 import com.findwise.hydra.StatusReader;
 import com.findwise.hydra.StatusWriter;
 
@@ -12,6 +13,11 @@ public class MemoryStatusIO implements StatusReader<MemoryType>, StatusWriter<Me
 		
 	}
 
+	@Override
+	public void increment(StatusCounts counts) {
+		
+	}
+
 	@Override
 	public MemoryPipelineStatus getStatus() {
 		// TODO Auto-generated method stub
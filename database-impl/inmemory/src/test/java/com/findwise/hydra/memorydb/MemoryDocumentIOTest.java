@@ -4,9 +4,14 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -338,6 +343,119 @@ public class MemoryDocumentIOTest {
 		}
 	}
 	
+	@Test
+	public void testIndexedQueries() {
+		MemoryQuery byName = new MemoryQuery();
+		byName.requireContentFieldEquals("number", 1);
+		Assert.assertEquals(1, io.getNumberOfDocuments(byName));
+		
+		test.putContentField("number", 3);
+		io.update(test);
+		Assert.assertEquals(0, io.getNumberOfDocuments(byName));
+		MemoryQuery byNewName = new MemoryQuery();
+		byNewName.requireContentFieldEquals("number", 3);
+		Assert.assertEquals(test.getID(), io.getDocument(byNewName).getID());
+		
+		io.markTouched(test2.getID(), "stage");
+		MemoryQuery touched = new MemoryQuery();
+		touched.requireTouchedByStage("stage");
+		Assert.assertEquals(test2.getID(), io.getAndTag(touched, "next").getID());
+		touched = new MemoryQuery();
+		touched.requireTouchedByStage("stage");
+		Assert.assertNull(io.getAndTag(touched, "next"));
+		
+		io.markProcessed(test2, "next");
+		MemoryQuery fetched = new MemoryQuery();
+		fetched.requireFetchedByStage("next");
+		Assert.assertEquals(0, io.getNumberOfDocuments(fetched));
+		Assert.assertEquals(1, io.getNumberOfDocuments(new MemoryQuery()));
+	}
+	
+	@Test
+	public void testDeleteDocumentFile() throws IOException {
+		DocumentFile<MemoryType> df = new DocumentFile<MemoryType>(test.getID(), "a", IOUtils.toInputStream("content"), "stage");
+		io.write(df);
+		io.write(new DocumentFile<MemoryType>(test.getID(), "b", IOUtils.toInputStream("content"), "stage"));
+		Assert.assertEquals(2, io.getDocumentFileNames(test).size());
+		Assert.assertEquals(0, io.getDocumentFileNames(test2).size());
+		
+		Assert.assertTrue(io.deleteDocumentFile(test, "a"));
+		Assert.assertFalse(io.deleteDocumentFile(test, "a"));
+		Assert.assertNull(io.getDocumentFile(test, "a"));
+		Assert.assertNotNull(io.getDocumentFile(test, "b"));
+		
+		io.delete(test);
+		Assert.assertEquals(0, io.getDocumentFileNames(test).size());
+	}
+	
+	@Test
+	public void testConcurrentClaims() throws Exception {
+		io.deleteAll();
+		final int documents = 2000;
+		for(int i = 0; i < documents; i++) {
+			MemoryDocument md = new MemoryDocument();
+			md.putContentField("number", i);
+			io.insert(md);
+		}
+		
+		final ConcurrentMap<Object, Boolean> claimed = new ConcurrentHashMap<Object, Boolean>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 8; t++) {
+			final boolean batched = t % 2 == 0;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					while(true) {
+						Collection<DatabaseDocument<MemoryType>> docs = new ArrayList<DatabaseDocument<MemoryType>>();
+						if(batched) {
+							docs.addAll(io.getAndTag(new MemoryQuery(), "stage", 7));
+						} else {
+							MemoryDocument d = io.getAndTag(new MemoryQuery(), "stage");
+							if(d != null) {
+								docs.add(d);
+							}
+						}
+						if(docs.isEmpty()) {
+							return;
+						}
+						for(DatabaseDocument<MemoryType> d : docs) {
+							if(claimed.putIfAbsent(d.getID().getID(), true) != null) {
+								duplicates.incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertEquals(0, duplicates.get());
+		Assert.assertEquals(documents, claimed.size());
+	}
+	
+	@Test
+	public void testBatchClaim() {
+		Collection<DatabaseDocument<MemoryType>> docs = io.getAndTag(new MemoryQuery(), "stage", 5);
+		Assert.assertEquals(2, docs.size());
+		for(DatabaseDocument<MemoryType> d : docs) {
+			Assert.assertTrue(d.fetchedBy("stage"));
+		}
+		Assert.assertTrue(io.getAndTag(new MemoryQuery(), "stage", 5).isEmpty());
+		Assert.assertTrue(io.getAndTag(new MemoryQuery(), "other", 0).isEmpty());
+	}
+	
 	@Test
 	public void testActiveDatabaseSize() {
 		if(io.getActiveDatabaseSize() != 2) {
@@ -0,0 +1,101 @@
+package com.findwise.hydra.mongodb;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.findwise.hydra.ClusterCoordinator;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.QueryBuilder;
+
+/**
+ * Keeps node registrations in the <code>nodes</code> collection and stage
+ * group leases in the <code>leases</code> collection, one document per node
+ * and group. Leases are taken with a single findAndModify that only matches
+ * a lease that is free, expired or already held by the node, so two cores
+ * can never both hold the same group.
+ */
+public class MongoClusterCoordinator implements ClusterCoordinator {
+	public static final String NODES_COLLECTION = "nodes";
+	public static final String LEASES_COLLECTION = "leases";
+	
+	static final String ID_KEY = "_id";
+	static final String EXPIRES_KEY = "expires";
+	static final String HEARTBEAT_KEY = "heartbeat";
+	static final String NODE_KEY = "node";
+	
+	private DBCollection nodes;
+	private DBCollection leases;
+	
+	public MongoClusterCoordinator(DB db) {
+		nodes = db.getCollection(NODES_COLLECTION);
+		leases = db.getCollection(LEASES_COLLECTION);
+	}
+	
+	@Override
+	public void heartbeat(String nodeId, long ttlMs) {
+		long now = System.currentTimeMillis();
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(HEARTBEAT_KEY, new Date(now)).append(EXPIRES_KEY, new Date(now + ttlMs)));
+		nodes.update(new BasicDBObject(ID_KEY, nodeId), update, true, false);
+	}
+	
+	@Override
+	public void unregister(String nodeId) {
+		leases.remove(new BasicDBObject(NODE_KEY, nodeId));
+		nodes.remove(new BasicDBObject(ID_KEY, nodeId));
+	}
+	
+	@Override
+	public Set<String> getLiveNodes() {
+		Set<String> live = new HashSet<String>();
+		DBCursor cursor = nodes.find(QueryBuilder.start(EXPIRES_KEY).greaterThan(new Date()).get(), new BasicDBObject(ID_KEY, 1));
+		try {
+			while(cursor.hasNext()) {
+				live.add((String) cursor.next().get(ID_KEY));
+			}
+		} finally {
+			cursor.close();
+		}
+		return live;
+	}
+	
+	@Override
+	public boolean acquireLease(String group, String nodeId, long leaseMs) {
+		long now = System.currentTimeMillis();
+		DBObject query = QueryBuilder.start(ID_KEY).is(group).or(
+				new BasicDBObject(NODE_KEY, nodeId), 
+				QueryBuilder.start(EXPIRES_KEY).lessThanEquals(new Date(now)).get()).get();
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(NODE_KEY, nodeId).append(EXPIRES_KEY, new Date(now + leaseMs)));
+		try {
+			return leases.findAndModify(query, null, null, false, update, true, true) != null;
+		} catch (MongoException e) {
+			/* 
+			 * If another node holds an unexpired lease, the query does not 
+			 * match and the upsert collides with that lease on _id. Depending
+			 * on the server, that is reported as a duplicate key or as a 
+			 * failed command. 
+			 */
+			String holder = getLeaseHolder(group);
+			if(holder != null && !holder.equals(nodeId)) {
+				return false;
+			}
+			throw e;
+		}
+	}
+	
+	@Override
+	public void releaseLease(String group, String nodeId) {
+		leases.remove(new BasicDBObject(ID_KEY, group).append(NODE_KEY, nodeId));
+	}
+	
+	@Override
+	public String getLeaseHolder(String group) {
+		DBObject lease = leases.findOne(QueryBuilder.start(ID_KEY).is(group).and(EXPIRES_KEY).greaterThan(new Date()).get());
+		return lease == null ? null : (String) lease.get(NODE_KEY);
+	}
+}
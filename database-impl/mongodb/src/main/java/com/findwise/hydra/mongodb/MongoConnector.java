@@ -2,6 +2,7 @@ package com.findwise.hydra.mongodb;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.net.UnknownHostException;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +17,7 @@ import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.PipelineReader;
 import com.findwise.hydra.Query;
+import com.findwise.hydra.SerializationUtils;
 import com.findwise.hydra.StatusUpdater;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalQuery;
@@ -34,6 +36,8 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 	private MongoStatusIO statusIO;
 	
 	private StatusUpdater statusUpdater;
+	
+	private MongoClusterCoordinator clusterCoordinator;
 
 	/**
 	 * Creates the tmp dir if it doesn't exist
@@ -105,6 +109,7 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		pipelineWriter = new MongoPipelineWriter(pipelineReader, concern);
 		
 		statusIO = new MongoStatusIO(db);
+		clusterCoordinator = new MongoClusterCoordinator(db);
 		
 		MongoPipelineStatus pipelineStatus;
 		if(!statusIO.hasStatus()) {
@@ -131,6 +136,7 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		} else {
 			documentIO = new MongoDocumentIO(db, concern, pipelineStatus.getNumberToKeep(), pipelineStatus.getDiscardedMaxSize(), statusUpdater);
 		}
+		pipelineReader.setStageIndexes(documentIO.getStageIndexes());
 
 		connected = true;
 		
@@ -226,6 +232,11 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		return statusIO;
 	}
 
+	@Override
+	public MongoClusterCoordinator getClusterCoordinator() {
+		return clusterCoordinator;
+	}
+
 	@Override
 	public DatabaseDocument<MongoType> convert(Document<?> document) throws ConversionException {
 		try {
@@ -238,6 +249,21 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		}
 	}
 	
+	@Override
+	public DatabaseDocument<MongoType> convert(Reader json) throws JsonException, ConversionException {
+		return convert(SerializationUtils.fromJson(json));
+	}
+	
+	@Override
+	public DatabaseDocument<MongoType> convert(Map<String, Object> map) throws ConversionException {
+		MongoDocument md = new MongoDocument();
+		md.fromMap(map);
+		if(contains(md, "\u0000")) {
+			throw new ConversionException("A document cannot contain the NUL character. See https://jira.mongodb.org/browse/SERVER-7691");
+		}
+		return md;
+	}
+	
 	private boolean contains(Document<?> haystack, String needle) {
 		for(String field : haystack.getContentFields()) {
 			if(field.contains(needle)) {
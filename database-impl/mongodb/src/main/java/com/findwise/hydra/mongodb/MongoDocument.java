@@ -254,6 +254,50 @@ public class MongoDocument implements DBObject, DatabaseDocument<MongoType> {
 		}
 	}
 
+	/**
+	 * Fills the document from a deserialized JSON or BSON document, in the 
+	 * format of {@link #toJson()}, without going through a LocalDocument. 
+	 * Field names are sanitized the same way as in LocalDocument.
+	 */
+	@SuppressWarnings("unchecked")
+	final void fromMap(Map<String, Object> m) {
+		Object id = m.get(ID_KEY);
+		if(id instanceof ObjectId) {
+			documentMap.put(MONGO_ID_KEY, id);
+		} else if(id instanceof Map) {
+			ObjectId oid = MongoDocumentID.toObjectId((Map<String, Object>) id);
+			if(oid != null) {
+				documentMap.put(MONGO_ID_KEY, oid);
+			}
+		} else if(id != null) {
+			logger.error("Unable to convert ID of type "+id.getClass()+ " to MongoDocumentID");
+		}
+		
+		if(m.get(ACTION_KEY) != null) {
+			setAction(Action.valueOf((String) m.get(ACTION_KEY)));
+		}
+		
+		if(m.get(METADATA_KEY) instanceof Map) {
+			for(Map.Entry<String, Object> e : ((Map<String, Object>) m.get(METADATA_KEY)).entrySet()) {
+				putMetadataField(removePeriodFromKey(e.getKey()), e.getValue());
+			}
+		}
+		
+		if(m.get(CONTENTS_KEY) instanceof Map) {
+			for(Map.Entry<String, Object> e : ((Map<String, Object>) m.get(CONTENTS_KEY)).entrySet()) {
+				putContentField(removePeriodFromKey(e.getKey()), e.getValue());
+			}
+		}
+	}
+	
+	private static String removePeriodFromKey(String key) {
+		if(key.contains(".")) {
+			logger.warn("The fieldname " + key + " contains a period, mongodb does not allow keys to contain a period (.). It has been replaced with a dash (-)");
+			return key.replace(".", "-");
+		}
+		return key;
+	}
+
 	@Override
 	public Set<String> keySet() {
 		return documentMap.keySet();
@@ -2,7 +2,10 @@ package com.findwise.hydra.mongodb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -51,6 +54,8 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 	private StatusUpdater updater;
 	
 	private Set<String> seenTags = new HashSet<String>();
+	private boolean claimIndexEnsured = false;
+	private MongoStageIndexes stageIndexes;
 	
 	private static Logger logger = LoggerFactory.getLogger(MongoDocumentIO.class);
 
@@ -70,6 +75,13 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 	private static final String MIMETYPE_KEY = "contentType";
 	private static final String ENCODING_KEY = "encoding";
 	
+	/**
+	 * Top level field used to find the documents claimed by a batched 
+	 * getAndTag. It is never exposed through the document's content or
+	 * metadata.
+	 */
+	public static final String CLAIM_KEY = "_claim";
+	
 	public MongoDocumentIO(DB db, WriteConcern concern, long documentsToKeep, int oldDocsMaxSizeMB, StatusUpdater updater) {
 		this.concern = concern;
 		this.maxDocumentsToKeep = documentsToKeep;
@@ -81,6 +93,7 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		oldDocuments = db.getCollection(OLD_DOCUMENT_COLLECTION);
 		oldDocuments.setObjectClass(MongoDocument.class);
 		documentfs = new GridFS(db, DOCUMENT_FS);
+		stageIndexes = new MongoStageIndexes(documents);
 	}
 	
 	@Override
@@ -292,8 +305,13 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		return findAndModify(mq.toDBObject(), dbo);
 	}
 	
+	/**
+	 * Ensures a single field index on the fetched tag of stages that have 
+	 * not been given a compound index by {@link MongoStageIndexes}, such as
+	 * stages that are not part of the pipeline.
+	 */
 	private void ensureIndex(String tag) {
-		if(!seenTags.contains(tag)) {
+		if(!seenTags.contains(tag) && !stageIndexes.hasIndex(tag)) {
 			long start = System.currentTimeMillis();
 			documents.ensureIndex(MongoDocument.METADATA_KEY+"."+DatabaseDocument.FETCHED_METADATA_TAG+"."+tag);
 			logger.info("Ensured index for stage "+tag+" in "+(System.currentTimeMillis()-start)+" ms");
@@ -301,16 +319,87 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		}
 	}
 	
+	public MongoStageIndexes getStageIndexes() {
+		return stageIndexes;
+	}
+	
+	private void ensureClaimIndex() {
+		if(!claimIndexEnsured) {
+			documents.ensureIndex(new BasicDBObject(CLAIM_KEY, 1), new BasicDBObject("sparse", true));
+			claimIndexEnsured = true;
+		}
+	}
+	
+	/**
+	 * Claims up to n documents using a claim token. The ids of at most n
+	 * candidates are read, then all candidates that still match the query 
+	 * are tagged and stamped with a unique claim id in a single multi-update.
+	 * Finally the claimed documents are read back by their claim id.
+	 * 
+	 * Since the tag is required not to exist by the update, a document can 
+	 * only be claimed once per tag, just like with getAndTag(query, tag). 
+	 * Candidates claimed concurrently by someone else are skipped, so fewer
+	 * than n documents may be returned even though more are available.
+	 */
 	@Override
 	public List<DatabaseDocument<MongoType>> getAndTag(DatabaseQuery<MongoType> query, String tag, int n) {
 		ArrayList<DatabaseDocument<MongoType>> list = new ArrayList<DatabaseDocument<MongoType>>();
-		for(int i=0; i<n; i++) {
+		if(n < 1) {
+			return list;
+		}
+		if(n == 1) {
 			MongoDocument d = getAndTag(query, tag);
-			if(d==null) {
-				break;
+			if(d != null) {
+				list.add(d);
+			}
+			return list;
+		}
+		
+		ensureIndex(tag);
+		ensureClaimIndex();
+		MongoQuery mq = (MongoQuery)query;
+		mq.requireMetadataFieldNotExists(Document.PENDING_METADATA_FLAG);
+		mq.requireMetadataFieldNotExists(DatabaseDocument.FETCHED_METADATA_TAG+"."+tag);
+		DBObject dbq = mq.toDBObject();
+		
+		List<Object> candidates = new ArrayList<Object>();
+		DBCursor cursor = documents.find(dbq, new BasicDBObject(MongoDocument.MONGO_ID_KEY, 1)).limit(n);
+		try {
+			while(cursor.hasNext()) {
+				candidates.add(cursor.next().get(MongoDocument.MONGO_ID_KEY));
+			}
+		} finally {
+			cursor.close();
+		}
+		if(candidates.isEmpty()) {
+			return list;
+		}
+		
+		ObjectId claim = new ObjectId();
+		DBObject idQuery = QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(candidates).get();
+		DBObject claimQuery = new BasicDBObject("$and", Arrays.asList(dbq, idQuery));
+		
+		DBObject update = new BasicDBObject(MongoDocument.METADATA_KEY+"."+DatabaseDocument.FETCHED_METADATA_TAG+"."+tag, new Date());
+		update.put(CLAIM_KEY, claim);
+		
+		WriteResult wr = documents.update(claimQuery, getUpdateObject(update), false, true, concern);
+		if(wr.getN() == 0) {
+			return list;
+		}
+		
+		DBObject claimed = new BasicDBObject(CLAIM_KEY, claim);
+		cursor = documents.find(claimed);
+		try {
+			while(cursor.hasNext()) {
+				MongoDocument md = (MongoDocument) cursor.next();
+				md.removeField(CLAIM_KEY);
+				list.add(md);
 			}
-			list.add(d);
+		} finally {
+			cursor.close();
 		}
+		/* The claim id is only needed to read the claimed documents back */
+		documents.update(claimed, new BasicDBObject("$unset", new BasicDBObject(CLAIM_KEY, 1)), false, true, concern);
 		return list;
 	} 
 	
@@ -327,6 +416,7 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		input.put(DOCUMENT_KEY, df.getDocumentId().getID());
 		input.put(ENCODING_KEY, df.getEncoding());
 		input.put(MIMETYPE_KEY, df.getMimetype());
+		input.put(STAGE_KEY, df.getSavedByStage());
 		
 		input.save();
 		
@@ -445,7 +535,7 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 			return false;
 		}
 		
-		doc.putAll(((MongoDocument)d).toMap());
+		merge(doc, (MongoDocument) d);
 		
 		stampMetadataField(doc, stamp, stage);
 		deleteAllFiles(d);
@@ -458,7 +548,9 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 	public boolean markProcessed(DatabaseDocument<MongoType> d, String stage) {
 		boolean res = markDone(d, stage, MongoDocument.PROCESSED_METADATA_FLAG);
 		
-		updater.addProcessed(1);
+		if(res) {
+			updater.addProcessed(stage, 1);
+		}
 		
 		return res;
 	}
@@ -467,7 +559,9 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 	public boolean markDiscarded(DatabaseDocument<MongoType> d, String stage) {
 		boolean res = markDone(d, stage,  MongoDocument.DISCARDED_METADATA_FLAG);
 		
-		updater.addDiscarded(1);
+		if(res) {
+			updater.addDiscarded(stage, 1);
+		}
 		
 		return res;
 	}
@@ -492,11 +586,142 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 	public boolean markFailed(DatabaseDocument<MongoType> d, String stage) {
 		boolean res = markDone(d, stage, MongoDocument.FAILED_METADATA_FLAG);
 		
-		updater.addFailed(1);
+		if(res) {
+			updater.addFailed(stage, 1);
+		}
 		
 		return res;
 	}
 	
+	/**
+	 * Bulk version of markDone(DatabaseDocument, String, String). The stored
+	 * documents are read with a single query, archived as one batch and only
+	 * then removed with a single remove, so that a document is never lost
+	 * between the two collections.
+	 * 
+	 * @return the number of documents removed by this call
+	 */
+	private int markDone(Collection<DatabaseDocument<MongoType>> docs, String stage, String stamp) {
+		Map<Object, MongoDocument> posted = new HashMap<Object, MongoDocument>();
+		for(DatabaseDocument<MongoType> d : docs) {
+			if(d.getID()!=null) {
+				posted.put(d.getID().getID(), (MongoDocument) d);
+			}
+		}
+		if(posted.isEmpty()) {
+			return 0;
+		}
+		
+		List<DBObject> done = new ArrayList<DBObject>();
+		List<Object> ids = new ArrayList<Object>();
+		DBCursor cursor = documents.find(QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(new ArrayList<Object>(posted.keySet())).get());
+		try {
+			while(cursor.hasNext()) {
+				DBObject doc = cursor.next();
+				Object id = doc.get(MongoDocument.MONGO_ID_KEY);
+				merge(doc, posted.get(id));
+				stampMetadataField(doc, stamp, stage);
+				done.add(doc);
+				ids.add(id);
+			}
+		} finally {
+			cursor.close();
+		}
+		if(done.isEmpty()) {
+			return 0;
+		}
+		
+		oldDocuments.insert(done);
+		DBObject query = QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(ids).get();
+		int removed = documents.remove(query, concern).getN();
+		documentfs.remove(QueryBuilder.start(DOCUMENT_KEY).in(ids).get());
+		
+		return removed;
+	}
+	
+	/**
+	 * Merges a possibly partial document, as posted by a stage, into the
+	 * stored document field by field. Content fields and metadata that were
+	 * not posted are kept, and maps of metadata such as the touched and 
+	 * fetched stages are merged rather than replaced.
+	 */
+	@SuppressWarnings("unchecked")
+	private void merge(DBObject stored, MongoDocument posted) {
+		DBObject contents = getSubObject(stored, MongoDocument.CONTENTS_KEY);
+		for(Map.Entry<String, Object> e : posted.getContentMap().entrySet()) {
+			if(e.getValue()==null) {
+				contents.removeField(e.getKey());
+			} else {
+				contents.put(e.getKey(), e.getValue());
+			}
+		}
+		DBObject metadata = getSubObject(stored, MongoDocument.METADATA_KEY);
+		for(Map.Entry<String, Object> e : posted.getMetadataMap().entrySet()) {
+			Object current = metadata.get(e.getKey());
+			if(current instanceof DBObject && e.getValue() instanceof Map) {
+				((DBObject) current).putAll((Map<String, Object>) e.getValue());
+			} else {
+				metadata.put(e.getKey(), e.getValue());
+			}
+		}
+		if(posted.getAction()!=null) {
+			stored.put(MongoDocument.ACTION_KEY, posted.getAction().toString());
+		}
+	}
+	
+	private DBObject getSubObject(DBObject parent, String key) {
+		if(!(parent.get(key) instanceof DBObject)) {
+			parent.put(key, new BasicDBObject());
+		}
+		return (DBObject) parent.get(key);
+	}
+	
+	@Override
+	public int markProcessed(Collection<DatabaseDocument<MongoType>> docs, String stage) {
+		int res = markDone(docs, stage, MongoDocument.PROCESSED_METADATA_FLAG);
+		
+		updater.addProcessed(stage, res);
+		
+		return res;
+	}
+	
+	@Override
+	public int markDiscarded(Collection<DatabaseDocument<MongoType>> docs, String stage) {
+		int res = markDone(docs, stage, MongoDocument.DISCARDED_METADATA_FLAG);
+		
+		updater.addDiscarded(stage, res);
+		
+		return res;
+	}
+	
+	@Override
+	public int markFailed(Collection<DatabaseDocument<MongoType>> docs, String stage) {
+		int res = markDone(docs, stage, MongoDocument.FAILED_METADATA_FLAG);
+		
+		updater.addFailed(stage, res);
+		
+		return res;
+	}
+	
+	@Override
+	public int markPending(Collection<DatabaseDocument<MongoType>> docs, String stage) {
+		List<Object> ids = new ArrayList<Object>();
+		for(DatabaseDocument<MongoType> d : docs) {
+			if(d.getID()!=null) {
+				ids.add(d.getID().getID());
+			}
+		}
+		if(ids.isEmpty()) {
+			return 0;
+		}
+		DBObject update = new BasicDBObject();
+		update.put(MongoDocument.METADATA_KEY+"."+MongoDocument.PENDING_METADATA_FLAG+"."+MongoDocument.DATE_METADATA_SUBKEY, new Date());
+		update.put(MongoDocument.METADATA_KEY+"."+MongoDocument.PENDING_METADATA_FLAG+"."+MongoDocument.STAGE_METADATA_SUBKEY, stage);
+		
+		WriteResult wr = documents.update(QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(ids).get(), getUpdateObject(update), false, true, concern);
+		return wr.getN();
+	}
+	
 	private MongoDocument findAndModify(DBObject query, DBObject modification) {
 		DBObject c = (DBObject)documents.findAndModify(query, modification);
 		
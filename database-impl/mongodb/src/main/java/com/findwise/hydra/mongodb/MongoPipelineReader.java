@@ -26,6 +26,8 @@ public class MongoPipelineReader implements PipelineReader {
 
 	private DBCollection stages = null;
 	
+	private MongoStageIndexes stageIndexes = null;
+	
 	public static final String STAGE_KEY = "stage";
 	public static final String TYPE_KEY = "type";
 	public static final String STAGE_TYPE = "stage";
@@ -76,8 +78,20 @@ public class MongoPipelineReader implements PipelineReader {
 			}
 		}
 		
+		if(stageIndexes != null) {
+			stageIndexes.ensure(p);
+		}
+		
 		return p;
 	}
+	
+	/**
+	 * Sets the indexes to ensure for the stages of every pipeline read, or
+	 * null to not ensure any.
+	 */
+	public void setStageIndexes(MongoStageIndexes stageIndexes) {
+		this.stageIndexes = stageIndexes;
+	}
 
 	private void addGroup(Pipeline p, StageGroup g) {
 		if(p.hasGroup(g.getName())) {
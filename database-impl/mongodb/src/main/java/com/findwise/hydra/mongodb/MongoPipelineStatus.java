@@ -1,15 +1,23 @@
 package com.findwise.hydra.mongodb;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.bson.BSONObject;
 
 import com.findwise.hydra.AbstractPipelineStatus;
+import com.findwise.hydra.StatusCounts;
 import com.mongodb.DBObject;
 
 public class MongoPipelineStatus extends AbstractPipelineStatus<MongoType> implements DBObject {
+	public static final String STAGES_KEY = "stages";
+	public static final String THROUGHPUT_KEY = "throughput";
+	public static final String FROM_KEY = "from";
+	public static final String TO_KEY = "to";
 	
 	/**
 	 * created defaults to NOW
@@ -100,4 +108,55 @@ public class MongoPipelineStatus extends AbstractPipelineStatus<MongoType> imple
 	public boolean isPrepared() {
 		return (Boolean) getMap().get("prepared");
 	}
+	
+	/**
+	 * @return the counts of every stage that has marked any documents, by 
+	 * stage name. The dates of the counts are not set.
+	 */
+	public Map<String, StatusCounts> getStageCounts() {
+		Map<String, StatusCounts> counts = new HashMap<String, StatusCounts>();
+		Map<?, ?> stages = (Map<?, ?>) getMap().get(STAGES_KEY);
+		if(stages != null) {
+			for(Map.Entry<?, ?> e : stages.entrySet()) {
+				counts.put(fromFieldName((String) e.getKey()), toCounts((Map<?, ?>) e.getValue()));
+			}
+		}
+		return counts;
+	}
+	
+	/**
+	 * @return the most recent throughput snapshots, oldest first
+	 */
+	public List<StatusCounts> getThroughput() {
+		List<StatusCounts> list = new ArrayList<StatusCounts>();
+		List<?> snapshots = (List<?>) getMap().get(THROUGHPUT_KEY);
+		if(snapshots != null) {
+			for(Object o : snapshots) {
+				list.add(toCounts((Map<?, ?>) o));
+			}
+		}
+		return list;
+	}
+	
+	private static StatusCounts toCounts(Map<?, ?> map) {
+		return new StatusCounts((Date) map.get(FROM_KEY), (Date) map.get(TO_KEY), 
+				getCount(map, PROCESSED_COUNT_KEY), getCount(map, FAILED_COUNT_KEY), getCount(map, DISCARDED_COUNT_KEY));
+	}
+	
+	private static int getCount(Map<?, ?> map, String key) {
+		Number n = (Number) map.get(key);
+		return n == null ? 0 : n.intValue();
+	}
+	
+	/**
+	 * Stage names are used as field names, which may not contain dots or
+	 * start with a dollar sign.
+	 */
+	static String toFieldName(String stage) {
+		return stage.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+	}
+	
+	static String fromFieldName(String field) {
+		return field.replace("%24", "$").replace("%2E", ".").replace("%25", "%");
+	}
 }
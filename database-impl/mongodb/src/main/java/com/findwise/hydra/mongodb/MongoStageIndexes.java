@@ -0,0 +1,189 @@
+package com.findwise.hydra.mongodb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.Document;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.Pipeline;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.Stage;
+import com.findwise.hydra.local.LocalQuery;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Maintains one compound index per stage on the documents collection,
+ * derived from the query of the stage, so that getAndTag for the stage can
+ * seek straight to the documents it may claim rather than scanning the
+ * backlog of every other stage.
+ *
+ * The fields that getAndTag requires not to exist come first, since a
+ * missing field is indexed as null and can be looked up as a single key:
+ * <code>metadata.fetched.&lt;stage&gt;</code>,
+ * <code>metadata.pending</code>, the first content field the query
+ * requires to equal a value, the action, and the fields the query requires
+ * not to exist. The fields the query requires to exist come last, since
+ * they can only be matched as a range.
+ *
+ * At most one content field is included, since MongoDB refuses to index
+ * documents having arrays in more than one field of a compound index, and
+ * content fields may hold arrays.
+ */
+public class MongoStageIndexes {
+	public static final String QUERY_PROPERTY = "query";
+	public static final String INDEX_PREFIX = "stage_";
+
+	private static final int MAX_KEYS = 31;
+
+	private static Logger logger = LoggerFactory.getLogger(MongoStageIndexes.class);
+
+	private DBCollection documents;
+	private ConcurrentMap<String, DBObject> ensured = new ConcurrentHashMap<String, DBObject>();
+
+	public MongoStageIndexes(DBCollection documents) {
+		this.documents = documents;
+	}
+
+	/**
+	 * Ensures the index of every stage in the pipeline, replacing the index
+	 * of any stage whose query has changed.
+	 */
+	public void ensure(Pipeline pipeline) {
+		for(Stage stage : pipeline.getStages()) {
+			try {
+				ensure(stage.getName(), getQuery(stage));
+			} catch (MongoException e) {
+				logger.error("Unable to ensure the index for stage "+stage.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Ensures the index of the stage, unless an index for the same query
+	 * has already been ensured.
+	 */
+	public void ensure(String stage, LocalQuery query) {
+		DBObject keys = getIndexKeys(stage, query);
+		DBObject previous = ensured.get(stage);
+		if(keys.equals(previous)) {
+			return;
+		}
+
+		String name = getIndexName(stage);
+		long start = System.currentTimeMillis();
+		for(DBObject index : documents.getIndexInfo()) {
+			if(name.equals(index.get("name")) && !keys.equals(index.get("key"))) {
+				logger.info("Query of stage "+stage+" has changed, dropping index "+name);
+				documents.dropIndex(name);
+			}
+		}
+		documents.ensureIndex(keys, new BasicDBObject("name", name).append("background", true));
+		ensured.put(stage, keys);
+		logger.info("Ensured index "+keys+" for stage "+stage+" in "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+	/**
+	 * @return whether an index has been ensured for the stage
+	 */
+	public boolean hasIndex(String stage) {
+		return ensured.containsKey(stage);
+	}
+
+	public static String getIndexName(String stage) {
+		return INDEX_PREFIX+stage;
+	}
+
+	/**
+	 * @return the keys of the index for a stage running the query, in order
+	 */
+	public static DBObject getIndexKeys(String stage, LocalQuery query) {
+		BasicDBObject keys = new BasicDBObject();
+		keys.put(metadata(DatabaseDocument.FETCHED_METADATA_TAG+"."+stage), 1);
+		keys.put(metadata(Document.PENDING_METADATA_FLAG), 1);
+
+		Map<String, Object> equals = new TreeMap<String, Object>(query.getContentsEquals());
+		String contentField = null;
+		if(!equals.isEmpty()) {
+			contentField = equals.keySet().iterator().next();
+			keys.put(content(contentField), 1);
+		}
+		if(query.getAction() != null) {
+			keys.put(MongoDocument.ACTION_KEY, 1);
+		}
+
+		Map<String, Boolean> touched = new TreeMap<String, Boolean>(query.getTouched());
+		Map<String, Boolean> exists = new TreeMap<String, Boolean>(query.getContentsExists());
+		for(Map.Entry<String, Boolean> e : touched.entrySet()) {
+			if(!e.getValue()) {
+				putKey(keys, metadata(DatabaseDocument.TOUCHED_METADATA_TAG+"."+e.getKey()));
+			}
+		}
+		if(contentField == null) {
+			for(Map.Entry<String, Boolean> e : exists.entrySet()) {
+				if(!e.getValue()) {
+					contentField = e.getKey();
+					putKey(keys, content(contentField));
+					break;
+				}
+			}
+		}
+
+		for(Map.Entry<String, Boolean> e : touched.entrySet()) {
+			if(e.getValue()) {
+				putKey(keys, metadata(DatabaseDocument.TOUCHED_METADATA_TAG+"."+e.getKey()));
+			}
+		}
+		if(contentField == null) {
+			for(Map.Entry<String, Boolean> e : exists.entrySet()) {
+				if(e.getValue()) {
+					putKey(keys, content(e.getKey()));
+					break;
+				}
+			}
+		}
+		return keys;
+	}
+
+	private static void putKey(BasicDBObject keys, String key) {
+		if(keys.size() < MAX_KEYS) {
+			keys.put(key, 1);
+		}
+	}
+
+	private static String metadata(String field) {
+		return MongoDocument.METADATA_KEY+"."+field;
+	}
+
+	private static String content(String field) {
+		return MongoDocument.CONTENTS_KEY+"."+field;
+	}
+
+	/**
+	 * @return the query of the stage, or an empty query if it has none or
+	 * it cannot be read
+	 */
+	static LocalQuery getQuery(Stage stage) {
+		Object query = stage.getProperties() == null ? null : stage.getProperties().get(QUERY_PROPERTY);
+		if(query == null) {
+			return new LocalQuery();
+		}
+		try {
+			return new LocalQuery(query instanceof String ? (String) query : SerializationUtils.toJson(query));
+		} catch (JsonException e) {
+			logger.warn("Unable to read the query of stage "+stage.getName()+", indexing it as if it had none", e);
+			return new LocalQuery();
+		} catch (ClassCastException e) {
+			logger.warn("Unable to read the query of stage "+stage.getName()+", indexing it as if it had none", e);
+			return new LocalQuery();
+		}
+	}
+}
@@ -1,6 +1,12 @@
 package com.findwise.hydra.mongodb;
 
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import com.findwise.hydra.AbstractPipelineStatus;
 import com.findwise.hydra.PipelineStatus;
+import com.findwise.hydra.StatusCounts;
 import com.findwise.hydra.StatusReader;
 import com.findwise.hydra.StatusWriter;
 import com.mongodb.BasicDBObject;
@@ -11,6 +17,11 @@ public class MongoStatusIO implements StatusReader<MongoType>, StatusWriter<Mong
 
 	public static final String HYDRA_COLLECTION_NAME = "hydra";
 	
+	/**
+	 * Number of throughput snapshots kept in the status document.
+	 */
+	public static final int THROUGHPUT_SNAPSHOTS = 100;
+	
 	private DBCollection collection;
 	
 	public MongoStatusIO(DB db) {
@@ -20,19 +31,49 @@ public class MongoStatusIO implements StatusReader<MongoType>, StatusWriter<Mong
 
 	@Override
 	public void increment(int processed, int failed, int discarded) {
-		MongoPipelineStatus mps = getStatus();
-		
-		if(mps==null) {
+		Date now = new Date();
+		increment(new StatusCounts(now, now, processed, failed, discarded));
+	}
+
+	/**
+	 * Adds the counts with a single atomic $inc, so that counts added by 
+	 * several cores at once are all kept. The counts are also pushed as a 
+	 * throughput snapshot, keeping the latest THROUGHPUT_SNAPSHOTS. 
+	 * 
+	 * Nothing is written if nothing was counted.
+	 */
+	@Override
+	public void increment(StatusCounts counts) {
+		if(counts.isEmpty()) {
 			return;
 		}
+		BasicDBObject inc = new BasicDBObject();
+		inc.put(AbstractPipelineStatus.PROCESSED_COUNT_KEY, counts.getProcessed());
+		inc.put(AbstractPipelineStatus.FAILED_COUNT_KEY, counts.getFailed());
+		inc.put(AbstractPipelineStatus.DISCARDED_COUNT_KEY, counts.getDiscarded());
+		for(Map.Entry<String, StatusCounts> e : counts.getStages().entrySet()) {
+			String prefix = MongoPipelineStatus.STAGES_KEY + "." + MongoPipelineStatus.toFieldName(e.getKey()) + ".";
+			putIfNonZero(inc, prefix + AbstractPipelineStatus.PROCESSED_COUNT_KEY, e.getValue().getProcessed());
+			putIfNonZero(inc, prefix + AbstractPipelineStatus.FAILED_COUNT_KEY, e.getValue().getFailed());
+			putIfNonZero(inc, prefix + AbstractPipelineStatus.DISCARDED_COUNT_KEY, e.getValue().getDiscarded());
+		}
 		
-		mps.setProcessedCount(mps.getProcessedCount()+processed);
-
-		mps.setFailedCount(mps.getFailedCount()+failed);
-
-		mps.setDiscardedCount(mps.getDiscardedCount()+discarded);
+		BasicDBObject snapshot = new BasicDBObject();
+		snapshot.put(MongoPipelineStatus.FROM_KEY, counts.getFrom());
+		snapshot.put(MongoPipelineStatus.TO_KEY, counts.getTo());
+		snapshot.put(AbstractPipelineStatus.PROCESSED_COUNT_KEY, counts.getProcessed());
+		snapshot.put(AbstractPipelineStatus.FAILED_COUNT_KEY, counts.getFailed());
+		snapshot.put(AbstractPipelineStatus.DISCARDED_COUNT_KEY, counts.getDiscarded());
+		BasicDBObject push = new BasicDBObject(MongoPipelineStatus.THROUGHPUT_KEY, 
+				new BasicDBObject("$each", Arrays.asList(snapshot)).append("$slice", -THROUGHPUT_SNAPSHOTS));
 		
-		save(mps);
+		collection.update(new BasicDBObject(), new BasicDBObject("$inc", inc).append("$push", push));
+	}
+	
+	private static void putIfNonZero(BasicDBObject inc, String key, int value) {
+		if(value != 0) {
+			inc.put(key, value);
+		}
 	}
 
 	@Override
@@ -0,0 +1,77 @@
+package com.findwise.hydra.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+
+public class MongoClusterCoordinatorTest {
+	private DB db;
+	
+	@Before
+	public void setUp() throws UnknownHostException, MongoException {
+		tearDown();
+		db = new Mongo().getDB("junit-clustertest");
+	}
+	
+	@After
+	public void tearDown() throws MongoException, UnknownHostException {
+		new Mongo().getDB("junit-clustertest").dropDatabase();
+	}
+	
+	@Test
+	public void testHeartbeat() throws Exception {
+		MongoClusterCoordinator cc = new MongoClusterCoordinator(db);
+		cc.heartbeat("a", 10000);
+		cc.heartbeat("b", 50);
+		assertTrue(cc.getLiveNodes().contains("a"));
+		assertTrue(cc.getLiveNodes().contains("b"));
+		
+		Thread.sleep(100);
+		assertTrue(cc.getLiveNodes().contains("a"));
+		assertFalse(cc.getLiveNodes().contains("b"));
+		
+		cc.unregister("a");
+		assertTrue(cc.getLiveNodes().isEmpty());
+	}
+	
+	@Test
+	public void testLease() throws Exception {
+		MongoClusterCoordinator cc = new MongoClusterCoordinator(db);
+		assertNull(cc.getLeaseHolder("group"));
+		
+		assertTrue(cc.acquireLease("group", "a", 100));
+		assertTrue(cc.acquireLease("group", "a", 100));
+		assertFalse(cc.acquireLease("group", "b", 100));
+		assertEquals("a", cc.getLeaseHolder("group"));
+		
+		Thread.sleep(150);
+		assertNull(cc.getLeaseHolder("group"));
+		assertTrue(cc.acquireLease("group", "b", 10000));
+		assertEquals("b", cc.getLeaseHolder("group"));
+		
+		cc.releaseLease("group", "a");
+		assertEquals("b", cc.getLeaseHolder("group"));
+		cc.releaseLease("group", "b");
+		assertNull(cc.getLeaseHolder("group"));
+	}
+	
+	@Test
+	public void testUnregisterReleasesLeases() {
+		MongoClusterCoordinator cc = new MongoClusterCoordinator(db);
+		cc.heartbeat("a", 10000);
+		cc.acquireLease("group1", "a", 10000);
+		cc.acquireLease("group2", "a", 10000);
+		cc.unregister("a");
+		
+		assertNull(cc.getLeaseHolder("group1"));
+		assertTrue(cc.acquireLease("group2", "b", 10000));
+	}
+}
@@ -2,8 +2,12 @@ package com.findwise.hydra.mongodb;
 
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import junit.framework.Assert;
 
@@ -293,6 +297,38 @@ public class MongoDocumentIOTest {
 				.containsKey("tag"));
 	}
 	
+	@Test
+	public void testBatchGetAndTag() throws Exception {
+		MongoDocumentIO dw = (MongoDocumentIO) mdc.getDocumentWriter();
+		dw.deleteAll();
+		for(int i=0; i<5; i++) {
+			MongoDocument md = new MongoDocument();
+			md.putContentField("number", i);
+			dw.insert(md);
+		}
+		
+		List<DatabaseDocument<MongoType>> first = dw.getAndTag(new MongoQuery(), "tag", 3);
+		Assert.assertEquals(3, first.size());
+		List<DatabaseDocument<MongoType>> second = dw.getAndTag(new MongoQuery(), "tag", 3);
+		Assert.assertEquals(2, second.size());
+		Assert.assertEquals(0, dw.getAndTag(new MongoQuery(), "tag", 3).size());
+		
+		Set<Object> ids = new HashSet<Object>();
+		for(DatabaseDocument<MongoType> d : first) {
+			Assert.assertNull(((MongoDocument)d).get(MongoDocumentIO.CLAIM_KEY));
+			Assert.assertTrue(((Map<?, ?>)d.getMetadataMap().get(MongoDocument.FETCHED_METADATA_TAG)).containsKey("tag"));
+			ids.add(d.getID().getID());
+		}
+		for(DatabaseDocument<MongoType> d : second) {
+			ids.add(d.getID().getID());
+		}
+		Assert.assertEquals(5, ids.size());
+		
+		Assert.assertEquals(5, dw.getAndTag(new MongoQuery(), "othertag", 10).size());
+		Assert.assertEquals(0, mdc.getDB().getCollection(MongoDocumentIO.DOCUMENT_COLLECTION).count(
+				new BasicDBObject(MongoDocumentIO.CLAIM_KEY, new BasicDBObject("$exists", true))));
+	}
+	
 	@Ignore
 	@Test
 	public void testInsertLargeDocument() throws Exception {
@@ -388,6 +424,30 @@ public class MongoDocumentIOTest {
 		tr.interrupt();
 	}
 	
+	@Test
+	public void testBulkMarkMergesPartialDocuments() throws Exception {
+		MongoDocument d = new MongoDocument();
+		d.putContentField("kept", "value");
+		d.putContentField("changed", "old");
+		mdc.getDocumentWriter().insert(d);
+		mdc.getDocumentWriter().markTouched(d.getID(), "first");
+		
+		MongoDocument partial = new MongoDocument();
+		partial.setID(d.getID());
+		partial.putContentField("changed", "new");
+		
+		List<DatabaseDocument<MongoType>> docs = new ArrayList<DatabaseDocument<MongoType>>();
+		docs.add(partial);
+		Assert.assertEquals(1, mdc.getDocumentWriter().markProcessed(docs, "x"));
+		Assert.assertEquals(0, mdc.getDocumentWriter().markProcessed(docs, "x"));
+		
+		DatabaseDocument<MongoType> old = mdc.getDocumentReader().getDocumentById(d.getID(), true);
+		Assert.assertEquals("value", old.getContentField("kept"));
+		Assert.assertEquals("new", old.getContentField("changed"));
+		Assert.assertTrue(old.touchedBy("first"));
+		Assert.assertEquals(Status.PROCESSED, old.getStatus());
+	}
+	
 	public long processDocuments(int count) throws Exception {
 		long start = System.currentTimeMillis();
 		DatabaseDocument<MongoType> dd;
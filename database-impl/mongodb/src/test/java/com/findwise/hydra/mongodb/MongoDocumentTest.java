@@ -1,9 +1,16 @@
 package com.findwise.hydra.mongodb;
 
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.Assert;
 
+import org.bson.types.ObjectId;
+
 import org.junit.Test;
 
+import com.findwise.hydra.SerializationUtils;
 import com.findwise.hydra.local.LocalDocument;
 
 public class MongoDocumentTest {
@@ -20,4 +27,33 @@ public class MongoDocumentTest {
 		Assert.assertEquals(1, md.getTouchedContent().size());
 		Assert.assertNull(md.getContentField("field"));
 	}
+
+	@Test
+	public void testFromMap() throws Exception {
+		MongoDocument original = new MongoDocument();
+		original.put(MongoDocument.MONGO_ID_KEY, new ObjectId());
+		original.putContentField("field", "value");
+		original.putContentField("list", Arrays.asList(1, 2, 3));
+		original.putMetadataField("meta", "data");
+
+		MongoDocument md = new MongoDocument();
+		md.fromMap(SerializationUtils.fromJson(new StringReader(original.toJson())));
+
+		Assert.assertEquals(original.getID().getID(), md.getID().getID());
+		Assert.assertEquals("value", md.getContentField("field"));
+		Assert.assertEquals(3, ((List<?>) md.getContentField("list")).size());
+		Assert.assertEquals("data", md.getMetadataField("meta"));
+		Assert.assertTrue(md.getTouchedContent().contains("field"));
+
+		MongoDocument parsed = new MongoDocument(original.toJson());
+		Assert.assertEquals(parsed.getContentMap(), md.getContentMap());
+		Assert.assertEquals(parsed.getMetadataMap(), md.getMetadataMap());
+	}
+
+	@Test
+	public void testFromMapReplacesPeriods() throws Exception {
+		MongoDocument md = new MongoDocument();
+		md.fromMap(SerializationUtils.fromJson(new StringReader("{\"contents\":{\"a.b\":1}}")));
+		Assert.assertTrue(md.hasContentField("a-b"));
+	}
 }
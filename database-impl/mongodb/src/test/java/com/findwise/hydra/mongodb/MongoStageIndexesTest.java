@@ -0,0 +1,100 @@
+package com.findwise.hydra.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Action;
+import com.findwise.hydra.local.LocalQuery;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+
+public class MongoStageIndexesTest {
+	private DB db;
+
+	@Before
+	public void setUp() throws UnknownHostException, MongoException {
+		tearDown();
+		db = new Mongo().getDB("junit-stageindexestest");
+	}
+
+	@After
+	public void tearDown() throws MongoException, UnknownHostException {
+		new Mongo().getDB("junit-stageindexestest").dropDatabase();
+	}
+
+	@Test
+	public void testEmptyQuery() {
+		DBObject keys = MongoStageIndexes.getIndexKeys("stage", new LocalQuery());
+		assertEquals(Arrays.asList("metadata.fetched.stage", "metadata.pending"), new ArrayList<String>(keys.keySet()));
+	}
+
+	@Test
+	public void testKeyOrder() {
+		LocalQuery lq = new LocalQuery();
+		lq.requireTouchedByStage("before");
+		lq.requireNotTouchedByStage("after");
+		lq.requireContentFieldEquals("b", "x");
+		lq.requireContentFieldEquals("a", "y");
+		lq.requireContentFieldExists("c");
+		lq.requireAction(Action.ADD);
+
+		DBObject keys = MongoStageIndexes.getIndexKeys("stage", lq);
+		List<String> expected = Arrays.asList(
+				"metadata.fetched.stage",
+				"metadata.pending",
+				"contents.a",
+				"action",
+				"metadata.touched.after",
+				"metadata.touched.before");
+		assertEquals(expected, new ArrayList<String>(keys.keySet()));
+	}
+
+	@Test
+	public void testOneContentField() {
+		LocalQuery lq = new LocalQuery();
+		lq.requireContentFieldNotExists("a");
+		lq.requireContentFieldNotExists("b");
+		lq.requireContentFieldExists("c");
+
+		DBObject keys = MongoStageIndexes.getIndexKeys("stage", lq);
+		assertTrue(keys.containsField("contents.a"));
+		assertFalse(keys.containsField("contents.b"));
+		assertFalse(keys.containsField("contents.c"));
+	}
+
+	@Test
+	public void testEnsureReplacesChangedIndex() {
+		DBCollection documents = db.getCollection(MongoDocumentIO.DOCUMENT_COLLECTION);
+		MongoStageIndexes indexes = new MongoStageIndexes(documents);
+		assertFalse(indexes.hasIndex("stage"));
+
+		indexes.ensure("stage", new LocalQuery());
+		assertTrue(indexes.hasIndex("stage"));
+		assertEquals(MongoStageIndexes.getIndexKeys("stage", new LocalQuery()), getIndexKeys(documents, "stage"));
+
+		LocalQuery lq = new LocalQuery();
+		lq.requireTouchedByStage("before");
+		new MongoStageIndexes(documents).ensure("stage", lq);
+		assertEquals(MongoStageIndexes.getIndexKeys("stage", lq), getIndexKeys(documents, "stage"));
+	}
+
+	private DBObject getIndexKeys(DBCollection documents, String stage) {
+		for(DBObject index : documents.getIndexInfo()) {
+			if(MongoStageIndexes.getIndexName(stage).equals(index.get("name"))) {
+				return (DBObject) index.get("key");
+			}
+		}
+		return null;
+	}
+}
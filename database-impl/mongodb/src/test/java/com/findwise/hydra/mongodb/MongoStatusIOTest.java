@@ -3,11 +3,15 @@ package com.findwise.hydra.mongodb;
 import static org.junit.Assert.*;
 
 import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.findwise.hydra.StatusCounts;
 import com.mongodb.DB;
 import com.mongodb.Mongo;
 import com.mongodb.MongoException;
@@ -90,4 +94,25 @@ public class MongoStatusIOTest {
 		assertEquals(3, mps.getFailedCount());
 		assertEquals(Integer.MAX_VALUE, mps.getDiscardedCount());
 	}
+	
+	@Test
+	public void testIncrementStages() {
+		MongoStatusIO io = new MongoStatusIO(db);
+		io.save(new MongoPipelineStatus());
+		
+		Date now = new Date();
+		Map<String, StatusCounts> stages = new HashMap<String, StatusCounts>();
+		stages.put("first", new StatusCounts(now, now, 2, 0, 0));
+		stages.put("with.dot", new StatusCounts(now, now, 0, 1, 0));
+		io.increment(new StatusCounts(now, now, 2, 1, 0, stages));
+		io.increment(new StatusCounts(now, now, 2, 1, 0, stages));
+		
+		MongoPipelineStatus mps = io.getStatus();
+		assertEquals(4, mps.getProcessedCount());
+		assertEquals(2, mps.getFailedCount());
+		assertEquals(4, mps.getStageCounts().get("first").getProcessed());
+		assertEquals(2, mps.getStageCounts().get("with.dot").getFailed());
+		assertEquals(2, mps.getThroughput().size());
+		assertEquals(2, mps.getThroughput().get(1).getProcessed());
+	}
 }
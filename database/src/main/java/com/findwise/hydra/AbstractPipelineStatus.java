@@ -11,6 +11,10 @@ public abstract class AbstractPipelineStatus<T extends DatabaseType> implements
 
 	private static final String DISCARDS_OLD_KEY = "discardOld";
 	
+	public static final String PROCESSED_COUNT_KEY = "processed_count";
+	public static final String FAILED_COUNT_KEY = "failed_count";
+	public static final String DISCARDED_COUNT_KEY = "discarded_count";
+	
 	@Override
 	public void setDiscardOldDocuments(boolean discardOld) {
 		if(discardOld) {
@@ -51,33 +55,40 @@ public abstract class AbstractPipelineStatus<T extends DatabaseType> implements
 
 	@Override
 	public int getDiscardedCount() {
-		return (Integer) map.get("discarded_count");
+		return getCount(DISCARDED_COUNT_KEY);
 	}
 
 	@Override
 	public void setDiscardedCount(int i) {
-		map.put("discarded_count", i);
+		map.put(DISCARDED_COUNT_KEY, i);
 		
 	}
 
 	@Override
 	public int getProcessedCount() {
-		return (Integer) map.get("processed_count");
+		return getCount(PROCESSED_COUNT_KEY);
 	}
 
 	@Override
 	public void setProcessedCount(int i) {
-		map.put("processed_count", i);
+		map.put(PROCESSED_COUNT_KEY, i);
 		
 	}
 
 	@Override
 	public int getFailedCount() {
-		return (Integer) map.get("failed_count");
+		return getCount(FAILED_COUNT_KEY);
 	}
 
 	@Override
 	public void setFailedCount(int i) {
-		map.put("failed_count", i);
+		map.put(FAILED_COUNT_KEY, i);
+	}
+	
+	/**
+	 * Counts incremented in the database may have been widened to longs.
+	 */
+	private int getCount(String key) {
+		return ((Number) map.get(key)).intValue();
 	}
 }
@@ -8,7 +8,10 @@ public interface Cache<T extends DatabaseType> {
 	
 	void prepare();
 	
-	void add(DatabaseDocument<T> doc);
+	/**
+	 * @return true if the document was added, false if the cache refused it
+	 */
+	boolean add(DatabaseDocument<T> doc);
 	
 	void add(Collection<DatabaseDocument<T>> docs);
 	
@@ -33,4 +36,13 @@ public interface Cache<T extends DatabaseType> {
 	boolean markProcessed(DocumentID id, String stage);
 	
 	boolean update(DatabaseDocument<T> document);
+
+	/**
+	 * Removes all documents that have not been accessed for maxIdle
+	 * milliseconds, followed by the least recently used documents until no
+	 * more than maxDocuments remain.
+	 * 
+	 * @return the removed documents
+	 */
+	Collection<DatabaseDocument<T>> evict(long maxIdle, int maxDocuments);
 }
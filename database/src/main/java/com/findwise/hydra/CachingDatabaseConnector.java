@@ -1,15 +1,23 @@
 package com.findwise.hydra;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.Document;
 import com.findwise.hydra.Query;
 
 public class CachingDatabaseConnector<BackingType extends DatabaseType>
 		implements DatabaseConnector<BackingType> {
+	private static final Logger logger = LoggerFactory.getLogger(CachingDatabaseConnector.class);
+
 	private DatabaseConnector<BackingType> backing;
 	private Cache<BackingType> cache;
 	private CachingDocumentNIO<BackingType> documentio;
+	private String nodeId;
 
 	public CachingDatabaseConnector(DatabaseConnector<BackingType> backing,
 			Cache<BackingType> cache) {
@@ -18,15 +26,47 @@ public class CachingDatabaseConnector<BackingType extends DatabaseType>
 
 	}
 
+	/**
+	 * Sets the id of this core in the cluster, so that documents cached by
+	 * other live cores are not released when connecting. Must be called
+	 * before {@link #connect()}.
+	 * 
+	 * @see CachingDocumentNIO#setNodeId(String)
+	 */
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * Connects to the backing database and starts the background threads of
+	 * the cache, which run until {@link #shutdown()} is called.
+	 */
 	@Override
 	public void connect() throws IOException {
 		backing.connect();
-		documentio = new CachingDocumentNIO<BackingType>(backing, cache);
+		if (documentio == null) {
+			documentio = new CachingDocumentNIO<BackingType>(backing, cache);
+			documentio.setNodeId(nodeId);
+		}
 		documentio.prepare();
 	}
 
+	/**
+	 * Stops the background threads of the cache, writes all pending changes
+	 * to the backing database and returns the cached documents to it. Should
+	 * be called before the JVM exits, e.g. from a shutdown hook.
+	 */
+	public void shutdown() {
+		if (documentio != null) {
+			documentio.shutdown();
+		}
+	}
+
 	@Override
 	public void waitForWrites(boolean alwaysBlocking) {
+		if (alwaysBlocking && documentio != null) {
+			documentio.flush();
+		}
 		backing.waitForWrites(alwaysBlocking);
 	}
 
@@ -57,7 +97,13 @@ public class CachingDatabaseConnector<BackingType extends DatabaseType>
 
 	@Override
 	public DatabaseQuery<BackingType> convert(Query query) {
-		return backing.convert(query);
+		DatabaseQuery<BackingType> q = backing.convert(query);
+		try {
+			return new CachingQuery<BackingType>(q, query);
+		} catch (JsonException e) {
+			logger.error("Unable to convert query " + query + " to a caching query", e);
+			return q;
+		}
 	}
 
 	@Override
@@ -66,6 +112,18 @@ public class CachingDatabaseConnector<BackingType extends DatabaseType>
 		return backing.convert(document);
 	}
 
+	@Override
+	public DatabaseDocument<BackingType> convert(Reader json)
+			throws JsonException, ConversionException {
+		return backing.convert(json);
+	}
+
+	@Override
+	public DatabaseDocument<BackingType> convert(Map<String, Object> map)
+			throws ConversionException {
+		return backing.convert(map);
+	}
+
 	@Override
 	public boolean isConnected() {
 		return backing.isConnected();
@@ -81,4 +139,9 @@ public class CachingDatabaseConnector<BackingType extends DatabaseType>
 		return backing.getStatusReader();
 	}
 
+	@Override
+	public ClusterCoordinator getClusterCoordinator() {
+		return backing.getClusterCoordinator();
+	}
+
 }
@@ -165,6 +165,50 @@ public class CachingDocumentIO<CacheType extends DatabaseType, BackingType exten
 		return true;
 	}
 
+	@Override
+	public int markProcessed(Collection<DatabaseDocument<CacheType>> docs, String stage) {
+		int marked = 0;
+		for(DatabaseDocument<CacheType> d : docs) {
+			if(markProcessed(d, stage)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	@Override
+	public int markDiscarded(Collection<DatabaseDocument<CacheType>> docs, String stage) {
+		int marked = 0;
+		for(DatabaseDocument<CacheType> d : docs) {
+			if(markDiscarded(d, stage)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	@Override
+	public int markFailed(Collection<DatabaseDocument<CacheType>> docs, String stage) {
+		int marked = 0;
+		for(DatabaseDocument<CacheType> d : docs) {
+			if(markFailed(d, stage)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	@Override
+	public int markPending(Collection<DatabaseDocument<CacheType>> docs, String stage) {
+		int marked = 0;
+		for(DatabaseDocument<CacheType> d : docs) {
+			if(markPending(d, stage)) {
+				marked++;
+			}
+		}
+		return marked;
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<CacheType> d) {
 		DatabaseDocument<BackingType> doc = convert(d);
@@ -461,7 +505,7 @@ public class CachingDocumentIO<CacheType extends DatabaseType, BackingType exten
 			Date cached = (Date) doc.getMetadataMap().get(CACHED_TIME_METADATA_KEY);
 			
 			// Document has been in the cache shorter than the cacheTTL
-			if(System.currentTimeMillis() - cached.getTime() < cacheTTL) {
+			if(cached != null && System.currentTimeMillis() - cached.getTime() < cacheTTL) {
 				return false;
 			}
 			
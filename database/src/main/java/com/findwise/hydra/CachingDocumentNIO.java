@@ -3,24 +3,59 @@ package com.findwise.hydra;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.DocumentFile;
+import com.findwise.hydra.local.LocalQuery;
 
 public class CachingDocumentNIO<T extends DatabaseType> implements
 		DocumentReader<T>, DocumentWriter<T> {
+	private static final Logger logger = LoggerFactory.getLogger(CachingDocumentNIO.class);
 
 	private static final int DEFAULT_BATCH_SIZE = 10;
+	private static final int DEFAULT_FLUSH_INTERVAL_MS = 500;
+	private static final int DEFAULT_MAX_PENDING_WRITES = 1000;
+	private static final int DEFAULT_MAX_CACHED_DOCUMENTS = 10000;
+	private static final int MONITOR_INTERVAL_MS = 1000;
 	private static final int DEFAULT_DOCUMENT_TTL_MS = 10000;
 	public static final String CACHED_TIME_METADATA_KEY = "cached";
 	public static final String CACHE_TAG = "_cache";
+	public static final String CACHE_OWNER_METADATA_KEY = "cacheowner";
 
 	private Cache<T> cache;
 
+	private DatabaseConnector<T> backing;
 	private DocumentWriter<T> writer;
 	private DocumentReader<T> reader;
 
 	private int batchSize;
+	private int flushInterval;
+	private int maxPendingWrites;
+	private int cacheTTL;
+	private int maxCachedDocuments;
+	private String nodeId;
+
+	/**
+	 * IDs of cached documents with changes that have not yet been written
+	 * to the backing database. Also used as the lock for {@link #writing}.
+	 */
+	private final Map<Object, DocumentID> dirty;
+	/**
+	 * IDs of documents currently being written to, marked or released in the
+	 * backing database. The lock is not held while writing, instead anyone
+	 * about to write or mark the same document waits for the write to finish.
+	 */
+	private final Set<Object> writing;
+	private WriteBehindFlusher flusher;
+	private CacheMonitor monitor;
 
 	public int getBatchSize() {
 		return batchSize;
@@ -31,10 +66,84 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	}
 
 	public CachingDocumentNIO(DatabaseConnector<T> backing, Cache<T> cache) {
+		this(backing, cache, DEFAULT_FLUSH_INTERVAL_MS);
+	}
+
+	public CachingDocumentNIO(DatabaseConnector<T> backing, Cache<T> cache, int flushInterval) {
+		this.backing = backing;
 		writer = backing.getDocumentWriter();
 		reader = backing.getDocumentReader();
 		this.cache = cache;
 		batchSize = DEFAULT_BATCH_SIZE;
+		this.flushInterval = flushInterval;
+		maxPendingWrites = DEFAULT_MAX_PENDING_WRITES;
+		cacheTTL = DEFAULT_DOCUMENT_TTL_MS;
+		maxCachedDocuments = DEFAULT_MAX_CACHED_DOCUMENTS;
+		dirty = new LinkedHashMap<Object, DocumentID>();
+		writing = new HashSet<Object>();
+	}
+
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, that a change to a cached
+	 * document may wait before being written to the backing database.
+	 */
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public int getMaxPendingWrites() {
+		return maxPendingWrites;
+	}
+
+	/**
+	 * Sets the number of documents that may have pending changes before
+	 * writers have to flush them synchronously.
+	 */
+	public void setMaxPendingWrites(int maxPendingWrites) {
+		this.maxPendingWrites = maxPendingWrites;
+	}
+
+	public int getCacheTTL() {
+		return cacheTTL;
+	}
+
+	/**
+	 * Sets the time, in milliseconds, that a document may stay in the cache
+	 * without being accessed. Set 0 to never expire. Changes to this are
+	 * picked up on the fly by the monitor thread.
+	 */
+	public void setCacheTTL(int cacheTTL) {
+		this.cacheTTL = cacheTTL;
+	}
+
+	public int getMaxCachedDocuments() {
+		return maxCachedDocuments;
+	}
+
+	/**
+	 * Sets the number of documents the cache may hold before the least
+	 * recently used ones are returned to the backing database.
+	 */
+	public void setMaxCachedDocuments(int maxCachedDocuments) {
+		this.maxCachedDocuments = maxCachedDocuments;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Sets the id of this core in the cluster, which documents claimed by
+	 * the cache are marked with. When set, claims made by other live nodes
+	 * are never released by this cache. Must be set before
+	 * {@link #prepare()}.
+	 */
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
 	}
 
 	@Override
@@ -55,6 +164,11 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		Collection<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
 
 		list.addAll(cache.getAndTag(query, tag, n));
+		if (list.size() < n) {
+			if (fillCache(query, tag) > 0) {
+				list.addAll(cache.getAndTag(query, tag, n - list.size()));
+			}
+		}
 
 		return list;
 	}
@@ -64,64 +178,142 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		if (!cache.markTouched(id, tag)) {
 			return writer.markTouched(id, tag);
 		}
+		markDirty(id);
 		return true;
 	}
 
 	@Override
 	public boolean markProcessed(DatabaseDocument<T> d, String stage) {
-		if (writer.markProcessed(d, stage)) {
-			cache.remove(d.getID());
-			return true;
+		lock(d.getID());
+		try {
+			if (writer.markProcessed(d, stage)) {
+				cache.remove(d.getID());
+				return true;
+			}
+		} finally {
+			unlock(d.getID());
 		}
+		markDirty(d.getID());
 		return false;
 	}
 
 	@Override
 	public boolean markDiscarded(DatabaseDocument<T> d, String stage) {
-		if (writer.markDiscarded(d, stage)) {
-			cache.remove(d.getID());
-			return true;
+		lock(d.getID());
+		try {
+			if (writer.markDiscarded(d, stage)) {
+				cache.remove(d.getID());
+				return true;
+			}
+		} finally {
+			unlock(d.getID());
 		}
+		markDirty(d.getID());
 		return false;
 	}
 
 	@Override
 	public boolean markFailed(DatabaseDocument<T> d, String stage) {
-		if (writer.markFailed(d, stage)) {
-			cache.remove(d.getID());
-			return true;
+		lock(d.getID());
+		try {
+			if (writer.markFailed(d, stage)) {
+				cache.remove(d.getID());
+				return true;
+			}
+		} finally {
+			unlock(d.getID());
 		}
+		markDirty(d.getID());
 		return false;
 	}
 
 	@Override
 	public boolean markPending(DatabaseDocument<T> d, String stage) {
+		flush(d.getID());
 		cache.remove(d.getID());
 		return writer.markPending(d, stage);
 	}
 
+	@Override
+	public int markProcessed(Collection<DatabaseDocument<T>> docs, String stage) {
+		flush(docs);
+		lock(docs);
+		try {
+			int marked = writer.markProcessed(docs, stage);
+			removeFromCache(docs);
+			return marked;
+		} finally {
+			unlock(docs);
+		}
+	}
+
+	@Override
+	public int markDiscarded(Collection<DatabaseDocument<T>> docs, String stage) {
+		flush(docs);
+		lock(docs);
+		try {
+			int marked = writer.markDiscarded(docs, stage);
+			removeFromCache(docs);
+			return marked;
+		} finally {
+			unlock(docs);
+		}
+	}
+
+	@Override
+	public int markFailed(Collection<DatabaseDocument<T>> docs, String stage) {
+		flush(docs);
+		lock(docs);
+		try {
+			int marked = writer.markFailed(docs, stage);
+			removeFromCache(docs);
+			return marked;
+		} finally {
+			unlock(docs);
+		}
+	}
+
+	@Override
+	public int markPending(Collection<DatabaseDocument<T>> docs, String stage) {
+		flush(docs);
+		removeFromCache(docs);
+		return writer.markPending(docs, stage);
+	}
+	
+	private void removeFromCache(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> d : docs) {
+			cache.remove(d.getID());
+		}
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<T> d) {
 		return writer.insert(d);
 	}
 
+	/**
+	 * Changes to documents that are not in the cache are written straight to
+	 * the backing database, since only documents claimed by the cache may be
+	 * cached.
+	 */
 	@Override
 	public boolean update(DatabaseDocument<T> d) {
 		if (!cache.update(d)) {
-			DatabaseDocument<T> doc = reader.getDocumentById(d.getID());
-			if (doc != null) {
-				cache.add(doc);
-				cache.update(d);
-			}
 			return writer.update(d);
 		}
+		markDirty(d.getID());
 		return true;
 	}
 
 	@Override
 	public void delete(DatabaseDocument<T> d) {
-		cache.remove(d.getID());
-		writer.delete(d);
+		lock(d.getID());
+		try {
+			cache.remove(d.getID());
+			writer.delete(d);
+		} finally {
+			unlock(d.getID());
+		}
 	}
 
 	@Override
@@ -131,6 +323,9 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 
 	@Override
 	public void deleteAll() {
+		synchronized (dirty) {
+			dirty.clear();
+		}
 		cache.removeAll();
 		writer.deleteAll();
 	}
@@ -144,6 +339,16 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	public void prepare() {
 		cache.prepare();
 		writer.prepare();
+		releaseStale();
+
+		if (flusher == null || !flusher.isAlive()) {
+			flusher = new WriteBehindFlusher();
+			flusher.start();
+		}
+		if (monitor == null || !monitor.isAlive()) {
+			monitor = new CacheMonitor();
+			monitor.start();
+		}
 	}
 
 	@Override
@@ -151,7 +356,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		DatabaseDocument<T> doc = cache.getDocument(q);
 		
 		if(doc == null) {
-			doc = reader.getDocument(q);
+			doc = reader.getDocument(unwrap(q));
 			cache.add(doc);
 		}
 
@@ -187,17 +392,17 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 
 	@Override
 	public TailableIterator<T> getInactiveIterator(DatabaseQuery<T> query) {
-		return reader.getInactiveIterator(query);
+		return reader.getInactiveIterator(unwrap(query));
 	}
 
 	@Override
 	public List<DatabaseDocument<T>> getDocuments(DatabaseQuery<T> q, int limit) {
 		List<DatabaseDocument<T>> docs = new ArrayList<DatabaseDocument<T>>();
 		
-		docs.addAll(getDocuments(q, limit));
+		docs.addAll(cache.getDocument(q, limit));
 		
 		if(docs.size() < limit) {
-			return reader.getDocuments(q, limit);
+			return reader.getDocuments(unwrap(q), limit);
 		}
 		return docs;
 	}
@@ -205,12 +410,12 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	@Override
 	public List<DatabaseDocument<T>> getDocuments(DatabaseQuery<T> q,
 			int limit, int skip) {
-		return reader.getDocuments(q, limit, skip);
+		return reader.getDocuments(unwrap(q), limit, skip);
 	}
 
 	@Override
 	public long getNumberOfDocuments(DatabaseQuery<T> q) {
-		return reader.getNumberOfDocuments(q);
+		return reader.getNumberOfDocuments(unwrap(q));
 	}
 
 	@Override
@@ -248,12 +453,386 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			query.requireNotFetchedByStage(tag);
 		}
 
-		Collection<DatabaseDocument<T>> collection = writer.getAndTag(query,
+		Collection<DatabaseDocument<T>> collection = writer.getAndTag(unwrap(query),
 				CACHE_TAG, batchSize);
 
-		cache.add(collection);
+		int added = 0;
+		for (DatabaseDocument<T> doc : collection) {
+			if (nodeId != null) {
+				doc.putMetadataField(CACHE_OWNER_METADATA_KEY, nodeId);
+			}
+			if (cache.add(doc)) {
+				added++;
+				if (nodeId != null) {
+					markDirty(doc.getID());
+				}
+			} else {
+				release(doc);
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Releases a document claimed by the cache, so that it can be fetched
+	 * from the backing database again. Holds the lock of the document so
+	 * that it is not released while being marked as done, and skips it if
+	 * it is no longer active, since the update would otherwise insert it
+	 * again.
+	 */
+	private void release(DatabaseDocument<T> doc) {
+		lock(doc.getID());
+		try {
+			if (reader.getDocumentById(doc.getID()) == null) {
+				return;
+			}
+			doc.removeFetchedBy(CACHE_TAG);
+			if (doc.getMetadataMap().containsKey(CACHE_OWNER_METADATA_KEY)) {
+				doc.putMetadataField(CACHE_OWNER_METADATA_KEY, null);
+			}
+			writer.update(doc);
+		} finally {
+			unlock(doc.getID());
+		}
+	}
+
+	/**
+	 * Writes all pending changes of cached documents to the backing database.
+	 */
+	public void flush() {
+		List<DocumentID> ids;
+		synchronized (dirty) {
+			ids = new ArrayList<DocumentID>(dirty.values());
+		}
+		for (DocumentID id : ids) {
+			flush(id);
+		}
+	}
+
+	/**
+	 * Stops the background threads and returns all cached documents to the
+	 * backing database.
+	 */
+	public void shutdown() {
+		if (flusher != null) {
+			stop(flusher);
+		}
+		if (monitor != null) {
+			stop(monitor);
+		}
+		if (getPendingWrites() > 0) {
+			logger.info("Writing " + getPendingWrites() + " cached documents to the backing database before shutting down");
+		}
+		flush();
+		logger.info("Returning cached documents to the backing database");
+		expire();
+	}
+
+	private void stop(Thread t) {
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns all cached documents to the backing database.
+	 */
+	public void expire() {
+		release(cache.evict(0, 0));
+	}
+
+	/**
+	 * Returns documents that have not been accessed within the cache TTL,
+	 * and the least recently used documents above the maximum number of
+	 * cached documents, to the backing database.
+	 * 
+	 * @return the number of documents returned
+	 */
+	public int evict() {
+		long ttl = cacheTTL == 0 ? Long.MAX_VALUE : cacheTTL;
+		Collection<DatabaseDocument<T>> evicted = cache.evict(ttl, maxCachedDocuments);
+		release(evicted);
+		return evicted.size();
+	}
+
+	private void release(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> doc : docs) {
+			release(doc);
+		}
+	}
+
+	/**
+	 * Releases documents in the backing database that were claimed by a
+	 * cache that was never given a chance to release them, e.g. because the
+	 * core crashed.
+	 * 
+	 * If the node id is set, claims made by this node or by nodes that are no
+	 * longer live in the cluster are released, and claims of other live nodes
+	 * are left alone. Claims without an owner, or all claims if the node id
+	 * is not set, are released once they are older than the cache TTL.
+	 */
+	private void releaseStale() {
+		if (cacheTTL == 0 && nodeId == null) {
+			return;
+		}
+		DatabaseQuery<T> query = backing.convert(new LocalQuery());
+		query.requireMetadataFieldExists(Document.FETCHED_METADATA_TAG + "." + CACHE_TAG);
+
+		Set<String> live = null;
+		if (nodeId != null) {
+			live = backing.getClusterCoordinator().getLiveNodes();
+			live.remove(nodeId);
+		}
+
+		int released = 0;
+		int skip = 0;
+		List<DatabaseDocument<T>> docs;
+		do {
+			docs = reader.getDocuments(query, batchSize, skip);
+			for (DatabaseDocument<T> doc : docs) {
+				if (isStale(doc, live)) {
+					release(doc);
+					released++;
+				} else {
+					skip++;
+				}
+			}
+		} while (docs.size() == batchSize);
+
+		if (released > 0) {
+			logger.info("Released " + released + " documents claimed by a previous cache");
+		}
+	}
 
-		return collection.size();
+	/**
+	 * @param live the other live nodes in the cluster, or null if the node
+	 *            id is not set
+	 */
+	private boolean isStale(DatabaseDocument<T> doc, Set<String> live) {
+		if (!doc.getFetchedBy().contains(CACHE_TAG)) {
+			return false;
+		}
+		Object owner = doc.getMetadataMap().get(CACHE_OWNER_METADATA_KEY);
+		if (live != null && owner != null) {
+			return !live.contains(owner.toString());
+		}
+		if (cacheTTL == 0) {
+			return false;
+		}
+		Date fetched = doc.getFetchedTime(CACHE_TAG);
+		return fetched == null || System.currentTimeMillis() - fetched.getTime() >= cacheTTL;
+	}
+
+	/**
+	 * @return the number of cached documents with changes that have not yet
+	 * been written to the backing database
+	 */
+	public int getPendingWrites() {
+		synchronized (dirty) {
+			return dirty.size();
+		}
+	}
+
+	private void markDirty(DocumentID id) {
+		int pending;
+		synchronized (dirty) {
+			dirty.put(id.getID(), id);
+			pending = dirty.size();
+		}
+		if (pending > maxPendingWrites) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the cached version of the document to the backing database, if
+	 * it has pending changes. Since {@link #lock(DocumentID)} waits for the
+	 * write to finish, a document is never written after it has been marked
+	 * as done.
+	 */
+	private void flush(DocumentID id) {
+		Object key = id.getID();
+		synchronized (dirty) {
+			awaitWritten(key);
+			if (dirty.remove(key) == null) {
+				return;
+			}
+			writing.add(key);
+		}
+		try {
+			DatabaseDocument<T> doc = cache.getDocumentById(id);
+			if (doc != null && !writer.update(doc)) {
+				logger.error("Unable to write cached document " + id + " to the backing database");
+			}
+		} finally {
+			synchronized (dirty) {
+				writing.remove(key);
+				dirty.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending changes of the documents, for use before marking
+	 * documents that may have been posted with only some of their fields.
+	 */
+	private void flush(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> d : docs) {
+			flush(d.getID());
+		}
+	}
+
+	/**
+	 * Discards pending changes of a document and keeps others from writing
+	 * it until {@link #unlock(DocumentID)} is called, for use when the full
+	 * document is about to be written by other means.
+	 */
+	private void lock(DocumentID id) {
+		synchronized (dirty) {
+			awaitWritten(id.getID());
+			dirty.remove(id.getID());
+			writing.add(id.getID());
+		}
+	}
+
+	private void unlock(DocumentID id) {
+		synchronized (dirty) {
+			writing.remove(id.getID());
+			dirty.notifyAll();
+		}
+	}
+
+	/**
+	 * Locks all the documents at once, waiting until none of them is being
+	 * written, so that overlapping batches cannot deadlock.
+	 */
+	private void lock(Collection<DatabaseDocument<T>> docs) {
+		boolean interrupted = false;
+		synchronized (dirty) {
+			while (isWriting(docs)) {
+				try {
+					dirty.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			for (DatabaseDocument<T> d : docs) {
+				dirty.remove(d.getID().getID());
+				writing.add(d.getID().getID());
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void unlock(Collection<DatabaseDocument<T>> docs) {
+		synchronized (dirty) {
+			for (DatabaseDocument<T> d : docs) {
+				writing.remove(d.getID().getID());
+			}
+			dirty.notifyAll();
+		}
+	}
+
+	private boolean isWriting(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> d : docs) {
+			if (writing.contains(d.getID().getID())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for an ongoing write of the document to finish. Must be called
+	 * holding the lock on {@link #dirty}.
+	 */
+	private void awaitWritten(Object key) {
+		boolean interrupted = false;
+		while (writing.contains(key)) {
+			try {
+				dirty.wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Background thread writing pending changes of cached documents to the
+	 * backing database. Changes to the same document made between two runs
+	 * are written as a single update.
+	 * 
+	 * Stop by interrupting.
+	 */
+	private class WriteBehindFlusher extends Thread {
+		WriteBehindFlusher() {
+			setDaemon(true);
+			setName("write-behind-flusher");
+		}
+
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(flushInterval);
+					flush();
+				} catch (InterruptedException e) {
+					interrupt();
+				} catch (RuntimeException e) {
+					logger.error("Caught exception while flushing cached documents", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Monitor thread, responsible for upholding the cache TTL and the
+	 * maximum number of cached documents.
+	 * 
+	 * Stop by interrupting.
+	 */
+	private class CacheMonitor extends Thread {
+		CacheMonitor() {
+			setDaemon(true);
+			setName("cache-monitor");
+		}
+
+		public void run() {
+			logger.info("Starting up cache monitor thread");
+			while (!isInterrupted()) {
+				try {
+					int evicted = evict();
+					if (evicted > 0) {
+						logger.debug("Returned " + evicted + " documents from the cache to the backing database");
+					}
+					Thread.sleep(MONITOR_INTERVAL_MS);
+				} catch (InterruptedException e) {
+					interrupt();
+				} catch (RuntimeException e) {
+					logger.error("Caught exception while evicting cached documents", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queries handed out by a {@link CachingDatabaseConnector} wrap the query
+	 * of the backing database, which is what the backing readers and writers
+	 * need.
+	 */
+	private DatabaseQuery<T> unwrap(DatabaseQuery<T> query) {
+		if (query instanceof CachingQuery) {
+			return ((CachingQuery<T>) query).getBackingQuery();
+		}
+		return query;
 	}
 
 }
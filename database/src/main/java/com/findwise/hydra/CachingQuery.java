@@ -0,0 +1,220 @@
+package com.findwise.hydra;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.findwise.hydra.Document.Action;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.tools.Comparator;
+
+/**
+ * A query that wraps the query of a backing database, recording every
+ * requirement put on it so that it can also be evaluated against documents
+ * held in a {@link Cache}.
+ *
+ * All requirements are passed on to the backing query, which should be
+ * used whenever the backing database is queried.
+ */
+public class CachingQuery<T extends DatabaseType> implements DatabaseQuery<T> {
+	private DatabaseQuery<T> backing;
+	private LocalQuery local;
+
+	private Map<String, Object> metadataEquals;
+	private Map<String, Object> metadataNotEquals;
+	private Map<String, Boolean> metadataExists;
+	private Map<String, Boolean> fetched;
+
+	public CachingQuery(DatabaseQuery<T> backing, Query query) throws JsonException {
+		this.backing = backing;
+		local = new LocalQuery(query.toJson());
+		metadataEquals = new HashMap<String, Object>();
+		metadataNotEquals = new HashMap<String, Object>();
+		metadataExists = new HashMap<String, Boolean>();
+		fetched = new HashMap<String, Boolean>();
+	}
+
+	public DatabaseQuery<T> getBackingQuery() {
+		return backing;
+	}
+
+	/**
+	 * Evaluates the recorded requirements against the document.
+	 */
+	public boolean matches(Document<?> d) {
+		if(local.getAction() != null && local.getAction() != d.getAction()) {
+			return false;
+		}
+		for(Map.Entry<String, Boolean> e : local.getTouched().entrySet()) {
+			if(e.getValue() != hasTag(d, Document.TOUCHED_METADATA_TAG, e.getKey())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Boolean> e : fetched.entrySet()) {
+			if(e.getValue() != hasTag(d, Document.FETCHED_METADATA_TAG, e.getKey())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Boolean> e : local.getContentsExists().entrySet()) {
+			if(e.getValue() != d.hasContentField(e.getKey())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Object> e : local.getContentsEquals().entrySet()) {
+			if(!d.hasContentField(e.getKey()) || !Comparator.equals(d.getContentField(e.getKey()), e.getValue())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Object> e : local.getContentNotEquals().entrySet()) {
+			if(Comparator.equals(d.getContentField(e.getKey()), e.getValue())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Boolean> e : metadataExists.entrySet()) {
+			if(e.getValue() != (getMetadata(d, e.getKey()) != null)) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Object> e : metadataEquals.entrySet()) {
+			Object o = getMetadata(d, e.getKey());
+			if(o == null || !Comparator.equals(o, e.getValue())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Object> e : metadataNotEquals.entrySet()) {
+			if(Comparator.equals(getMetadata(d, e.getKey()), e.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the names of the stages that the query requires to have
+	 * touched (if <code>true</code>) or not touched (if <code>false</code>)
+	 * the document.
+	 */
+	public Map<String, Boolean> getTouched() {
+		return local.getTouched();
+	}
+
+	/**
+	 * @return the names of the stages that the query requires to have
+	 * fetched (if <code>true</code>) or not fetched (if <code>false</code>)
+	 * the document.
+	 */
+	public Map<String, Boolean> getFetched() {
+		return fetched;
+	}
+
+	private static boolean hasTag(Document<?> d, String tag, String stage) {
+		Object o = d.getMetadataMap().get(tag);
+		return o instanceof Map && ((Map<?, ?>) o).containsKey(stage);
+	}
+
+	/**
+	 * Looks up a metadata field, following dots into sub maps.
+	 */
+	private static Object getMetadata(Document<?> d, String path) {
+		Object o = d.getMetadataMap();
+		for(String key : path.split("\\.")) {
+			if(!(o instanceof Map)) {
+				return null;
+			}
+			o = ((Map<?, ?>) o).get(key);
+		}
+		return o;
+	}
+
+	@Override
+	public void requireContentFieldExists(String fieldName) {
+		local.requireContentFieldExists(fieldName);
+		backing.requireContentFieldExists(fieldName);
+	}
+
+	@Override
+	public void requireContentFieldNotExists(String fieldName) {
+		local.requireContentFieldNotExists(fieldName);
+		backing.requireContentFieldNotExists(fieldName);
+	}
+
+	@Override
+	public void requireTouchedByStage(String stageName) {
+		local.requireTouchedByStage(stageName);
+		backing.requireTouchedByStage(stageName);
+	}
+
+	@Override
+	public void requireNotTouchedByStage(String stageName) {
+		local.requireNotTouchedByStage(stageName);
+		backing.requireNotTouchedByStage(stageName);
+	}
+
+	@Override
+	public void requireContentFieldEquals(String fieldName, Object o) {
+		local.requireContentFieldEquals(fieldName, o);
+		backing.requireContentFieldEquals(fieldName, o);
+	}
+
+	@Override
+	public void requireContentFieldNotEquals(String fieldName, Object o) {
+		local.requireContentFieldNotEquals(fieldName, o);
+		backing.requireContentFieldNotEquals(fieldName, o);
+	}
+
+	@Override
+	public void requireAction(Action a) {
+		local.requireAction(a);
+		backing.requireAction(a);
+	}
+
+	@Override
+	public void requireMetadataFieldEquals(String fieldName, Object o) {
+		metadataEquals.put(fieldName, o);
+		backing.requireMetadataFieldEquals(fieldName, o);
+	}
+
+	@Override
+	public void requireMetadataFieldNotEquals(String fieldName, Object o) {
+		metadataNotEquals.put(fieldName, o);
+		backing.requireMetadataFieldNotEquals(fieldName, o);
+	}
+
+	@Override
+	public void requireMetadataFieldExists(String fieldName) {
+		metadataExists.put(fieldName, true);
+		backing.requireMetadataFieldExists(fieldName);
+	}
+
+	@Override
+	public void requireMetadataFieldNotExists(String fieldName) {
+		metadataExists.put(fieldName, false);
+		backing.requireMetadataFieldNotExists(fieldName);
+	}
+
+	@Override
+	public void requireNotFetchedByStage(String tag) {
+		fetched.put(tag, false);
+		backing.requireNotFetchedByStage(tag);
+	}
+
+	/**
+	 * Serializes the query in the format of a LocalQuery, which is what
+	 * DatabaseConnector.convert(Query) expects. Metadata requirements are
+	 * not included.
+	 */
+	@Override
+	public String toJson() {
+		return local.toJson();
+	}
+
+	@Override
+	public void fromJson(String json) throws JsonException {
+		local.fromJson(json);
+		backing.fromJson(json);
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+}
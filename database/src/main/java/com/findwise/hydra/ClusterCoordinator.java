@@ -0,0 +1,51 @@
+package com.findwise.hydra;
+
+import java.util.Set;
+
+/**
+ * Lets several cores sharing one database agree on which of them runs each
+ * stage group. Cores register by sending heartbeats, and hold a stage group
+ * by holding a lease on it, which they must renew before it expires.
+ * 
+ * Expiry is judged by the clock of the core making the call, so the clocks
+ * of the cores should be kept reasonably in sync, and leases should be much
+ * longer than any expected clock skew.
+ */
+public interface ClusterCoordinator {
+	
+	/**
+	 * Registers the node, or refreshes its registration. The node is 
+	 * considered live until <code>ttlMs</code> milliseconds after this call.
+	 */
+	void heartbeat(String nodeId, long ttlMs);
+	
+	/**
+	 * Removes the node and every lease it holds.
+	 */
+	void unregister(String nodeId);
+	
+	/**
+	 * @return the ids of all nodes whose registration has not expired
+	 */
+	Set<String> getLiveNodes();
+	
+	/**
+	 * Takes or renews the lease on the group for the node, unless another
+	 * node holds an unexpired lease on it.
+	 * 
+	 * @return true if the node holds the lease, until <code>leaseMs</code>
+	 *         milliseconds after this call
+	 */
+	boolean acquireLease(String group, String nodeId, long leaseMs);
+	
+	/**
+	 * Gives up the lease on the group, if the node holds it.
+	 */
+	void releaseLease(String group, String nodeId);
+	
+	/**
+	 * @return the id of the node holding an unexpired lease on the group, or
+	 *         null if there is none
+	 */
+	String getLeaseHolder(String group);
+}
@@ -1,6 +1,8 @@
 package com.findwise.hydra;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
 
 import com.findwise.hydra.Document;
 import com.findwise.hydra.Query;
@@ -39,12 +41,31 @@ public interface DatabaseConnector<T extends DatabaseType> {
 	
 	DatabaseDocument<T> convert(Document<?> document) throws ConversionException;
 	
+	/**
+	 * Reads a document straight from its JSON representation, as given by
+	 * {@link Document#toJson()}, without first reading it into a String or
+	 * a LocalDocument.
+	 */
+	DatabaseDocument<T> convert(Reader json) throws JsonException, ConversionException;
+	
+	/**
+	 * Reads a document from an already deserialized representation, such as
+	 * one read from BSON, in the same format as {@link Document#toJson()}.
+	 */
+	DatabaseDocument<T> convert(Map<String, Object> map) throws ConversionException;
+	
 	boolean isConnected();
 
 	StatusWriter<T> getStatusWriter();
 	
 	StatusReader<T> getStatusReader();
 	
+	/**
+	 * @return the coordinator used by cores sharing this database to divide
+	 * the stage groups between them
+	 */
+	ClusterCoordinator getClusterCoordinator();
+	
 	public class ConversionException extends Exception {
 		/**
 		 * Auto generated
@@ -141,6 +141,41 @@ public interface DocumentWriter<T extends DatabaseType> {
 	 */
 	boolean markPending(DatabaseDocument<T> d, String stage);
 
+	/**
+	 * Marks all of the supplied documents as processed. The supplied documents
+	 * may be partial, in which case their fields are applied on top of the
+	 * stored documents before they are moved out of the active set.
+	 * 
+	 * Implementations are encouraged to do this in fewer round trips than
+	 * calling markProcessed(DatabaseDocument, String) for each document.
+	 * 
+	 * @return the number of documents that were marked
+	 */
+	int markProcessed(Collection<DatabaseDocument<T>> docs, String stage);
+
+	/**
+	 * Bulk version of markDiscarded(DatabaseDocument, String). See 
+	 * markProcessed(Collection, String).
+	 * 
+	 * @return the number of documents that were marked
+	 */
+	int markDiscarded(Collection<DatabaseDocument<T>> docs, String stage);
+
+	/**
+	 * Bulk version of markFailed(DatabaseDocument, String). See 
+	 * markProcessed(Collection, String).
+	 * 
+	 * @return the number of documents that were marked
+	 */
+	int markFailed(Collection<DatabaseDocument<T>> docs, String stage);
+
+	/**
+	 * Bulk version of markPending(DatabaseDocument, String).
+	 * 
+	 * @return the number of documents that were marked
+	 */
+	int markPending(Collection<DatabaseDocument<T>> docs, String stage);
+
 	/**
 	 * Inserts a new document into the database. Will fail if the document
 	 * already has a non-null ID. The document's new ID will be applied to the
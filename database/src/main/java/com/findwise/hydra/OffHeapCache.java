@@ -0,0 +1,564 @@
+package com.findwise.hydra;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * A {@link Cache} that keeps documents serialized in direct (off-heap)
+ * ByteBuffers, so that cached documents do not add to the garbage collection
+ * load of the JVM.
+ *
+ * Memory is allocated in slabs of a fixed size, and the total amount of
+ * memory allocated is bounded by the size given to the constructor. Space
+ * left behind by rewritten or removed documents is reclaimed by compacting
+ * the live documents of a slab to its start. When the cache is full,
+ * {@link #add(DatabaseDocument)} will refuse new documents.
+ *
+ * Only queries created by a {@link CachingDatabaseConnector} (i.e.
+ * {@link CachingQuery} instances) can be evaluated against the cache. Any
+ * other query will not match any cached document.
+ */
+public class OffHeapCache<T extends DatabaseType> implements Cache<T> {
+	private static final Logger logger = LoggerFactory.getLogger(OffHeapCache.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * Slabs where less than this share of the capacity is live are compacted
+	 * rather than allocating a new slab.
+	 */
+	static final double COMPACTION_RATIO = 0.5;
+
+	private final DatabaseConnector<T> backing;
+	private final long maxBytes;
+	private final int slabSize;
+
+	private final List<Slab> slabs;
+	private final LinkedHashMap<Object, Entry> entries;
+	private long allocatedBytes;
+
+	public OffHeapCache(DatabaseConnector<T> backing, long maxBytes) {
+		this(backing, maxBytes, DEFAULT_SLAB_SIZE);
+	}
+
+	public OffHeapCache(DatabaseConnector<T> backing, long maxBytes, int slabSize) {
+		if (maxBytes < 1 || slabSize < 1) {
+			throw new IllegalArgumentException("Cache and slab sizes must be positive");
+		}
+		this.backing = backing;
+		this.maxBytes = maxBytes;
+		this.slabSize = (int) Math.min(slabSize, maxBytes);
+		slabs = new ArrayList<Slab>();
+		entries = new LinkedHashMap<Object, Entry>();
+		allocatedBytes = 0;
+	}
+
+	@Override
+	public void prepare() {
+	}
+
+	@Override
+	public synchronized boolean add(DatabaseDocument<T> doc) {
+		if (doc == null || doc.getID() == null) {
+			return false;
+		}
+		LocalDocument ld = toLocal(doc);
+		if (ld == null) {
+			return false;
+		}
+		return store(doc.getID(), ld);
+	}
+
+	@Override
+	public synchronized void add(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> doc : docs) {
+			add(doc);
+		}
+	}
+
+	@Override
+	public synchronized void remove(DocumentID id) {
+		Entry e = entries.remove(id.getID());
+		if (e != null) {
+			free(e);
+		}
+	}
+
+	@Override
+	public synchronized void removeAll() {
+		entries.clear();
+		slabs.clear();
+		allocatedBytes = 0;
+	}
+
+	@Override
+	public synchronized DatabaseDocument<T> getDocumentById(DocumentID id) {
+		Entry e = entries.get(id.getID());
+		if (e == null) {
+			return null;
+		}
+		e.accessed = System.currentTimeMillis();
+		return toDatabaseDocument(read(e));
+	}
+
+	@Override
+	public synchronized DatabaseDocument<T> getDocument() {
+		Iterator<Entry> it = entries.values().iterator();
+		if (!it.hasNext()) {
+			return null;
+		}
+		return toDatabaseDocument(read(it.next()));
+	}
+
+	@Override
+	public synchronized DatabaseDocument<T> getDocument(DatabaseQuery<T> query) {
+		Collection<DatabaseDocument<T>> docs = getDocument(query, 1);
+		if (docs.isEmpty()) {
+			return null;
+		}
+		return docs.iterator().next();
+	}
+
+	@Override
+	public synchronized Collection<DatabaseDocument<T>> getDocument(DatabaseQuery<T> query, int limit) {
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		if (!(query instanceof CachingQuery)) {
+			return list;
+		}
+		CachingQuery<T> cq = (CachingQuery<T>) query;
+		for (Entry e : entries.values()) {
+			if (list.size() >= limit) {
+				break;
+			}
+			LocalDocument ld = match(cq, e, null);
+			if (ld != null) {
+				DatabaseDocument<T> doc = toDatabaseDocument(ld);
+				if (doc != null) {
+					list.add(doc);
+				}
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized DatabaseDocument<T> getAndTag(DatabaseQuery<T> query, String tag) {
+		Collection<DatabaseDocument<T>> docs = getAndTag(query, tag, 1);
+		if (docs.isEmpty()) {
+			return null;
+		}
+		return docs.iterator().next();
+	}
+
+	@Override
+	public synchronized Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query, String tag, int n) {
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		if (!(query instanceof CachingQuery)) {
+			return list;
+		}
+		CachingQuery<T> cq = (CachingQuery<T>) query;
+		for (Entry e : new ArrayList<Entry>(entries.values())) {
+			if (list.size() >= n) {
+				break;
+			}
+			LocalDocument ld = match(cq, e, tag);
+			if (ld == null) {
+				continue;
+			}
+			tag(ld, Document.FETCHED_METADATA_TAG, tag);
+			if (store(e.id, ld)) {
+				DatabaseDocument<T> doc = toDatabaseDocument(ld);
+				if (doc != null) {
+					list.add(doc);
+				}
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized boolean markTouched(DocumentID id, String tag) {
+		Entry e = entries.get(id.getID());
+		if (e == null) {
+			return false;
+		}
+		LocalDocument ld = read(e);
+		if (ld == null) {
+			return false;
+		}
+		tag(ld, Document.TOUCHED_METADATA_TAG, tag);
+		return store(e.id, ld);
+	}
+
+	@Override
+	public synchronized boolean markProcessed(DocumentID id, String stage) {
+		Entry e = entries.remove(id.getID());
+		if (e == null) {
+			return false;
+		}
+		free(e);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean update(DatabaseDocument<T> document) {
+		Entry e = entries.get(document.getID().getID());
+		if (e == null) {
+			return false;
+		}
+		LocalDocument ld = read(e);
+		if (ld == null) {
+			return false;
+		}
+		ld.putAll(document);
+		for (String field : new ArrayList<String>(ld.getContentFields())) {
+			if (ld.getContentField(field) == null) {
+				ld.removeContentField(field);
+			}
+		}
+		return store(e.id, ld);
+	}
+
+	@Override
+	public synchronized Collection<DatabaseDocument<T>> evict(long maxIdle, int maxDocuments) {
+		List<Entry> evicted = new ArrayList<Entry>();
+		List<Entry> remaining = new ArrayList<Entry>();
+		long now = System.currentTimeMillis();
+		for (Entry e : entries.values()) {
+			if (now - e.accessed >= maxIdle) {
+				evicted.add(e);
+			} else {
+				remaining.add(e);
+			}
+		}
+		if (remaining.size() > maxDocuments) {
+			Collections.sort(remaining, new Comparator<Entry>() {
+				public int compare(Entry e1, Entry e2) {
+					return e1.accessed < e2.accessed ? -1 : (e1.accessed == e2.accessed ? 0 : 1);
+				}
+			});
+			evicted.addAll(remaining.subList(0, remaining.size() - maxDocuments));
+		}
+
+		List<DatabaseDocument<T>> docs = new ArrayList<DatabaseDocument<T>>();
+		for (Entry e : evicted) {
+			DatabaseDocument<T> doc = toDatabaseDocument(read(e));
+			entries.remove(e.id.getID());
+			free(e);
+			if (doc != null) {
+				docs.add(doc);
+			}
+		}
+		return docs;
+	}
+
+	/**
+	 * @return the number of documents currently held by the cache
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of bytes of serialized documents held by the cache
+	 */
+	public synchronized long getUsedBytes() {
+		long used = 0;
+		for (Slab s : slabs) {
+			used += s.live;
+		}
+		return used;
+	}
+
+	/**
+	 * @return the number of bytes of off-heap memory currently allocated
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Checks the entry against the query, using the tags kept on heap before
+	 * deserializing the document.
+	 *
+	 * @return the deserialized document if it matches, otherwise null
+	 */
+	private LocalDocument match(CachingQuery<T> query, Entry e, String tag) {
+		if (tag != null && e.fetched.contains(tag)) {
+			return null;
+		}
+		for (Map.Entry<String, Boolean> req : query.getTouched().entrySet()) {
+			if (req.getValue() != e.touched.contains(req.getKey())) {
+				return null;
+			}
+		}
+		for (Map.Entry<String, Boolean> req : query.getFetched().entrySet()) {
+			if (req.getValue() != e.fetched.contains(req.getKey())) {
+				return null;
+			}
+		}
+		LocalDocument ld = read(e);
+		if (ld == null || !query.matches(ld)) {
+			return null;
+		}
+		return ld;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void tag(LocalDocument ld, String type, String tag) {
+		Object o = ld.getMetadataMap().get(type);
+		Map<String, Object> map;
+		if (o instanceof Map) {
+			map = (Map<String, Object>) o;
+		} else {
+			map = new HashMap<String, Object>();
+			ld.getMetadataMap().put(type, map);
+		}
+		map.put(tag, new Date());
+	}
+
+	private static Set<String> getTags(LocalDocument ld, String type) {
+		Set<String> set = new HashSet<String>();
+		Object o = ld.getMetadataMap().get(type);
+		if (o instanceof Map) {
+			for (Object key : ((Map<?, ?>) o).keySet()) {
+				set.add(key.toString());
+			}
+		}
+		return set;
+	}
+
+	private LocalDocument toLocal(DatabaseDocument<T> doc) {
+		try {
+			return new LocalDocument(doc.toJson());
+		} catch (JsonException e) {
+			logger.error("Unable to serialize document '" + doc.getID() + "' for caching", e);
+			return null;
+		}
+	}
+
+	private DatabaseDocument<T> toDatabaseDocument(LocalDocument ld) {
+		if (ld == null) {
+			return null;
+		}
+		try {
+			return backing.convert(ld);
+		} catch (ConversionException e) {
+			logger.error("Unable to convert document: '" + ld.getID() + "' from cache to underlying type", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Serializes the document into a slab, replacing any previous entry with
+	 * the same key. If a document already in the cache no longer fits, it is
+	 * written back to the backing database instead.
+	 * 
+	 * @return false if the document was neither cached nor written back
+	 */
+	private boolean store(DocumentID id, LocalDocument ld) {
+		Object key = id.getID();
+		byte[] bytes = ld.toJson().getBytes(UTF8);
+		Entry e = entries.get(key);
+		if (e != null && bytes.length <= e.length) {
+			e.slab.live -= e.length - bytes.length;
+			e.length = bytes.length;
+		} else {
+			boolean cached = e != null;
+			if (cached) {
+				entries.remove(key);
+				free(e);
+			}
+			e = allocate(id, bytes.length);
+			if (e == null) {
+				logger.debug("Cache is full, unable to store document " + key);
+				return cached && spill(ld);
+			}
+			entries.put(key, e);
+		}
+		ByteBuffer buffer = e.slab.buffer.duplicate();
+		buffer.position(e.offset);
+		buffer.put(bytes);
+		e.accessed = System.currentTimeMillis();
+		e.touched = getTags(ld, Document.TOUCHED_METADATA_TAG);
+		e.fetched = getTags(ld, Document.FETCHED_METADATA_TAG);
+		return true;
+	}
+
+	/**
+	 * Writes a document that has been dropped from the cache back to the
+	 * backing database, releasing it from the cache.
+	 */
+	private boolean spill(LocalDocument ld) {
+		Object o = ld.getMetadataMap().get(Document.FETCHED_METADATA_TAG);
+		if (o instanceof Map) {
+			((Map<?, ?>) o).remove(CachingDocumentNIO.CACHE_TAG);
+		}
+		DatabaseDocument<T> doc = toDatabaseDocument(ld);
+		return doc != null && backing.getDocumentWriter().update(doc);
+	}
+
+	private LocalDocument read(Entry e) {
+		byte[] bytes = new byte[e.length];
+		ByteBuffer buffer = e.slab.buffer.duplicate();
+		buffer.position(e.offset);
+		buffer.get(bytes);
+		try {
+			return new LocalDocument(new String(bytes, UTF8));
+		} catch (JsonException ex) {
+			logger.error("Unable to deserialize cached document", ex);
+			return null;
+		}
+	}
+
+	private Entry allocate(DocumentID id, int length) {
+		for (Slab s : slabs) {
+			if (s.remaining() >= length) {
+				return s.allocate(id, length);
+			}
+		}
+		Slab s = getCompactable(length, COMPACTION_RATIO);
+		if (s == null) {
+			int size = Math.max(slabSize, length);
+			if (allocatedBytes + size <= maxBytes) {
+				s = new Slab(size);
+				slabs.add(s);
+				allocatedBytes += size;
+				return s.allocate(id, length);
+			}
+			s = getCompactable(length, 1);
+			if (s == null) {
+				return null;
+			}
+		}
+		compact(s);
+		return s.allocate(id, length);
+	}
+
+	/**
+	 * @return the slab with the lowest share of live bytes that is below the
+	 *         ratio and would fit the length once compacted, or null if there
+	 *         is none
+	 */
+	private Slab getCompactable(int length, double maxRatio) {
+		Slab best = null;
+		double bestRatio = maxRatio;
+		for (Slab s : slabs) {
+			double ratio = (double) s.live / s.buffer.capacity();
+			if (ratio < bestRatio && s.buffer.capacity() - s.live >= length) {
+				best = s;
+				bestRatio = ratio;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Moves the live entries of the slab to its start, in the order they
+	 * were allocated, so that the space of freed entries can be reused.
+	 */
+	private void compact(Slab s) {
+		List<Entry> live = new ArrayList<Entry>();
+		for (Entry e : entries.values()) {
+			if (e.slab == s) {
+				live.add(e);
+			}
+		}
+		Collections.sort(live, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return e1.offset < e2.offset ? -1 : (e1.offset == e2.offset ? 0 : 1);
+			}
+		});
+		s.position = 0;
+		for (Entry e : live) {
+			if (e.offset != s.position) {
+				byte[] bytes = new byte[e.length];
+				ByteBuffer buffer = s.buffer.duplicate();
+				buffer.position(e.offset);
+				buffer.get(bytes);
+				buffer.position(s.position);
+				buffer.put(bytes);
+				e.offset = s.position;
+			}
+			s.position += e.length;
+		}
+	}
+
+	private void free(Entry e) {
+		Slab s = e.slab;
+		s.live -= e.length;
+		if (s.live == 0) {
+			if (s.buffer.capacity() > slabSize) {
+				slabs.remove(s);
+				allocatedBytes -= s.buffer.capacity();
+			} else {
+				s.position = 0;
+			}
+		}
+	}
+
+	/**
+	 * A bump allocator over a direct buffer. Space is reclaimed once every
+	 * entry in the slab has been freed, or when the slab is compacted.
+	 */
+	private static final class Slab {
+		private final ByteBuffer buffer;
+		private int position = 0;
+		private int live = 0;
+
+		private Slab(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		private int remaining() {
+			return buffer.capacity() - position;
+		}
+
+		private Entry allocate(DocumentID id, int length) {
+			Entry e = new Entry(id, this, position, length);
+			position += length;
+			live += length;
+			return e;
+		}
+	}
+
+	private static final class Entry {
+		private final DocumentID id;
+		private final Slab slab;
+		private int offset;
+		private int length;
+		private long accessed;
+		private Set<String> touched;
+		private Set<String> fetched;
+
+		private Entry(DocumentID id, Slab slab, int offset, int length) {
+			this.id = id;
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.findwise.hydra;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The number of documents processed, failed and discarded during a period,
+ * in total and by the stage that marked them.
+ */
+public class StatusCounts {
+	private final Date from;
+	private final Date to;
+	private final int processed;
+	private final int failed;
+	private final int discarded;
+	private final Map<String, StatusCounts> stages;
+	
+	public StatusCounts(Date from, Date to, int processed, int failed, int discarded) {
+		this(from, to, processed, failed, discarded, new HashMap<String, StatusCounts>());
+	}
+	
+	public StatusCounts(Date from, Date to, int processed, int failed, int discarded, Map<String, StatusCounts> stages) {
+		this.from = from;
+		this.to = to;
+		this.processed = processed;
+		this.failed = failed;
+		this.discarded = discarded;
+		this.stages = Collections.unmodifiableMap(stages);
+	}
+	
+	public Date getFrom() {
+		return from;
+	}
+	
+	public Date getTo() {
+		return to;
+	}
+	
+	public int getProcessed() {
+		return processed;
+	}
+	
+	public int getFailed() {
+		return failed;
+	}
+	
+	public int getDiscarded() {
+		return discarded;
+	}
+	
+	/**
+	 * @return the counts of every stage that marked any documents during the
+	 * period, by stage name
+	 */
+	public Map<String, StatusCounts> getStages() {
+		return stages;
+	}
+	
+	public boolean isEmpty() {
+		return processed == 0 && failed == 0 && discarded == 0;
+	}
+	
+	@Override
+	public String toString() {
+		return "processed=" + processed + " failed=" + failed + " discarded=" + discarded + " stages=" + stages;
+	}
+}
@@ -1,10 +1,26 @@
 package com.findwise.hydra;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Counts documents as they are marked and periodically adds the counts to
+ * the pipeline status through the StatusWriter.
+ * 
+ * Counting never blocks: the counters are striped, so that the threads 
+ * marking documents do not contend on a single lock.
+ */
 public class StatusUpdater extends Thread {
-	private int processed;
-	private int failed;
-	private int discarded;
+	private final StripedCounter processed = new StripedCounter();
+	private final StripedCounter failed = new StripedCounter();
+	private final StripedCounter discarded = new StripedCounter();
+	
+	private final ConcurrentMap<String, StageCounters> stages = new ConcurrentHashMap<String, StageCounters>();
+	
+	private long lastSave = System.currentTimeMillis();
 	
 	private int interval;
 	
@@ -33,34 +49,53 @@ public class StatusUpdater extends Thread {
 		return interval;
 	}
 	
-	public synchronized void addProcessed(int toAdd) {
-		processed += toAdd;
+	public void addProcessed(int toAdd) {
+		processed.add(toAdd);
 	}
 	
-	private synchronized int getAndClearProcessed() {
-		int a = processed;
-		processed = 0;
-		return a;
+	public void addFailed(int toAdd) {
+		failed.add(toAdd);
 	}
 	
-	public synchronized void addFailed(int toAdd) {
-		failed += toAdd;
+	public void addDiscarded(int toAdd) {
+		discarded.add(toAdd);
 	}
 	
-	private synchronized int getAndClearFailed() {
-		int a = failed;
-		failed = 0;
-		return a;
+	/**
+	 * Counts documents processed by the stage, both in total and for the
+	 * stage, unless the stage is null.
+	 */
+	public void addProcessed(String stage, int toAdd) {
+		addProcessed(toAdd);
+		if(stage != null) {
+			getStageCounters(stage).processed.add(toAdd);
+		}
 	}
 	
-	public synchronized void addDiscarded(int toAdd) {
-		discarded += toAdd;
+	public void addFailed(String stage, int toAdd) {
+		addFailed(toAdd);
+		if(stage != null) {
+			getStageCounters(stage).failed.add(toAdd);
+		}
+	}
+	
+	public void addDiscarded(String stage, int toAdd) {
+		addDiscarded(toAdd);
+		if(stage != null) {
+			getStageCounters(stage).discarded.add(toAdd);
+		}
 	}
 	
-	private synchronized int getAndClearDiscarded() {
-		int a = discarded;
-		discarded = 0;
-		return a;
+	private StageCounters getStageCounters(String stage) {
+		StageCounters counters = stages.get(stage);
+		if(counters == null) {
+			StageCounters created = new StageCounters();
+			counters = stages.putIfAbsent(stage, created);
+			if(counters == null) {
+				counters = created;
+			}
+		}
+		return counters;
 	}
 
 	public void run() {
@@ -75,7 +110,31 @@ public class StatusUpdater extends Thread {
 		}
 	}
 
-	public void saveStatus() {
-		connector.getStatusWriter().increment(getAndClearProcessed(), getAndClearFailed(), getAndClearDiscarded());
+	/**
+	 * Adds everything counted since the last save to the status.
+	 */
+	public synchronized void saveStatus() {
+		Date from = new Date(lastSave);
+		lastSave = System.currentTimeMillis();
+		Date to = new Date(lastSave);
+		
+		Map<String, StatusCounts> stageCounts = new HashMap<String, StatusCounts>();
+		for(Map.Entry<String, StageCounters> e : stages.entrySet()) {
+			StatusCounts counts = e.getValue().getAndReset(from, to);
+			if(!counts.isEmpty()) {
+				stageCounts.put(e.getKey(), counts);
+			}
+		}
+		connector.getStatusWriter().increment(new StatusCounts(from, to, (int) processed.sumThenReset(), (int) failed.sumThenReset(), (int) discarded.sumThenReset(), stageCounts));
+	}
+	
+	private static class StageCounters {
+		private final StripedCounter processed = new StripedCounter();
+		private final StripedCounter failed = new StripedCounter();
+		private final StripedCounter discarded = new StripedCounter();
+		
+		private StatusCounts getAndReset(Date from, Date to) {
+			return new StatusCounts(from, to, (int) processed.sumThenReset(), (int) failed.sumThenReset(), (int) discarded.sumThenReset());
+		}
 	}
 }
@@ -4,6 +4,14 @@ package com.findwise.hydra;
 public interface StatusWriter<T extends DatabaseType> {
 
 	void increment(int processed, int failed, int discarded);
+	
+	/**
+	 * Adds the counts to the status, both the totals and those of every 
+	 * stage, and keeps them as a snapshot of the throughput during the period
+	 * they were counted in. Counts added by several cores at once must all be
+	 * kept.
+	 */
+	void increment(StatusCounts counts);
 
 	void save(PipelineStatus<T> status);
 
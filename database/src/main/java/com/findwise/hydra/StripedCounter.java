@@ -0,0 +1,78 @@
+package com.findwise.hydra;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads can add to concurrently without contending on a
+ * single memory location, in the spirit of Java 8's LongAdder. Every thread
+ * adds to one of several stripes, chosen by its id, and the stripes are
+ * only summed when the counter is read.
+ * 
+ * Each stripe is padded to its own cache line, so that threads adding to
+ * different stripes do not invalidate each other's caches.
+ */
+public class StripedCounter {
+	/**
+	 * Number of longs between stripes, spacing them 64 bytes apart.
+	 */
+	private static final int PADDING = 8;
+	
+	private final AtomicLongArray cells;
+	private final int mask;
+	
+	public StripedCounter() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+	
+	/**
+	 * @param stripes the number of stripes, rounded up to a power of two
+	 */
+	public StripedCounter(int stripes) {
+		int n = 1;
+		while (n < stripes) {
+			n <<= 1;
+		}
+		mask = n - 1;
+		cells = new AtomicLongArray(n * PADDING);
+	}
+	
+	public void add(long x) {
+		cells.addAndGet(index(), x);
+	}
+	
+	public void increment() {
+		add(1);
+	}
+	
+	/**
+	 * @return the sum of all stripes. Not an atomic snapshot if other threads
+	 * are adding at the same time.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+	
+	/**
+	 * Returns the sum of all stripes and resets them to zero. Every stripe
+	 * is read and reset atomically, so an addition made at the same time is
+	 * either included in the sum or left for the next call, never lost.
+	 */
+	public long sumThenReset() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.getAndSet(i, 0);
+		}
+		return sum;
+	}
+	
+	private int index() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32));
+		h ^= (h >>> 16);
+		return (h & mask) * PADDING;
+	}
+}
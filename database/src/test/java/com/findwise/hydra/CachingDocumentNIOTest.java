@@ -0,0 +1,203 @@
+package com.findwise.hydra;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.findwise.hydra.local.LocalDocumentID;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class CachingDocumentNIOTest {
+	DatabaseConnector backing;
+	DocumentReader backingReader;
+	DocumentWriter backingWriter;
+	Cache cache;
+	DatabaseDocument doc;
+	DatabaseDocument cached;
+	DocumentID id;
+
+	CachingDocumentNIO io;
+
+	@Before
+	public void setup() {
+		backing = mock(DatabaseConnector.class);
+		backingReader = mock(DocumentReader.class);
+		backingWriter = mock(DocumentWriter.class);
+		cache = mock(Cache.class);
+
+		when(backing.getDocumentReader()).thenReturn(backingReader);
+		when(backing.getDocumentWriter()).thenReturn(backingWriter);
+		when(backing.convert(any(Query.class))).thenReturn(mock(DatabaseQuery.class));
+
+		id = new LocalDocumentID(1);
+		doc = mock(DatabaseDocument.class);
+		when(doc.getID()).thenReturn(id);
+		cached = mock(DatabaseDocument.class);
+		when(cached.getID()).thenReturn(id);
+
+		when(cache.update(doc)).thenReturn(true);
+		when(cache.markTouched(id, "stage")).thenReturn(true);
+		when(cache.getDocumentById(id)).thenReturn(cached);
+		when(backingWriter.update(any(DatabaseDocument.class))).thenReturn(true);
+
+		io = new CachingDocumentNIO(backing, cache, 60000);
+	}
+
+	@After
+	public void tearDown() {
+		io.shutdown();
+	}
+
+	@Test
+	public void testWritesAreCoalesced() {
+		Assert.assertTrue(io.update(doc));
+		Assert.assertTrue(io.markTouched(id, "stage"));
+		Assert.assertTrue(io.update(doc));
+		Assert.assertEquals(1, io.getPendingWrites());
+		verify(backingWriter, never()).update(any(DatabaseDocument.class));
+
+		io.flush();
+
+		Assert.assertEquals(0, io.getPendingWrites());
+		verify(backingWriter, times(1)).update(cached);
+	}
+
+	@Test
+	public void testMarkProcessedDiscardsPendingWrite() {
+		when(backingWriter.markProcessed(doc, "stage")).thenReturn(true);
+
+		io.update(doc);
+		Assert.assertTrue(io.markProcessed(doc, "stage"));
+		io.flush();
+
+		verify(backingWriter, never()).update(any(DatabaseDocument.class));
+	}
+
+	@Test
+	public void testBackgroundFlush() throws Exception {
+		io.shutdown();
+		io = new CachingDocumentNIO(backing, cache, 50);
+		io.prepare();
+
+		io.update(doc);
+		Thread.sleep(1000);
+
+		verify(backingWriter, times(1)).update(cached);
+	}
+
+	@Test
+	public void testBulkMarkWritesPendingChangesFirst() {
+		Collection docs = Arrays.asList(doc);
+		when(backingWriter.markProcessed(docs, "stage")).thenReturn(1);
+
+		io.update(doc);
+		Assert.assertEquals(1, io.markProcessed(docs, "stage"));
+
+		Assert.assertEquals(0, io.getPendingWrites());
+		InOrder order = inOrder(backingWriter, cache);
+		order.verify(backingWriter).update(cached);
+		order.verify(backingWriter).markProcessed(docs, "stage");
+		order.verify(cache).remove(id);
+	}
+
+	@Test
+	public void testUncachedUpdateIsWrittenThrough() {
+		DatabaseDocument other = mock(DatabaseDocument.class);
+		when(other.getID()).thenReturn(new LocalDocumentID(2));
+
+		Assert.assertTrue(io.update(other));
+
+		Assert.assertEquals(0, io.getPendingWrites());
+		verify(backingWriter, times(1)).update(other);
+		verify(cache, never()).add(any(DatabaseDocument.class));
+	}
+
+	@Test
+	public void testShutdownFlushes() {
+		io.update(doc);
+		io.shutdown();
+
+		verify(backingWriter, times(1)).update(cached);
+	}
+
+	@Test
+	public void testMaxPendingWrites() {
+		io.setMaxPendingWrites(0);
+		io.update(doc);
+
+		Assert.assertEquals(0, io.getPendingWrites());
+		verify(backingWriter, times(1)).update(cached);
+	}
+
+	@Test
+	public void testEvictReleasesCacheTag() {
+		when(cache.evict(io.getCacheTTL(), io.getMaxCachedDocuments())).thenReturn(Arrays.asList(cached));
+		when(backingReader.getDocumentById(id)).thenReturn(cached);
+
+		io.update(doc);
+		Assert.assertEquals(1, io.evict());
+
+		Assert.assertEquals(0, io.getPendingWrites());
+		verify(cached).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		verify(backingWriter, times(1)).update(cached);
+	}
+
+	@Test
+	public void testEvictDoesNotReinsertDoneDocument() {
+		when(cache.evict(io.getCacheTTL(), io.getMaxCachedDocuments())).thenReturn(Arrays.asList(cached));
+		when(backingReader.getDocumentById(id)).thenReturn(null);
+
+		Assert.assertEquals(1, io.evict());
+
+		verify(backingWriter, never()).update(cached);
+	}
+
+	@Test
+	public void testReleasesOnlyClaimsOfDeadNodes() {
+		ClusterCoordinator coordinator = mock(ClusterCoordinator.class);
+		when(coordinator.getLiveNodes()).thenReturn(new HashSet<String>(Arrays.asList("self", "live")));
+		when(backing.getClusterCoordinator()).thenReturn(coordinator);
+
+		DatabaseDocument self = claimedBy("self");
+		DatabaseDocument live = claimedBy("live");
+		DatabaseDocument dead = claimedBy("dead");
+		when(backingReader.getDocuments(any(DatabaseQuery.class), anyInt(), anyInt())).thenReturn(Arrays.asList(self, live, dead));
+
+		io.setNodeId("self");
+		io.prepare();
+
+		verify(self).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		verify(dead).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		verify(live, never()).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		verify(backingWriter, never()).update(live);
+	}
+
+	private DatabaseDocument claimedBy(String node) {
+		DatabaseDocument d = mock(DatabaseDocument.class);
+		DocumentID docId = new LocalDocumentID(node);
+		when(d.getID()).thenReturn(docId);
+		when(backingReader.getDocumentById(docId)).thenReturn(d);
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		metadata.put(CachingDocumentNIO.CACHE_OWNER_METADATA_KEY, node);
+		when(d.getMetadataMap()).thenReturn(metadata);
+		when(d.getFetchedBy()).thenReturn(new HashSet<String>(Arrays.asList(CachingDocumentNIO.CACHE_TAG)));
+		return d;
+	}
+}
@@ -1,7 +1,13 @@
 package com.findwise.hydra;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
 import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 public class StatusUpdaterTest {
@@ -15,14 +21,14 @@ public class StatusUpdaterTest {
 		Mockito.when(dbc.getStatusWriter()).thenReturn(sw);
 		
 		StatusUpdater su = new StatusUpdater(dbc, 1);
-		Mockito.verify(sw, Mockito.never()).increment(Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt());
+		Mockito.verify(sw, Mockito.never()).increment(Mockito.any(StatusCounts.class));
 		su.start();
 		
 		Thread.sleep(500);
 		
 		su.interrupt();
 		
-		Mockito.verify(sw, Mockito.atLeast(2)).increment(Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt());
+		Mockito.verify(sw, Mockito.atLeast(2)).increment(Mockito.any(StatusCounts.class));
 		
 		Thread.sleep(500);
 		Mockito.verifyNoMoreInteractions(sw);
@@ -39,12 +45,74 @@ public class StatusUpdaterTest {
 		su.addFailed(2);
 		su.addDiscarded(1);
 		su.saveStatus();
+		su.saveStatus();
 		
-		Mockito.verify(sw).increment(3, 2, 1);
+		ArgumentCaptor<StatusCounts> captor = ArgumentCaptor.forClass(StatusCounts.class);
+		Mockito.verify(sw, Mockito.times(2)).increment(captor.capture());
+		List<StatusCounts> counts = captor.getAllValues();
+		assertEquals(3, counts.get(0).getProcessed());
+		assertEquals(2, counts.get(0).getFailed());
+		assertEquals(1, counts.get(0).getDiscarded());
+		assertTrue(counts.get(1).isEmpty());
+		assertEquals(counts.get(0).getTo(), counts.get(1).getFrom());
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void testSaveStageStatus() {
+		DatabaseConnector<?> dbc = Mockito.mock(DatabaseConnector.class);
+		StatusWriter sw = Mockito.mock(StatusWriter.class);
+		Mockito.when(dbc.getStatusWriter()).thenReturn(sw);
+		StatusUpdater su = new StatusUpdater(dbc);
+		su.addProcessed("a", 2);
+		su.addProcessed("b", 1);
+		su.addFailed("b", 4);
+		su.addDiscarded(null, 1);
 		su.saveStatus();
 		
-		Mockito.verify(sw).increment(0, 0, 0);
+		ArgumentCaptor<StatusCounts> captor = ArgumentCaptor.forClass(StatusCounts.class);
+		Mockito.verify(sw).increment(captor.capture());
+		StatusCounts counts = captor.getValue();
+		assertEquals(3, counts.getProcessed());
+		assertEquals(4, counts.getFailed());
+		assertEquals(1, counts.getDiscarded());
+		assertEquals(2, counts.getStages().size());
+		assertEquals(2, counts.getStages().get("a").getProcessed());
+		assertEquals(4, counts.getStages().get("b").getFailed());
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void testConcurrentCounting() throws Exception {
+		DatabaseConnector<?> dbc = Mockito.mock(DatabaseConnector.class);
+		StatusWriter sw = Mockito.mock(StatusWriter.class);
+		Mockito.when(dbc.getStatusWriter()).thenReturn(sw);
+		final StatusUpdater su = new StatusUpdater(dbc);
 		
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 10000; j++) {
+						su.addProcessed("stage", 1);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		int total = 0;
+		ArgumentCaptor<StatusCounts> captor = ArgumentCaptor.forClass(StatusCounts.class);
+		for(Thread t : threads) {
+			su.saveStatus();
+			t.join();
+		}
+		su.saveStatus();
+		Mockito.verify(sw, Mockito.atLeastOnce()).increment(captor.capture());
+		for(StatusCounts counts : captor.getAllValues()) {
+			total += counts.getProcessed();
+		}
+		assertEquals(80000, total);
 	}
 
 }
@@ -0,0 +1,42 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void testSumThenReset() {
+		StripedCounter counter = new StripedCounter(3);
+		counter.add(5);
+		counter.increment();
+		assertEquals(6, counter.sum());
+		assertEquals(6, counter.sumThenReset());
+		assertEquals(0, counter.sum());
+	}
+
+	@Test
+	public void testConcurrentAdds() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		long drained = 0;
+		for (Thread t : threads) {
+			drained += counter.sumThenReset();
+			t.join();
+		}
+		drained += counter.sumThenReset();
+		assertEquals(80000, drained);
+	}
+}
@@ -33,7 +33,11 @@ public class TikaStage extends AbstractProcessStage {
 			List<String> files = getRemotePipeline().getFileNames(doc.getID());
 			for(String fileName : files) {
 				DocumentFile<Local> df = getRemotePipeline().getFile(fileName, doc.getID());
-				TikaUtils.enrichDocumentWithFileContents(doc, fileName.replace('.', '_')+"_", df.getStream(), parser, addMetaData, addLanguage);
+				try {
+					TikaUtils.enrichDocumentWithFileContents(doc, fileName.replace('.', '_')+"_", df.getStream(), parser, addMetaData, addLanguage);
+				} finally {
+					df.getStream().close();
+				}
 			}
 		} catch (IOException e) {
 			throw new ProcessException("Failed opening or reading from stream", e);